@@ -25,6 +25,7 @@ package org.parg.azureus.plugins.networks.tor;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.lang.management.RuntimeMXBean;
 import java.lang.reflect.Field;
@@ -35,8 +36,12 @@ import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Proxy;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
@@ -52,7 +57,6 @@ import javax.net.ssl.TrustManager;
 
 import com.biglybt.core.security.SEPasswordListener;
 import com.biglybt.core.security.SESecurityManager;
-import com.biglybt.core.tracker.protocol.PRHelpers;
 import com.biglybt.core.util.*;
 import com.biglybt.pif.PluginAdapter;
 import com.biglybt.pif.PluginConfig;
@@ -113,82 +117,171 @@ TorPlugin
 	
 	private BooleanParameter services_enable_param;
 
-	private boolean	plugin_enabled;
-	private boolean	external_tor;
-	private boolean	start_on_demand;
-	private boolean	stop_on_idle;
-	private boolean	prompt_on_use;
-	private boolean	prompt_skip_vuze;
+		// everything derived from the parameters, replaced as a whole by the parameter listener
+		// so readers never see a mix of old and new values and don't need the plugin monitor
+	
+	private volatile Settings	settings = new Settings();
+	
 	private int		internal_control_port;
 	private String	internal_socks_host	= "127.0.0.1";
 	private int		internal_socks_port;
+		
+		// set when the internal server's control port and an additional SOCKS port are AF_UNIX
+		// sockets in the data dir. The TCP SOCKS port remains for java.net.Proxy based users
 	
-	private String	external_socks_host	= internal_socks_host;
-	private int		external_socks_port;
-	
-	private boolean	debug_server;
+	private boolean					use_unix_sockets;
+	private volatile SocketAddress	unix_control_address;
+	private volatile SocketAddress	unix_socks_address;
 	
-	private String		active_socks_host;
-	private int			active_socks_port;
 	
 	private long	MIN_RECONNECT_TIME		= 60*1000;
 	private long	MAX_CONNECT_WAIT_TIME	= 2*60*1000;
 	private long	STOP_ON_IDLE_TIME		= 10*60*1000;
-
-	private SOCKSProxy				socks_proxy;
+	
+	private static final int	RELAY_ENGINE_LOOPS		= 2;
+		// overall time allowed from a proxy being handed out to the stream through it being connected,
+		// covering Tor start-up, admission and the SOCKS exchange
+	
+	private static final int	SOCKS_CONNECT_TIMEOUT	= 2*60*1000;
+	private static final int	SOCKS_CONNECT_MIN_TIME	= 10*1000;
+	
+	private static final int	CONTROL_CONNECT_WAIT	= 30*1000;
+		
+		// a hedged connect starts a second attempt once the first has taken longer than the p90 of
+		// recent connects, bounded by these
+	
+	private static final long	HEDGE_DELAY_DEFAULT		= 5*1000;
+	private static final long	HEDGE_DELAY_MIN			= 1*1000;
+	private static final long	HEDGE_DELAY_MAX			= 30*1000;
+	private static final int	HEDGE_MIN_SAMPLES		= 16;
+	
+	private final TorPluginLatencyTracker	socks_connect_latency = new TorPluginLatencyTracker( 128 );
+	
+	private final AtomicLong	hedges_started	= new AtomicLong();
+	private final AtomicLong	hedges_won		= new AtomicLong();
+	private final AtomicLong	hedge_next_id	= new AtomicLong();
+	
+	private final TorPluginConnectScheduler	connect_scheduler = new TorPluginConnectScheduler( "TorConnect", 64, 256, 60*1000 );
+		
+		// filtering proxy upstreams, each network gets its own scheduler so that slow I2P tunnel builds
+		// only queue behind each other and not in front of Tor connects
+	
+	private final TorPluginRouteTable		route_table = new TorPluginRouteTable( connect_scheduler, SOCKS_CONNECT_TIMEOUT );
+	
+	private final TorPluginRouteTable.Route	i2p_route =
+		route_table.addNetworkRoute(
+			TorPluginRouteTable.ROUTE_I2P,
+			AENetworkClassifier.AT_I2P,
+			new TorPluginConnectScheduler( "I2PConnect", 16, 64, 2*60*1000 ),
+			3*60*1000 );
+		
+		// intermediate SOCKS listeners, each with its own connections and lock. Proxies are handed
+		// out across them in turn so connection setup/teardown isn't serialised on one monitor
+	
+	private static final int		SOCKS_PROXY_SHARDS = Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors()));
+	
+	private final SOCKSProxy[]		socks_proxies	= new SOCKSProxy[ SOCKS_PROXY_SHARDS ];
+	private int						next_socks_proxy;
+	
+	private final AtomicInteger		socks_connection_count = new AtomicInteger();
+	
+	private final TorPluginIdleReaper			idle_reaper			= TorPluginIdleReaper.getSingleton();
+	
+	private final TorPluginIsolationPolicy		isolation_policy	= new TorPluginIsolationPolicy();
+	private final TorPluginIdleReaper.Group		socks_idle_group	= idle_reaper.createGroup( "SOCKS", 256 );
+	
+	private volatile TorPluginRelayEngine	relay_engine;
+	private volatile TorPluginSOCKSPool		socks_pool;
+	
+	private final TorPluginBufferPool	buffer_pool = TorPluginBufferPool.getSingleton();
+	
+	private final TorPluginRateLimiter	rate_limiter = TorPluginRateLimiter.getSingleton();
 	
 	private SOCKSProxy				filtering_proxy;
 	private String					filtering_i2p_host	= "127.0.0.1";
 	private int						filtering_i2p_port;
 	
-	private ControlConnection		current_connection;
+	private volatile ControlConnection		current_connection;
 	private AESemaphore 			connection_sem;
 	private long					last_connect_time;
 	
 	private boolean					permissions_checked;
 	
-	private Set<String>				prompt_decisions 	= new HashSet<String>();
+	private TorPluginPromptDecisions	prompt_decisions;
 	private String					last_decision_log	= "";
 	
 	private volatile long			last_use_time;
 	
-	private Map<Proxy,ProxyMapEntry>			proxy_map 				= new IdentityHashMap<Proxy, ProxyMapEntry>();
-	private Map<String,Object[]>				intermediate_host_map	= new HashMap<String, Object[]>();
+		// the tables below are each their own lock, they're used on every proxy request and shouldn't
+		// queue behind the plugin monitor (server start/stop, config changes)
 	
-	protected Map<String,Object[]>	intermediate_host_old_map =
-			new LinkedHashMap<String,Object[]>(256,0.75f,true)
+	private final Map<Proxy,ProxyMapEntry>		proxy_map 				= new IdentityHashMap<Proxy, ProxyMapEntry>();
+		
+		// proxies whose status is never reported get dropped after this
+	
+	private static final long	PROXY_ENTRY_MAX_AGE		= 10*60*1000;
+	
+	private static final long	PROXY_LEASE_MIN_TTL		= 10*1000;
+	private static final long	PROXY_LEASE_MAX_TTL		= 60*60*1000;
+	
+	private final TorPluginTimerWheel<ProxyMapEntry>	proxy_expiry = 
+		new TorPluginTimerWheel<ProxyMapEntry>(
+			"TP:proxyExpiry",
+			5*1000,
+			128,
+			new TorPluginTimerWheel.Listener<ProxyMapEntry>()
 			{
 				@Override
-				protected boolean
-				removeEldestEntry(
-			   		Map.Entry<String,Object[]> eldest)
+				public void
+				expired(
+					ProxyMapEntry	entry )
 				{
-					return size() > 256;
+					proxyEntryExpired( entry );
 				}
-			};
-			
-	private Map<String,String>					domain_rewrite_map	= new HashMap<String, String>();
+			});
+	
+	private final TorPluginIntermediateHosts	intermediate_hosts	= new TorPluginIntermediateHosts();
 	
-	private Map<String,TorPluginHTTPProxy>		http_proxy_map		= new HashMap<String, TorPluginHTTPProxy>();
+	private volatile TorPluginDomainRewrites	domain_rewrites		= new TorPluginDomainRewrites( "", new ArrayList<String>());
+	private String								domain_rewrites_text	= "";
+		
+		// Debug.getCompressedStackTrace is expensive, only capture the creator of one proxy in this many
+	
+	private static final int	CREATOR_SAMPLE_RATE	= 64;
+	
+	private volatile InetSocketAddress	direct_socks_address;
+	
+	private final Map<String,TorPluginHTTPProxy>	http_proxy_map		= new HashMap<String, TorPluginHTTPProxy>();
 	
 	private AtomicLong	proxy_request_count		= new AtomicLong();
 	private AtomicLong	proxy_request_ok		= new AtomicLong();
 	private AtomicLong	proxy_request_failed	= new AtomicLong();
+	private AtomicLong	proxy_lease_count		= new AtomicLong();
+	
+	private final TorPluginStreamStats.Aggregate	stream_totals = new TorPluginStreamStats.Aggregate();
 	
 	private static final int MAX_HISTORY_RECORDS	= 4096;
+	private static final int HISTORY_SEGMENTS		= 16;
+	
+	private final TorPluginSegmentedLRU<String,ProxyHistory>	proxy_history = 
+		new TorPluginSegmentedLRU<String,ProxyHistory>( MAX_HISTORY_RECORDS, HISTORY_SEGMENTS );
 	
-	@SuppressWarnings( "serial" )
-	private Map<String,ProxyHistory>		proxy_history = 
-			new LinkedHashMap<String,ProxyHistory>(MAX_HISTORY_RECORDS,0.75f,true)
+	private final TorPluginSegmentedLRU.Factory<String,ProxyHistory>	proxy_history_factory =
+		new TorPluginSegmentedLRU.Factory<String,ProxyHistory>()
+		{
+			@Override
+			public ProxyHistory
+			create(
+				String		key )
 			{
-				@Override
-				protected boolean
-				removeEldestEntry(
-			   		Map.Entry<String,ProxyHistory> eldest) 
-				{
-					return size() > MAX_HISTORY_RECORDS;
-				}
-			};
+				return( new ProxyHistory( key ));
+			}
+		};
+	
+	private static final int HISTORY_SAVE_PERIOD	= 5*60*1000;
+	
+	private File					proxy_history_file;
+	private volatile boolean		proxy_history_dirty;
 		
 	private volatile boolean		config_needs_checking	= true;
 	
@@ -240,6 +333,8 @@ TorPlugin
 					});
 					
 			plugin_config = plugin_interface.getPluginconfig();
+			
+			prompt_decisions = new TorPluginPromptDecisions( plugin_config );
 						
 			config_model = ui_manager.createBasicPluginConfigModel( "plugins", "aztorplugin.name" );
 
@@ -284,13 +379,6 @@ TorPlugin
 			
 			final IntParameter control_port_param = config_model.addIntParameter2( "control_port", "aztorplugin.control_port", 0 ); 
 			
-			if ( control_port_param.getValue() == 0 ){
-				
-				control_port_param.setValue( allocatePort( CONTROL_PORT_DEFAULT ));
-			}
-			
-			internal_control_port = control_port_param.getValue();
-			
 			final IntParameter socks_port_param = config_model.addIntParameter2( "socks_port", "aztorplugin.socks_port", 0 ); 
 			
 			if ( socks_port_param.getValue() == 0 ){
@@ -300,6 +388,19 @@ TorPlugin
 			
 			internal_socks_port = socks_port_param.getValue();
 			
+			final BooleanParameter unix_sockets_param = config_model.addBooleanParameter2( "unix_sockets", "aztorplugin.unix_sockets", false );
+			
+			use_unix_sockets = unix_sockets_param.getValue() && TorPluginUnixSockets.isSupported();
+				
+				// no TCP control port with unix sockets, one is allocated at start-up if we have to fall back
+			
+			if ( control_port_param.getValue() == 0 && !use_unix_sockets ){
+				
+				control_port_param.setValue( allocatePort( CONTROL_PORT_DEFAULT ));
+			}
+			
+			internal_control_port = control_port_param.getValue();
+			
 			services_enable_param 						= config_model.addBooleanParameter2( "services_enable", "aztorplugin.services.enable", true );
 			
 			services_enable_param.addListener(
@@ -316,35 +417,46 @@ TorPlugin
 			
 			final BooleanParameter debug_server_param 	= config_model.addBooleanParameter2( "debug_server", "aztorplugin.debug_server", false );
 			
+			final BooleanParameter relay_nio_param 		= config_model.addBooleanParameter2( "relay_nio", "aztorplugin.relay_nio", true );
+			
+			final BooleanParameter socks_pool_param 	= config_model.addBooleanParameter2( "socks_pool", "aztorplugin.socks_pool", true );
+			
+			final BooleanParameter optimistic_param 	= config_model.addBooleanParameter2( "optimistic_data", "aztorplugin.optimistic_data", true );
+			
+			final BooleanParameter hedge_param 			= config_model.addBooleanParameter2( "hedged_connects", "aztorplugin.hedged_connects", false );
+			
+			String[]	isolation_labels = new String[ TorPluginIsolationPolicy.POLICIES.length ];
+			
+			for ( int i=0;i<isolation_labels.length;i++){
+				
+				isolation_labels[i] = loc_utils.getLocalisedMessageText( "aztorplugin.isolation_policy." + TorPluginIsolationPolicy.POLICIES[i] );
+			}
+			
+			final BooleanParameter domain_backoff_param	= config_model.addBooleanParameter2( "domain_backoff", "aztorplugin.domain_backoff", false );
+			
+			final StringListParameter isolation_param = 
+				config_model.addStringListParameter2( 
+					"isolation_policy", "aztorplugin.isolation_policy", 
+					TorPluginIsolationPolicy.POLICIES, isolation_labels, TorPluginIsolationPolicy.POLICY_CALLER );
+			
+			final IntParameter rate_global_param	= config_model.addIntParameter2( "rate_limit_global", "aztorplugin.rate_limit_global", 0, 0, 1024*1024 );
+			final IntParameter rate_host_param		= config_model.addIntParameter2( "rate_limit_host", "aztorplugin.rate_limit_host", 0, 0, 1024*1024 );
+			final IntParameter rate_bulk_param		= config_model.addIntParameter2( "rate_limit_bulk", "aztorplugin.rate_limit_bulk", 0, 0, 1024*1024 );
+			
+			config_model.createGroup( "aztorplugin.rate_limits", new Parameter[]{ rate_global_param, rate_host_param, rate_bulk_param });
+			
+			final IntParameter max_connections_param	= config_model.addIntParameter2( "max_connections", "aztorplugin.max_connections", 256, 1, 4096 );
+			final IntParameter connect_active_param		= config_model.addIntParameter2( "connect_max_active", "aztorplugin.connect_max_active", 64, 1, 1024 );
+			final IntParameter connect_queued_param		= config_model.addIntParameter2( "connect_max_queued", "aztorplugin.connect_max_queued", 256, 0, 4096 );
+			final IntParameter connect_wait_param		= config_model.addIntParameter2( "connect_queue_timeout", "aztorplugin.connect_queue_timeout", 60, 1, 600 );
+			
+			config_model.createGroup( "aztorplugin.connect_options", new Parameter[]{ max_connections_param, connect_active_param, connect_queued_param, connect_wait_param });
+			
 			final BooleanParameter ext_tor_param 		= config_model.addBooleanParameter2( "ext_tor", "aztorplugin.use_external", false );
 			
 			final StringParameter 	ext_socks_host_param = config_model.addStringParameter2( "ext_socks_host", "aztorplugin.ext_socks_host", "127.0.0.1" ); 
 			final IntParameter 		ext_socks_port_param = config_model.addIntParameter2( "ext_socks_port", "aztorplugin.ext_socks_port", 9050 ); 
 
-			ext_socks_host_param.addListener(
-					new ParameterListener()
-					{	
-						@Override
-						public void
-						parameterChanged(
-							Parameter param) 
-						{
-							active_socks_host = external_socks_host = ext_socks_host_param.getValue();
-						}
-					});
-			
-			ext_socks_port_param.addListener(
-				new ParameterListener()
-				{	
-					@Override
-					public void
-					parameterChanged(
-						Parameter param) 
-					{
-						active_socks_port = external_socks_port = ext_socks_port_param.getValue();
-					}
-				});
-			
 			final StringParameter test_url_param	= config_model.addStringParameter2( "test_url", "aztorplugin.test_url", Constants.URL_CLIENT_HOME );
 			
 			final ActionParameter test_param = config_model.addActionParameter2( "aztorplugin.test_text", "aztorplugin.test_button" );
@@ -367,13 +479,15 @@ TorPlugin
 							{
 								List<String>	lines = new ArrayList<String>();
 								
-								lines.add( "Testing connection via SOCKS proxy on " + active_socks_host + ":" + active_socks_port );
+								Settings s = settings;
+								
+								lines.add( "Testing connection via SOCKS proxy on " + s.active_socks_host + ":" + s.active_socks_port );
 								
 								String	temp_host		= "";
 								String	rewrite_host	= "";
 								
 								try{
-									if ( !external_tor ){
+									if ( !settings.external_tor ){
 										
 										if ( !isConnected()){
 											
@@ -385,17 +499,17 @@ TorPlugin
 									
 									URL original_url = new URL( test_url_param.getValue());
 									
-									Object[] proxy_details = getActiveProxy( "Test", original_url.getHost(), true, true );
+									ActiveProxy proxy_details = getActiveProxy( "Test", original_url.getHost(), true, true, 0 );
 									
 									if ( proxy_details == null ){
 										
 										throw( new Exception( "Failed to setup proxy" ));
 									}
 									
-									Proxy 	proxy 			= (Proxy)proxy_details[0];
+									Proxy 	proxy 			= proxy_details.getProxy();
 									
-									temp_host		= (String)proxy_details[1];
-									rewrite_host	= (String)proxy_details[2];
+									temp_host		= proxy_details.getIntermediateHost();
+									rewrite_host	= proxy_details.getHost();
 									
 									boolean	ok = false;
 									
@@ -709,32 +823,51 @@ TorPlugin
 					parameterChanged(
 						Parameter param )
 					{
-						plugin_enabled 		= enable_param.getValue();
-						external_tor		= ext_tor_param.getValue();
-						start_on_demand		= start_on_demand_param.getValue();
-						stop_on_idle		= stop_on_idle_param.getValue();
-						prompt_on_use		= prompt_on_use_param.getValue();
-						prompt_skip_vuze	= prompt_skip_vuze_param.getValue();
-						debug_server 		= debug_server_param.getValue();
-						
-						if ( plugin_enabled ){
-							
-							if ( external_tor ){
-								
-								active_socks_host	= external_socks_host 	= ext_socks_host_param.getValue();
-								active_socks_port 	= external_socks_port	= ext_socks_port_param.getValue();
-								
-							}else{
-								
-								active_socks_host	= internal_socks_host;
-								active_socks_port 	= internal_socks_port;
-							}
-						}else{
+						boolean	plugin_enabled 		= enable_param.getValue();
+						boolean	external_tor		= ext_tor_param.getValue();
+						boolean	start_on_demand		= start_on_demand_param.getValue();
+						boolean	prompt_on_use		= prompt_on_use_param.getValue();
+						boolean	relay_nio			= relay_nio_param.getValue();
+						
+						Settings s = 
+							new Settings(
+								plugin_enabled,
+								external_tor,
+								start_on_demand,
+								stop_on_idle_param.getValue(),
+								prompt_on_use,
+								prompt_skip_vuze_param.getValue(),
+								debug_server_param.getValue(),
+								relay_nio,
+								socks_pool_param.getValue(),
+								optimistic_param.getValue(),
+								hedge_param.getValue(),
+								domain_backoff_param.getValue(),
+								ext_socks_host_param.getValue(),
+								ext_socks_port_param.getValue(),
+								internal_socks_host,
+								internal_socks_port,
+								max_connections_param.getValue());
+						
+						settings = s;
+						
+						isolation_policy.setPolicy( isolation_param.getValue());
+						
+						if ( !( s.relay_nio && s.socks_pool_enabled )){
 							
-							active_socks_host	= "127.0.0.1";
-							active_socks_port 	= 0;
+							destroySOCKSPool();
 						}
 						
+						int[]	class_rates = new int[ TorPluginRateLimiter.TC_OTHER + 1 ];
+						
+						class_rates[ TorPluginRateLimiter.TC_BULK ] = rate_bulk_param.getValue()*1024;
+						
+						rate_limiter.setLimits( rate_global_param.getValue()*1024, rate_host_param.getValue()*1024, class_rates );
+						
+						socks_idle_group.setCapacity( s.max_socks_connections );
+						
+						connect_scheduler.setLimits( connect_active_param.getValue(), connect_queued_param.getValue(), connect_wait_param.getValue()*1000L );
+						
 						start_on_demand_param.setEnabled( plugin_enabled && !external_tor );
 						stop_on_idle_param.setEnabled( plugin_enabled && !external_tor && start_on_demand );
 						
@@ -745,50 +878,29 @@ TorPlugin
 						dr_info_param.setEnabled( plugin_enabled );
 						dr_param.setEnabled( plugin_enabled );
 						
-						String 	domain_rewrites = dr_param.getValue();
-						
-						synchronized( TorPlugin.this ){
-							
-							domain_rewrite_map.clear();
-							
-							String[] lines = domain_rewrites.split( "\n" );
-							
-							for ( String line: lines ){
-								
-								line = line.trim();
-								
-								if ( line.length() > 0 ){
-									
-									String[] bits = line.split( "=" );
-									
-									if ( bits.length != 2 ){
-										
-										log( "Invalid domain rewrite entry: " + line );
-										
-									}else{
-										
-										String from = bits[0].trim();
-										String to	= bits[1].trim();
-										
-										if ( ! ( from.contains( "." ) && to.contains( "." ))){
-											
-											log( "Invalid domain rewrite entry: " + line );
-											
-										}else{
-											
-											domain_rewrite_map.put( from, to );
-										}
-									}
-								}
-							}
-						}
-						
 						control_port_param.setEnabled( plugin_enabled && !external_tor );
 						socks_port_param.setEnabled( plugin_enabled && !external_tor );
+						unix_sockets_param.setEnabled( plugin_enabled && !external_tor && TorPluginUnixSockets.isSupported());
 						services_enable_param.setEnabled( plugin_enabled && !external_tor );
 						
 						debug_server_param.setEnabled( plugin_enabled && !external_tor );
 						
+						relay_nio_param.setEnabled( plugin_enabled );
+						socks_pool_param.setEnabled( plugin_enabled && relay_nio );
+						optimistic_param.setEnabled( plugin_enabled && relay_nio );
+						hedge_param.setEnabled( plugin_enabled && relay_nio );
+						domain_backoff_param.setEnabled( plugin_enabled );
+						isolation_param.setEnabled( plugin_enabled );
+						
+						rate_global_param.setEnabled( plugin_enabled );
+						rate_host_param.setEnabled( plugin_enabled );
+						rate_bulk_param.setEnabled( plugin_enabled );
+						
+						max_connections_param.setEnabled( plugin_enabled );
+						connect_active_param.setEnabled( plugin_enabled );
+						connect_queued_param.setEnabled( plugin_enabled );
+						connect_wait_param.setEnabled( plugin_enabled );
+						
 						ext_tor_param.setEnabled( plugin_enabled );
 						ext_socks_host_param.setEnabled( plugin_enabled && external_tor );
 						ext_socks_port_param.setEnabled( plugin_enabled && external_tor );
@@ -818,13 +930,45 @@ TorPlugin
 			prompt_on_use_param.addListener( enabler_listener );
 			prompt_skip_vuze_param.addListener( enabler_listener );
 			dr_param.addListener( enabler_listener );
+			
+			dr_param.addListener(
+				new ParameterListener()
+				{
+					@Override
+					public void
+					parameterChanged(
+						Parameter param )
+					{
+						setDomainRewrites( dr_param.getValue());
+					}
+				});
+			
 			debug_server_param.addListener( enabler_listener );
+			relay_nio_param.addListener( enabler_listener );
+			socks_pool_param.addListener( enabler_listener );
+			optimistic_param.addListener( enabler_listener );
+			hedge_param.addListener( enabler_listener );
+			domain_backoff_param.addListener( enabler_listener );
+			isolation_param.addListener( enabler_listener );
+			rate_global_param.addListener( enabler_listener );
+			rate_host_param.addListener( enabler_listener );
+			rate_bulk_param.addListener( enabler_listener );
+			max_connections_param.addListener( enabler_listener );
+			connect_active_param.addListener( enabler_listener );
+			connect_queued_param.addListener( enabler_listener );
+			connect_wait_param.addListener( enabler_listener );
 			ext_tor_param.addListener( enabler_listener );
+			ext_socks_host_param.addListener( enabler_listener );
+			ext_socks_port_param.addListener( enabler_listener );
 			
 			enabler_listener.parameterChanged( null );
 			
-			log( "Plugin enabled=" + plugin_enabled + ", server=" + (external_tor?"external":"internal") + ", socks port=" + active_socks_port );
-			log( "Domain rewrites: " + domain_rewrite_map );
+			setDomainRewrites( dr_param.getValue());
+			
+			Settings s = settings;
+			
+			log( "Plugin enabled=" + s.plugin_enabled + ", server=" + (s.external_tor?"external":"internal") + ", socks port=" + s.active_socks_port );
+			log( "Domain rewrites: " + domain_rewrites );
 			
 			readPromptDecisions();
 
@@ -846,6 +990,10 @@ TorPlugin
 			config_file = new File( plugin_install_dir, "config.txt" );
 			
 			plugin_dir 	= config_file.getParentFile();
+			
+			proxy_history_file = new File( plugin_dir, "history.dat" );
+			
+			readProxyHistory();
 					
 				// copy files into place
 			
@@ -910,6 +1058,27 @@ TorPlugin
 			
 			services_dir.mkdirs();
 			
+			if ( use_unix_sockets ){
+					
+					// Tor insists on the socket directory being private, which the data dir is
+				
+				unix_control_address	= TorPluginUnixSockets.getAddress( new File( data_dir, "control.sock" ));
+				unix_socks_address		= TorPluginUnixSockets.getAddress( new File( data_dir, "socks.sock" ));
+				
+				if ( unix_control_address == null || unix_socks_address == null ){
+					
+					log( "Unix domain socket path too long, using TCP" );
+					
+					unix_control_address	= null;
+					unix_socks_address		= null;
+				}
+			}
+			
+			if ( unix_control_address == null && internal_control_port == 0 ){
+				
+				internal_control_port = allocatePort( CONTROL_PORT_DEFAULT );
+			}
+				
 				// see if server already running, unlikely due to the way we arrange for it to die if we do but you never know
 			
 			ControlConnection control = new ControlConnection( null, data_dir, internal_control_port, internal_socks_port );
@@ -936,7 +1105,7 @@ TorPlugin
 						
 						SystemTime.registerClockChangeListener( TorPlugin.this );
 						
-						if ( plugin_enabled ){
+						if ( settings.plugin_enabled ){
 							
 							init();
 						}
@@ -950,6 +1119,8 @@ TorPlugin
 						
 						SystemTime.unregisterClockChangeListener( TorPlugin.this );
 						
+						writeProxyHistory();
+						
 						synchronized( TorPlugin.this ){
 							
 							unloaded = true;
@@ -1052,7 +1223,17 @@ TorPlugin
 		List<String>	required_config_lines = new ArrayList<String>();
 		
 		required_config_lines.add( "SocksPort 127.0.0.1:" + internal_socks_port );
-		required_config_lines.add( "ControlPort 127.0.0.1:" + internal_control_port );
+		
+		if ( unix_control_address != null ){
+			
+			required_config_lines.add( "SocksPort unix:\"" + new File( data_dir, "socks.sock" ).getAbsolutePath() + "\"" );
+			required_config_lines.add( "ControlPort unix:\"" + new File( data_dir, "control.sock" ).getAbsolutePath() + "\"" );
+		
+		}else{
+			
+			required_config_lines.add( "ControlPort 127.0.0.1:" + internal_control_port );
+		}
+		
 		required_config_lines.add( "CookieAuthentication 1" );
 		required_config_lines.add( "DataDirectory ." + File.separator + data_dir.getName());
 		required_config_lines.add( "GeoIPFile ." + File.separator + "geoip" );
@@ -1236,8 +1417,8 @@ TorPlugin
 		
 		boolean installed = isBrowserPluginInstalled();
 					
-		browser_install_param.setEnabled( plugin_enabled && !installed );
-		browser_launch_param.setEnabled( plugin_enabled && installed );
+		browser_install_param.setEnabled( settings.plugin_enabled && !installed );
+		browser_launch_param.setEnabled( settings.plugin_enabled && installed );
 		
 		return( installed );
 	}
@@ -1332,7 +1513,9 @@ TorPlugin
 	{
 			// see if we should connect at start of day
 		
-		if ( plugin_enabled && !( unloaded || external_tor || ( start_on_demand && !services_enable_param.getValue()))){
+		Settings s = settings;
+		
+		if ( s.plugin_enabled && !( unloaded || s.external_tor || ( s.start_on_demand && !services_enable_param.getValue()))){
 			
 			prepareConnection( "Startup" );
 		}
@@ -1349,13 +1532,13 @@ TorPlugin
 				perform(
 					TimerEvent event ) 
 				{
-					if ( proxy_request_count.get() > 0 || http_proxy_map.size() > 0 ){
+					if ( proxy_request_count.get() > 0 || http_proxy_map.size() > 0 || connect_scheduler.hasActivity() || route_table.hasActivity()){
 						
-						String stats = "Proxy requests=" + proxy_request_count.get() + ", ok=" + proxy_request_ok.get() + ", failed=" + proxy_request_failed.get();
+						String stats = "Proxy requests=" + proxy_request_count.get() + ", ok=" + proxy_request_ok.get() + ", failed=" + proxy_request_failed.get() + ", leases=" + proxy_lease_count.get();
 						
 						List<TorPluginHTTPProxy>	proxies;
 						
-						synchronized( TorPlugin.this ){
+						synchronized( http_proxy_map ){
 							
 							proxies = new ArrayList<TorPluginHTTPProxy>( http_proxy_map.values());
 						}
@@ -1370,6 +1553,62 @@ TorPlugin
 							}
 						}
 						
+						TorPluginRelayEngine engine = relay_engine;
+						
+						if ( engine != null ){
+							
+							stats += "; Relay {" + engine.getString() + ", SOCKS pending=" + TorPluginSOCKSClient.getPendingCount() + "}";
+						}
+						
+						TorPluginSOCKSPool pool = socks_pool;
+						
+						if ( pool != null && pool.hasActivity()){
+							
+							stats += "; SOCKS pool {" + pool.getString() + "}";
+						}
+						
+						if ( connect_scheduler.hasActivity()){
+							
+							stats += "; Connects {" + connect_scheduler.getString() + "}";
+						}
+						
+						if ( route_table.hasActivity()){
+							
+							stats += "; Routes {" + route_table.getString() + "}";
+						}
+						
+						if ( idle_reaper.hasActivity()){
+							
+							stats += "; Idle {" + idle_reaper.getString() + "}";
+						}
+						
+						if ( hedges_started.get() > 0 ){
+							
+							stats += "; Hedging {delay=" + getHedgeDelay() + "ms, started=" + hedges_started.get() + ", won=" + hedges_won.get() + "}";
+						}
+						
+						if ( rate_limiter.isEnabled()){
+							
+							stats += "; Limits {" + rate_limiter.getString() + "}";
+						}
+						
+						if ( buffer_pool.hasActivity()){
+							
+							stats += "; Buffers {" + buffer_pool.getString() + "}";
+						}
+						
+						if ( stream_totals.getStreamCount() > 0 ){
+							
+							stats += "; Streams {" + stream_totals.getString() + "}";
+							
+							ProxyHistory slowest = getSlowestHost();
+							
+							if ( slowest != null ){
+								
+								stats += "; Slowest {" + slowest.getHost() + ": " + slowest.getStreamStats().getString() + "}";
+							}
+						}
+						
 						if ( !stats.equals( last_stats )){
 							
 							last_stats = stats;
@@ -1381,6 +1620,20 @@ TorPlugin
 					checkServerStatus();
 				}
 			});
+		
+		SimpleTimer.addPeriodicEvent(
+			"TP:historySaver",
+			HISTORY_SAVE_PERIOD,
+			new TimerEventPerformer()
+			{
+				@Override
+				public void
+				perform(
+					TimerEvent event ) 
+				{
+					writeProxyHistory();
+				}
+			});
 	}
 	
 	private AESemaphore	server_check_sem = new AESemaphore( "checksem", 1 );
@@ -1395,15 +1648,24 @@ TorPlugin
 			boolean	should_be_connected 	= false;
 			boolean	should_be_reloaded	 	= false;
 			
+			Settings s = settings;
+			
+			boolean	http_proxies_idle;
+			
+			synchronized( http_proxy_map ){
+				
+				http_proxies_idle = http_proxy_map.isEmpty();
+			}
+			
 			synchronized( TorPlugin.this ){
 				
-				if ( plugin_enabled && !( unloaded || external_tor )){
+				if ( s.plugin_enabled && !( unloaded || s.external_tor )){
 					
-					if ( start_on_demand && !services_enable_param.getValue()){
+					if ( s.start_on_demand && !services_enable_param.getValue()){
 						
-						if ( stop_on_idle ){
+						if ( s.stop_on_idle ){
 							
-							if ( http_proxy_map.size() == 0 ){
+							if ( http_proxies_idle ){
 							
 								should_be_disconnected = SystemTime.getMonotonousTime() - last_use_time > STOP_ON_IDLE_TIME;
 							}
@@ -1430,25 +1692,6 @@ TorPlugin
 					
 					should_be_disconnected = true;
 				}
-				
-				if ( proxy_map.size() > 0 ){
-					
-					long now = SystemTime.getMonotonousTime();
-					
-					Iterator<ProxyMapEntry>	it = proxy_map.values().iterator();
-					
-					while( it.hasNext()){
-						
-						ProxyMapEntry entry = it.next();
-						
-						if ( now - entry.getCreateTime() > 10*60*1000 ){
-							
-							it.remove();
-							
-							Debug.out( "Removed orphaned proxy entry for " + entry.getHost() + ", " + entry.getCreator());
-						}
-					}
-				}
 			}
 			
 			if ( should_be_reloaded ){
@@ -1530,7 +1773,7 @@ TorPlugin
 								break;
 							}
 						
-							if ( debug_server ){
+							if ( settings.debug_server ){
 							
 								log( "> " + line );
 							}
@@ -1650,10 +1893,21 @@ TorPlugin
 		int			max_wait_millis,
 		boolean		async )
 	{
+		long	start = SystemTime.getMonotonousTime();
+		
 		if ( !init_sem.reserve( max_wait_millis )){
 			
 			return( null );
 		}
+			
+			// the usual case, already up
+		
+		ControlConnection	existing = current_connection;
+		
+		if ( existing != null && existing.isConnected()){
+			
+			return( existing );
+		}
 		
 		final AESemaphore sem;
 		
@@ -1764,7 +2018,21 @@ TorPlugin
 			
 		}else{
 			
-			sem.reserve( max_wait_millis );
+			if ( max_wait_millis == 0 ){
+				
+				sem.reserve();
+			
+			}else{
+					
+					// the wait for initialisation counts against the caller's limit
+				
+				long	remaining = max_wait_millis - ( SystemTime.getMonotonousTime() - start );
+				
+				if ( remaining > 0 ){
+					
+					sem.reserve( remaining );
+				}
+			}
 			
 			synchronized( this ){
 	
@@ -1952,11 +2220,17 @@ TorPlugin
 				plugin_ui = null;
 			}
 			
-			if ( socks_proxy != null ){
-				
-				socks_proxy.destroy();
+			synchronized( socks_proxies ){
 				
-				socks_proxy = null;
+				for ( int i=0;i<socks_proxies.length;i++){
+					
+					if ( socks_proxies[i] != null ){
+						
+						socks_proxies[i].destroy();
+						
+						socks_proxies[i] = null;
+					}
+				}
 			}
 			
 			if ( filtering_proxy != null ){
@@ -1965,9 +2239,32 @@ TorPlugin
 				
 				filtering_proxy = null;
 			}
-		}
-		
-		if ( config_model != null ){
+			
+			if ( socks_pool != null ){
+				
+				socks_pool.destroy();
+				
+				socks_pool = null;
+			}
+			
+			proxy_expiry.destroy();
+			
+			if ( prompt_decisions != null ){
+				
+				prompt_decisions.flush();
+			}
+			
+			writeProxyHistory();
+			
+			if ( relay_engine != null ){
+				
+				relay_engine.destroy();
+				
+				relay_engine = null;
+			}
+		}
+		
+		if ( config_model != null ){
 			
 			config_model.destroy();
 			
@@ -1985,9 +2282,11 @@ TorPlugin
 	{
 		String	msg;
 		
-		if ( prompt_on_use ){
+		Settings s = settings;
 		
-			msg = (prompt_skip_vuze?"Allow Vuze; ":"") + prompt_decisions;
+		if ( s.prompt_on_use ){
+			
+			msg = (s.prompt_skip_vuze?"Allow Vuze; ":"") + prompt_decisions.getString();
 			
 		}else{
 			
@@ -2007,11 +2306,9 @@ TorPlugin
 	{
 		synchronized( this ){
 			
-			if ( prompt_decisions.size() > 0 ){
-			
-				prompt_decisions.clear();
+			if ( prompt_decisions.reset()){
 			
-				writePromptDecisions();
+				promptDecisionsChanged();
 			}
 		}
 	}
@@ -2021,49 +2318,18 @@ TorPlugin
 	{
 		synchronized( this ){
 			
-			String	str = plugin_config.getPluginStringParameter( "prompt.decisions", "" );
-			
-			String[] bits = str.split( "," );
-			
-			prompt_decisions.clear();
-			
-			for ( String bit: bits ){
-				
-				bit = bit.trim();
-				
-				if ( bit.length() > 0 ){
-				
-					prompt_decisions.add( bit );
-				}
-			}
-			
-			prompt_reset_param.setEnabled( prompt_decisions.size() > 0);
+			prompt_decisions.read();
 			
-			logPromptDecisions();
+			promptDecisionsChanged();
 		}
 	}
 	
 	private void
-	writePromptDecisions()
+	promptDecisionsChanged()
 	{
 		synchronized( this ){
 			
-			String str = "";
-			
-			for ( String s: prompt_decisions ){
-				
-				str += (str.length()==0?"":",") + s;
-			}
-			
 			prompt_reset_param.setEnabled( prompt_decisions.size() > 0);
-
-			plugin_config.setPluginParameter( "prompt.decisions", str );
-			
-			try{
-				plugin_config.save();
-				
-			}catch( Throwable e ){
-			}
 			
 			logPromptDecisions();
 		}
@@ -2078,55 +2344,27 @@ TorPlugin
 	getPromptDecision(
 		String		host )
 	{
-		synchronized( this ){
+		Settings s = settings;
+		
+		if ( s.prompt_on_use ){
 			
-			if ( prompt_on_use ){
-	
-				if ( prompt_skip_vuze && Constants.isAppDomain( host )){
-				
-					return( 0 );
-					
-				}else{
-				
-					if ( prompt_decisions.contains( "^*" )){
-					
-						return( 2 );
-						
-					}else if ( prompt_decisions.contains( host )){
-						
-						return( 0 );
-					
-					}else if ( prompt_decisions.contains( "^" + host )){
-						
-						return( 2 );
-					}
-					
-					
-					String[] bits = host.split( "\\." );
-					
-					int	bits_num = bits.length;
-					
-					if ( bits_num > 2 ){
-						
-						String wild =  "*." + bits[bits_num-2] + "." + bits[bits_num-1];
-						
-						if ( prompt_decisions.contains( wild )){
-							
-							return( 0 );
-						
-						}else if ( prompt_decisions.contains( "^" + wild )){
-							
-							return( 2 );
-						}
-					}
-				}
+			if ( s.prompt_skip_vuze && Constants.isAppDomain( host )){
+			
+				return( 0 );
+			}
+			
+			Boolean	decision = prompt_decisions.getDecision( host );
+			
+			if ( decision == null ){
 				
 				return( 1 );
-				
-			}else{
-				
-				return( 0 );
 			}
+			
+			return( decision?0:2 );
+		
+		}else{
+			
+			return( 0 );
 		}
 	}
 	
@@ -2149,34 +2387,15 @@ TorPlugin
 					
 				}else{
 					
-					prompt_decisions.clear();
-					
-					prompt_decisions.add( "^*" );
+					prompt_decisions.setDecision( host, false );
 					
-					writePromptDecisions();
+					promptDecisionsChanged();
 				}
 			}else{
 				
-				if ( host.startsWith( "*" )){
-					
-					String term = host.substring( 1 );
-					
-					Iterator<String> it = prompt_decisions.iterator();
-					
-					while( it.hasNext()){
-						
-						String entry = it.next();
-						
-						if ( entry.endsWith( term )){
-							
-							it.remove();
-						}
-					}
-				}
-				
-				prompt_decisions.add( accepted?host:("^"+host));	
+				prompt_decisions.setDecision( host, accepted );
 				
-				writePromptDecisions();
+				promptDecisionsChanged();
 			}
 		}
 	}
@@ -2255,7 +2474,7 @@ TorPlugin
 								// we're prompting the user, let's assume they're going to go ahead so
 								// we should warm up the server if not yet up
 							
-							if ( !external_tor ){
+							if ( !settings.external_tor ){
 								
 								prepareConnection( "About to prompt" );
 							}
@@ -2340,100 +2559,92 @@ TorPlugin
 		}
 	}
 	
-	private String
-	rewriteHost(
-		String		host,
-		boolean		do_onions )
+		/**
+		 * Rules are compiled here rather than on lookup and only when they actually change. The
+		 * compiled rules (and the results cached with them) are swapped in as a whole
+		 */
+	
+	private void
+	setDomainRewrites(
+		String		text )
 	{
-		if ( do_onions ){
+		synchronized( this ){
 			
-			if ( host.equals( "version.biglybt.com" )){
-				
-				return( "yh6p7w5v4puo36vumdjabo4lggit4n6iua5l7eyonyhexg4lkj2n6yad.onion" );
-				
-			}else if ( host.equals( "plugins.biglybt.com" )){
-				
-				return( "xp5qetgwtj6w62sutz2xnjpx2l7j4z56mbt7xr7wmejerbg67g7nwfyd.onion" );
+			if ( text.equals( domain_rewrites_text )){
 				
-			}else if ( host.equals( "i2pboot.biglybt.com" )){
-				
-				return( "547reb67onr5bq2zb4n77qtrk2gzyskeln23qyx7m4v76splsohuhvad.onion" );
+				return;
 			}
+			
+			domain_rewrites_text = text;
 		}
-					
-		String[]	bits = host.split( "\\." );
 		
-		synchronized( this ){
+		List<String>	invalid = new ArrayList<String>();
 		
-			for ( int i=bits.length-1; i >= 0; i-- ){
-				
-				String sub_host = "";
+		TorPluginDomainRewrites rewrites = new TorPluginDomainRewrites( text, invalid );
+		
+		for ( String line: invalid ){
+			
+			log( "Invalid domain rewrite entry: " + line );
+		}
+		
+		synchronized( this ){
 				
-				for ( int j=i; j<=bits.length-1; j++ ){
-					
-					sub_host += (sub_host.length()==0?"":".") + bits[j];
-				}
+				// a later change may have been compiled while we were
 			
-				String target = domain_rewrite_map.get( sub_host );
+			if ( text.equals( domain_rewrites_text )){
 				
-				if ( target != null ){
-					
-					if ( i > 0 ){
-						
-						String prefix = "";
-						
-						for ( int j=0;j<i;j++){
-							
-							prefix += (j==0?"":".") + bits[j];
-						}
-						
-						target = prefix + "." + target;
-					}
-											
-					// log( "Rewriting " + host + " to " + target );
-					
-					return( target );
-				}
+				domain_rewrites = rewrites;
 			}
 		}
-		
-		return( host );
 	}
 	
 	private String
-	getActiveSocksHost()
+	rewriteHost(
+		String		host,
+		boolean		do_onions )
 	{
-		if ( !external_tor ){
-			
-			getConnection( 30*1000, false );
-		}
-		
-		return( active_socks_host );
+		return( domain_rewrites.rewrite( host, do_onions ));
 	}
 	
-	private int
-	getActiveSocksPort()
+		/**
+		 * @return the current settings, once the internal server is running if that's in use
+		 */
+	
+	private Settings
+	getActiveSettings()
 	{
-		if ( !external_tor ){
+		if ( !settings.external_tor ){
 			
 			getConnection( 30*1000, false );
 		}
 		
-		return( active_socks_port );
+		return( settings );
 	}
 	
-	private Object[]
+		/**
+		 * Per request this allocates the Proxy, its ProxyMapEntry and expiry timeout, the result and,
+		 * for intermediate proxies, the mapping and its address. These are all per-request state (the
+		 * Proxy identifies the request in setProxyStatus) so can't be shared or cached
+		 * @param lease_ttl	0 for a single use proxy, otherwise the time the proxy is leased for
+		 */
+	
+	private ActiveProxy
 	getActiveProxy(
 		String		reason,
 		String		host,
 		boolean		requires_intermediate,
-		boolean		force )
+		boolean		force,
+		long		lease_ttl )
 	{
-		if ( !plugin_enabled || unloaded ){
+		Settings s = settings;
+		
+		if ( !s.plugin_enabled || unloaded ){
 			
 			return( null );
 		}
 		
+		long	deadline = SystemTime.getMonotonousTime() + SOCKS_CONNECT_TIMEOUT;
+		
 		if ( !force ){
 
 			if ( !isHostAccepted( reason, host )){
@@ -2445,14 +2656,23 @@ TorPlugin
 		String	socks_host;
 		int		socks_port;
 		
-		if ( external_tor ){
+		if ( s.external_tor ){
 
-			socks_host	= external_socks_host;
-			socks_port 	= active_socks_port;
+			socks_host	= s.external_socks_host;
+			socks_port 	= s.external_socks_port;
 			
 		}else{
 			
-			ControlConnection con = getConnection( 30*1000, false );
+			long	remaining = deadline - SystemTime.getMonotonousTime();
+			
+			if ( remaining <= 0 ){
+					
+					// e.g. the user sat on the prompt
+				
+				return( null );
+			}
+			
+			ControlConnection con = getConnection((int)Math.min( remaining, CONTROL_CONNECT_WAIT ), false );
 	
 			if ( con == null ){
 		
@@ -2465,12 +2685,15 @@ TorPlugin
 		
 		if ( requires_intermediate ){
 		
-			String 	intermediate_host;
-			int		intermediate_port;
-	
-			long now =  SystemTime.getMonotonousTime() ;
+			InetSocketAddress	intermediate_address;
 
-			synchronized( this ){
+			synchronized( socks_proxies ){
+				
+				int	shard = next_socks_proxy;
+				
+				next_socks_proxy = ( shard + 1 ) % socks_proxies.length;
+				
+				SOCKSProxy socks_proxy = socks_proxies[shard];
 				
 				if ( socks_proxy == null ){
 					
@@ -2480,7 +2703,7 @@ TorPlugin
 							return( null );
 						}
 						
-						socks_proxy = new SOCKSProxy( 0, false, reason );
+						socks_proxy = socks_proxies[shard] = new SOCKSProxy( 0, false, reason );
 					
 					}catch( Throwable e ){
 					
@@ -2488,156 +2711,500 @@ TorPlugin
 					}
 				}
 				
-				intermediate_port = socks_proxy.getPort();
+				intermediate_address = socks_proxy.getAddress();
+			}
+			
+			TorPluginIntermediateHosts.Mapping intermediate = 
+				intermediate_hosts.allocate( host, socks_host, socks_port, TorPluginRateLimiter.getTrafficClass( reason ), deadline );
+			
+			if ( intermediate == null ){
 				
-				while( true ){
-					
-					int	address = 0x0a000000 + RandomUtils.nextInt( 0x00ffffff );
-									
-					intermediate_host = PRHelpers.intToAddress( address );
-					
-					if ( !intermediate_host_map.containsKey( intermediate_host )){						
-						
-						Object[] entry = new Object[]{ host, socks_host, socks_port, now };
-						
-						intermediate_host_map.put( intermediate_host, entry );
-						
-						if ( intermediate_host_old_map.size() > 16 ){
-							
-							try{
-								Iterator<Object[]> it = intermediate_host_old_map.values().iterator();
-								
-								while( it.hasNext()){
-									
-									if ( now - (Long)it.next()[3] > 2*60*1000 ){
-										
-										it.remove();
-									}
-								}
-							}catch( Throwable e ){
-								
-								Debug.out( e );
-							}
-						}
-						
-						intermediate_host_old_map.put( intermediate_host, entry );
-						
-						break;
-					}
-				}
+				Debug.out( "Intermediate addresses exhausted" );
+				
+				return( null );
 			}
-		
-			Proxy proxy = new Proxy( Proxy.Type.SOCKS, new InetSocketAddress( "127.0.0.1", intermediate_port ));	
 			
-			synchronized( this ){
-						
-				proxy_map.put( proxy, new ProxyMapEntry( host, intermediate_host ));
+			if ( lease_ttl > 0 ){
+				
+				intermediate.setLeased();
 			}
+				
+				// each request gets its own Proxy as setProxyStatus identifies the request by it,
+				// the address is shared
+			
+			Proxy proxy = new Proxy( Proxy.Type.SOCKS, intermediate_address );	
+			
+			addProxyMapEntry( new ProxyMapEntry( proxy, host, intermediate, lease_ttl ));
 		
 			last_use_time	= SystemTime.getMonotonousTime();
 	
 			proxy_request_count.incrementAndGet();
 					
-			return( new Object[]{ proxy, intermediate_host, rewriteHost( host, false ) });
+			return( new ActiveProxy( proxy, intermediate.getAddress(), rewriteHost( host, false )));
 			
 		}else{
 			
-			Proxy proxy = new Proxy( Proxy.Type.SOCKS, new InetSocketAddress( socks_host, socks_port ));	
+			InetSocketAddress	address = direct_socks_address;
 			
-			synchronized( this ){
-						
-				proxy_map.put( proxy, new ProxyMapEntry( host, null ));
+			if ( address == null || address.getPort() != socks_port || !address.getHostString().equals( socks_host )){
+				
+				address = direct_socks_address = new InetSocketAddress( socks_host, socks_port );
 			}
+			
+			Proxy proxy = new Proxy( Proxy.Type.SOCKS, address );	
+			
+			addProxyMapEntry( new ProxyMapEntry( proxy, host, null, lease_ttl ));
 		
 			last_use_time	= SystemTime.getMonotonousTime();
 	
 			proxy_request_count.incrementAndGet();
 					
-			return( new Object[]{ proxy, rewriteHost( host, true ) });
+			return( new ActiveProxy( proxy, null, rewriteHost( host, true )));
 		}
 	}
 	
-	private boolean
-	checkProxyHistoryOK(
-		String		host )
+	private static class
+	ActiveProxy
 	{
-		synchronized( this ){
-
-			ProxyHistory history = proxy_history.get( host );
-
-			if ( history == null ){
-				
-				history = new ProxyHistory( host );
-				
-				proxy_history.put( host, history );
-			}
-			
-			return( history.canConnect());
+		private final Proxy		proxy;
+		private final String	intermediate_host;
+		private final String	host;
+		
+		private
+		ActiveProxy(
+			Proxy		_proxy,
+			String		_intermediate_host,
+			String		_host )
+		{
+			proxy				= _proxy;
+			intermediate_host	= _intermediate_host;
+			host				= _host;
+		}
+		
+		private Proxy
+		getProxy()
+		{
+			return( proxy );
 		}
-	}
-	
-	private void
-	updateProxyHistory(
-		String		host,
-		boolean		ok )
-	{
-		synchronized( this ){
-			
-			ProxyHistory history = proxy_history.get( host );
 			
-			if ( history == null ){
-				
-				history = new ProxyHistory( host );
-				
-				proxy_history.put( host, history );
-			}
+			/**
+			 * @return the 10.x.x.x address to use in place of the host, null for direct proxies
+			 */
+		
+		private String
+		getIntermediateHost()
+		{
+			return( intermediate_host );
+		}
 			
-			history.setOutcome( ok );
+			/**
+			 * @return the host the caller should connect to, possibly rewritten
+			 */
+		
+		private String
+		getHost()
+		{
+			return( host );
 		}
 	}
 	
-		// IPC stuff
+		/**
+		 * Channel-only users can reach the internal server's SOCKS port over its unix socket
+		 */
 	
-	public Map<String,Object>
-	getConfig()
+	private SocketAddress
+	getChannelSOCKSAddress(
+		InetSocketAddress	address )
 	{
-		Map<String,Object>	config = new HashMap<String,Object>();
+		SocketAddress	unix_address = unix_socks_address;
 		
-		if ( filtering_proxy != null ){
-			
-			config.put( "socks_host", "127.0.0.1" );
-			config.put( "socks_port", filtering_proxy.getPort());
-
-		}else{
+		if ( 	unix_address != null && !settings.external_tor &&
+				address.getPort() == internal_socks_port &&
+				address.getHostString().equals( internal_socks_host )){
 			
-			config.put( "socks_host", external_tor?external_socks_host:internal_socks_host );
-			config.put( "socks_port", external_tor?external_socks_port:internal_socks_port );
+			return( unix_address );
 		}
 		
-		config.put( "i2p_socks_host", filtering_i2p_host );
-		config.put( "i2p_socks_port", filtering_i2p_port );
-
-		return( config );
+		return( address );
 	}
 	
-	public Map<String,Object>
-	setConfig(
-		Map<String,Object>		config )
+	private TorPluginRelayEngine
+	getRelayEngine()
+		
+		throws IOException
 	{
-		String	i2p_host	= (String)config.get( "i2p_socks_host" );
-		Number	i2p_port 	= (Number)config.get( "i2p_socks_port" );
+		TorPluginRelayEngine	engine = relay_engine;
+		
+		if ( engine != null ){
+			
+			return( engine );
+		}
+		
+		synchronized( this ){
+			
+			if ( unloaded ){
+				
+				throw( new IOException( "Plugin unloaded" ));
+			}
+			
+			if ( relay_engine == null ){
+				
+				relay_engine = new TorPluginRelayEngine( "TorRelay", RELAY_ENGINE_LOOPS );
+			}
+			
+			return( relay_engine );
+		}
+	}
+		
+		/**
+		 * @return null if pooling is disabled
+		 */
+	
+	private TorPluginSOCKSPool
+	getSOCKSPool()
+		
+		throws IOException
+	{
+		if ( !settings.socks_pool_enabled ){
+			
+			return( null );
+		}
+		
+		TorPluginSOCKSPool	pool = socks_pool;
+		
+		if ( pool != null ){
+			
+			return( pool );
+		}
+		
+		synchronized( this ){
+			
+			if ( socks_pool == null ){
+				
+				socks_pool = new TorPluginSOCKSPool( getRelayEngine());
+			}
+			
+			return( socks_pool );
+		}
+	}
+	
+	private void
+	destroySOCKSPool()
+	{
+		TorPluginSOCKSPool	pool;
+		
+		synchronized( this ){
+			
+			pool = socks_pool;
+			
+			socks_pool = null;
+		}
+		
+		if ( pool != null ){
+			
+			pool.destroy();
+		}
+	}
+	
+	private boolean
+	checkProxyHistoryOK(
+		String		host )
+	{
+		if ( settings.domain_backoff ){
+				
+				// check the domain first so a host's retry isn't used up while the domain is backed off
+			
+			if ( !proxy_history.getOrCreate( getHistoryDomainKey( host ), proxy_history_factory ).canConnect()){
+				
+				return( false );
+			}
+		}
+		
+		return( proxy_history.getOrCreate( host, proxy_history_factory ).canConnect());
+	}
+		
+		/**
+		 * Domain-wide history is kept alongside the per-host entries, the '*.' prefix keeps the
+		 * keys apart
+		 */
+	
+	private static String
+	getHistoryDomainKey(
+		String		host )
+	{
+		return( "*." + TorPluginIsolationPolicy.getRegistrableDomain( host ));
+	}
+	
+	private void
+	updateProxyHistory(
+		String		host,
+		boolean		ok )
+	{
+		updateProxyHistory( host, ok?1:0, ok?0:1 );
+	}
+	
+	private void
+	updateProxyHistory(
+		String		host,
+		int			good,
+		int			bad )
+	{
+		proxy_history.getOrCreate( host, proxy_history_factory ).setOutcomes( good, bad );
+		
+		if ( settings.domain_backoff ){
+			
+			proxy_history.getOrCreate( getHistoryDomainKey( host ), proxy_history_factory ).setOutcomes( good, bad );
+		}
+	}
+	
+	private long
+	getHedgeDelay()
+	{
+		if ( socks_connect_latency.getSampleCount() < HEDGE_MIN_SAMPLES ){
+			
+			return( HEDGE_DELAY_DEFAULT );
+		}
+		
+		long	p90 = socks_connect_latency.getPercentile( 90 );
+		
+		return( Math.max( HEDGE_DELAY_MIN, Math.min( HEDGE_DELAY_MAX, p90 )));
+	}
+	
+	private void
+	recordStream(
+		TorPluginStreamStats	stats )
+	{
+		stream_totals.add( stats );
+		
+		proxy_history.getOrCreate( stats.getHost(), proxy_history_factory ).addStream( stats );
+	}
+	
+	private void
+	addProxyMapEntry(
+		ProxyMapEntry	entry )
+	{
+		entry.setExpiry( proxy_expiry.schedule( entry, entry.isLease()?entry.getLeaseTTL():PROXY_ENTRY_MAX_AGE ));
+		
+		synchronized( proxy_map ){
+			
+			proxy_map.put( entry.getProxy(), entry );
+		}
+	}
+	
+	private ProxyMapEntry
+	getProxyMapEntry(
+		Proxy		proxy )
+	{
+		synchronized( proxy_map ){
+			
+			return( proxy_map.get( proxy ));
+		}
+	}
+	
+	private ProxyMapEntry
+	removeProxyMapEntry(
+		Proxy		proxy )
+	{
+		ProxyMapEntry	entry;
+		
+		synchronized( proxy_map ){
+			
+			entry = proxy_map.remove( proxy );
+		}
+		
+		if ( entry != null ){
+			
+			entry.cancelExpiry();
+		}
+		
+		return( entry );
+	}
+	
+	private void
+	proxyEntryExpired(
+		ProxyMapEntry	entry )
+	{
+		synchronized( proxy_map ){
+			
+			if ( proxy_map.get( entry.getProxy()) != entry ){
+				
+				return;
+			}
+			
+			proxy_map.remove( entry.getProxy());
+		}
+		
+		TorPluginIntermediateHosts.Mapping intermediate = entry.getIntermediate();
+		
+		if ( intermediate != null ){
+			
+			intermediate_hosts.release( intermediate );
+		}
+		
+		if ( entry.isLease()){
+			
+			log( "Proxy lease for '" + entry.getHost() + "' expired" );
+		
+		}else{
+			
+			Debug.out( "Removed orphaned proxy entry for " + entry.getHost() + ", " + entry.getCreator());
+		}
+	}
+		
+		/**
+		 * @return host with the worst average connect latency over at least a few streams, null if none
+		 */
+	
+	private ProxyHistory
+	getSlowestHost()
+	{
+		ProxyHistory	slowest 		= null;
+		long			slowest_latency	= -1;
+		
+		for ( ProxyHistory history: proxy_history.values()){
+			
+			TorPluginStreamStats.Aggregate stats = history.getStreamStats();
+			
+			if ( stats.getStreamCount() >= 3 ){
+				
+				long latency = stats.getAverageConnectLatency();
+				
+				if ( latency > slowest_latency ){
+					
+					slowest			= history;
+					slowest_latency	= latency;
+				}
+			}
+		}
+		
+		return( slowest );
+	}
+	
+	private void
+	readProxyHistory()
+	{
+		long	start = SystemTime.getMonotonousTime();
+		
+		try{
+			List<TorPluginHistoryFile.Record>	records = TorPluginHistoryFile.read( proxy_history_file );
+			
+			if ( records.isEmpty()){
+				
+				return;
+			}
+				
+				// records are saved least recently used first so the LRU order carries over
+			
+			for ( TorPluginHistoryFile.Record record: records ){
+				
+				proxy_history.getOrCreate( record.getHost(), proxy_history_factory ).restore( record );
+			}
+			
+			log( "Loaded " + records.size() + " history records in " + ( SystemTime.getMonotonousTime() - start ) + "ms" );
+		
+		}catch( Throwable e ){
+			
+			log( "Failed to read history from " + proxy_history_file + ": " + Debug.getNestedExceptionMessage( e ));
+		}
+	}
+	
+	private void
+	writeProxyHistory()
+	{
+		if ( proxy_history_file == null || !proxy_history_dirty ){
+			
+			return;
+		}
+		
+		synchronized( proxy_history_file ){
+			
+			proxy_history_dirty = false;
+			
+			List<TorPluginHistoryFile.Record>	records = new ArrayList<TorPluginHistoryFile.Record>();
+			
+			for ( ProxyHistory history: proxy_history.values()){
+				
+				TorPluginHistoryFile.Record record = history.getRecord();
+				
+				if ( record != null ){
+					
+					records.add( record );
+				}
+			}
+			
+			try{
+				TorPluginHistoryFile.write( proxy_history_file, records );
+			
+			}catch( Throwable e ){
+				
+				proxy_history_dirty = true;
+				
+				log( "Failed to write history to " + proxy_history_file + ": " + Debug.getNestedExceptionMessage( e ));
+			}
+		}
+	}
+		
+		// IPC stuff
+	
+	public Map<String,Object>
+	getConfig()
+	{
+		Map<String,Object>	config = new HashMap<String,Object>();
+		
+		if ( filtering_proxy != null ){
+			
+			config.put( "socks_host", "127.0.0.1" );
+			config.put( "socks_port", filtering_proxy.getPort());
+
+		}else{
+			
+			Settings s = settings;
+			
+			config.put( "socks_host", s.external_tor?s.external_socks_host:internal_socks_host );
+			config.put( "socks_port", s.external_tor?s.external_socks_port:internal_socks_port );
+		}
+		
+		config.put( "i2p_socks_host", filtering_i2p_host );
+		config.put( "i2p_socks_port", filtering_i2p_port );
+		
+		config.put( "routes", route_table.getExtraRoutes());
+
+		return( config );
+	}
+	
+	public Map<String,Object>
+	setConfig(
+		Map<String,Object>		config )
+	{
+		String	i2p_host	= (String)config.get( "i2p_socks_host" );
+		Number	i2p_port 	= (Number)config.get( "i2p_socks_port" );
+			
+			// extra upstream SOCKS servers for the filtering proxy, see TorPluginRouteTable.setExtraRoutes
+		
+		@SuppressWarnings( "unchecked" )
+		List<Map<String,Object>>	routes = (List<Map<String,Object>>)config.get( "routes" );
 
-		if ( i2p_port != null ){
+		if ( i2p_port != null || routes != null ){
 			
 			synchronized( this ){
 		
-				filtering_i2p_port		= i2p_port.intValue();
-				
-				if ( i2p_host != null ){
+				if ( i2p_port != null ){
+					
+					filtering_i2p_port		= i2p_port.intValue();
+					
+					if ( i2p_host != null ){
+						
+						filtering_i2p_host	= i2p_host;
+					}
 					
-					filtering_i2p_host	= i2p_host;
+					i2p_route.setEndpoint( filtering_i2p_host, filtering_i2p_port );
+				}
+				
+				if ( routes != null ){
 					
-				}				
+					route_table.setExtraRoutes( routes );
+				}
+				
 				if ( filtering_proxy == null ){
 					
 					int filtering_proxy_last_port = plugin_config.getPluginIntParameter( "filtering.proxy.port", 0 );
@@ -2671,7 +3238,7 @@ TorPlugin
 	public boolean
 	requestActivation()
 	{
-		if ( external_tor ){
+		if ( settings.external_tor ){
 			
 			return( true );
 		}
@@ -2698,7 +3265,7 @@ TorPlugin
 	
 		throws IPCException
 	{
-		if ( external_tor ){
+		if ( settings.external_tor ){
 			
 			throw( new IPCException( "External Tor, can't restart" ));
 		}
@@ -2729,16 +3296,23 @@ TorPlugin
 		Proxy		proxy,
 		boolean		good )
 	{
-		ProxyMapEntry	entry;
+		ProxyMapEntry	entry = getProxyMapEntry( proxy );
 		
-		synchronized( this ){
+		if ( entry != null && entry.isLease()){
+				
+				// a single outcome for a leased proxy, the lease stays
 			
-			entry = proxy_map.remove( proxy );
+			reportProxyLeaseStatus( proxy, good?1:0, good?0:1 );
+			
+			return;
 		}
 		
+		entry = removeProxyMapEntry( proxy );
+		
 		if ( entry != null ){
 				
-			String 	host 				= entry.getHost();
+			String 								host 			= entry.getHost();
+			TorPluginIntermediateHosts.Mapping	intermediate	= entry.getIntermediate();
 			
 			if ( good ){
 				
@@ -2749,25 +3323,58 @@ TorPlugin
 				proxy_request_failed.incrementAndGet();
 			}
 			
-			updateProxyHistory( host, good );
+			boolean	admission_rejected = intermediate != null && intermediate.isAdmissionRejected();
 			
-			String	intermediate_host	= entry.getIntermediateHost();
+			if ( !admission_rejected ){
+				
+				updateProxyHistory( host, good );
+			}
 
-			if ( intermediate_host != null ){
+			if ( intermediate != null ){
 				
-				synchronized( this ){
-					
-					intermediate_host_map.remove( intermediate_host );
-					
-					intermediate_host_old_map.remove( intermediate_host );
-				}
+				intermediate_hosts.release( intermediate );
 			}
 		}else{
 			
 			Debug.out( "Proxy entry missing for " + proxy + ", status=" + good );
 		}
 	}
-	
+		
+		/**
+		 * Relayed stream statistics, "global" holds the overall totals and "hosts" a map of
+		 * destination host -> totals for hosts we still have history for
+		 */
+	
+	public Map<String,Object>
+	getStreamStats()
+	{
+		Map<String,Object>	result = new HashMap<String,Object>();
+		
+		result.put( "global", stream_totals.toMap());
+		
+		Map<String,Object>	hosts = new HashMap<String,Object>();
+		
+		for ( ProxyHistory history: proxy_history.values()){
+			
+			TorPluginStreamStats.Aggregate stats = history.getStreamStats();
+			
+			if ( stats.getStreamCount() > 0 ){
+				
+				hosts.put( history.getHost(), stats.toMap());
+			}
+		}
+		
+		result.put( "hosts", hosts );
+		
+		result.put( "connects", connect_scheduler.toMap());
+		
+		result.put( "routes", route_table.toMap());
+		
+		result.put( "reaped", idle_reaper.toMap());
+		
+		return( result );
+	}
+	
 	public Object[]
 	getProxy(
 		String		reason,
@@ -2777,13 +3384,13 @@ TorPlugin
 	{
 		String 	host = url.getHost();
 		
-		Object[] proxy_details = getActiveProxy( reason, host, true, false );
+		ActiveProxy proxy_details = getActiveProxy( reason, host, true, false, 0 );
 		
 		if ( proxy_details != null ){
 						
-			url = UrlUtils.setHost( url, (String)proxy_details[1] );
+			url = UrlUtils.setHost( url, proxy_details.getIntermediateHost());
 		
-			return( new Object[]{ proxy_details[0], url, proxy_details[2] });
+			return( new Object[]{ proxy_details.getProxy(), url, proxy_details.getHost() });
 		}
 		
 		return( null );
@@ -2797,1642 +3404,3515 @@ TorPlugin
 	
 		throws IPCException
 	{
-		Object[] proxy_details = getActiveProxy( reason, host, false, false );
+		ActiveProxy proxy_details = getActiveProxy( reason, host, false, false, 0 );
 		
 		if ( proxy_details != null ){
 			
-			return( new Object[]{ proxy_details[0], proxy_details[1], port });
+			return( new Object[]{ proxy_details.getProxy(), proxy_details.getHost(), port });
 		}
 		
 		return( null );
 	}
 	
-	public Boolean
-	testHTTPPseudoProxy(
-		URL			url )
+	/**
+	 * Leases a proxy for 'host' that can be used for any number of connections until it is released
+	 * via releaseProxyLease or 'ttl' millis pass without a renewal. Outcomes are reported in batches
+	 * with reportProxyLeaseStatus rather than a setProxyStatus per connection. The returned Proxy is
+	 * the lease's handle
+	 * @return as getProxy( reason, url ), null if the host isn't to be routed through Tor
+	 * @since 1.3.11
+	 */
+	
+	public Object[]
+	acquireProxyLease(
+		String		reason,
+		URL			url,
+		long		ttl )
+		
+		throws IPCException
 	{
-		final int TIMEOUT = 30*1000;
+		String 	host = url.getHost();
 		
-		String 	host 	= url.getHost();
-		int		port	= 443;
+		ActiveProxy proxy_details = getActiveProxy( reason, host, true, false, getLeaseTTL( ttl ));
 		
-		try{
-			String[]	host_bits = host.split( "\\." );
+		if ( proxy_details != null ){
 			
-			final String host_match = "." + host_bits[host_bits.length-2] + "." + host_bits[host_bits.length-1];
+			proxy_lease_count.incrementAndGet();
 			
-			SSLSocketFactory factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
-	
-			final SSLSocket socket = (SSLSocket)factory.createSocket();
+			url = UrlUtils.setHost( url, proxy_details.getIntermediateHost());
 			
-			final boolean[] result = { false };
+			return( new Object[]{ proxy_details.getProxy(), url, proxy_details.getHost() });
+		}
+		
+		return( null );
+	}
+	
+	/**
+	 * @return as getProxy( reason, host, port ), null if the host isn't to be routed through Tor
+	 * @since 1.3.11
+	 */
+	
+	public Object[]
+	acquireProxyLease(
+		String		reason,
+		String		host,
+		int			port,
+		long		ttl )
+		
+		throws IPCException
+	{
+		ActiveProxy proxy_details = getActiveProxy( reason, host, false, false, getLeaseTTL( ttl ));
+		
+		if ( proxy_details != null ){
 			
-			final AESemaphore sem = new AESemaphore( "ssl:wait" );
+			proxy_lease_count.incrementAndGet();
 			
-			try{
-				socket.addHandshakeCompletedListener(
-					new HandshakeCompletedListener() 
-					{	
-						@Override
-						public void
-						handshakeCompleted(
-							HandshakeCompletedEvent event ) 
-						{
-							try{
-								java.security.cert.Certificate[] serverCerts = socket.getSession().getPeerCertificates();
-								
-								if ( serverCerts.length == 0 ){
-													
-									// no certs :(
-									
-								}else{
-								
-									java.security.cert.Certificate	cert = serverCerts[0];
-												
-									java.security.cert.X509Certificate x509_cert;
-									
-									if ( cert instanceof java.security.cert.X509Certificate ){
-										
-										x509_cert = (java.security.cert.X509Certificate)cert;
-										
-									}else{
-										
-										java.security.cert.CertificateFactory cf = java.security.cert.CertificateFactory.getInstance("X.509");
-										
-										x509_cert = (java.security.cert.X509Certificate)cf.generateCertificate(new ByteArrayInputStream(cert.getEncoded()));
-									}
-									
-									Collection<List<?>> alt_names = x509_cert.getSubjectAlternativeNames();
-									
-									for ( List<?> alt_name: alt_names ){
-										
-										int	type = ((Number)alt_name.get(0)).intValue();
-										
-										if ( type == 2 ){		// DNS name
-											
-											String	dns_name = (String)alt_name.get(1);
-											
-											if ( dns_name.endsWith( host_match )){
-												
-												result[0] = true;
-												
-												break;
-											}
-										}
-									}
-								}
-							}catch( Throwable e ){
-								
-								e.printStackTrace();
-								
-							}finally{
-								
-								sem.releaseForever();
-							}
-						}
-					});
+			return( new Object[]{ proxy_details.getProxy(), proxy_details.getHost(), port });
+		}
 		
-				long	start = SystemTime.getMonotonousTime();
-				
-				socket.setSoTimeout( TIMEOUT );
-				
-				socket.connect( new InetSocketAddress( host, port  ), TIMEOUT );
+		return( null );
+	}
+	
+	private long
+	getLeaseTTL(
+		long		ttl )
+	{
+		return( Math.max( PROXY_LEASE_MIN_TTL, Math.min( PROXY_LEASE_MAX_TTL, ttl )));
+	}
+	
+	/**
+	 * Extends the lease to 'ttl' millis from now
+	 * @return false if the lease has expired or been released
+	 * @since 1.3.11
+	 */
+	
+	public boolean
+	renewProxyLease(
+		Proxy		proxy,
+		long		ttl )
+	{
+		synchronized( proxy_map ){
 			
-				OutputStream os = socket.getOutputStream();
-				
-				os.write( "HEAD / HTTP/1.1\r\n\r\n".getBytes());
-				
-				os.flush();
-				
-				long so_far = SystemTime.getMonotonousTime() - start;
-				
-				long rem = TIMEOUT - so_far;
-				
-				if ( rem > 0 ){
-				
-					sem.reserve( TIMEOUT );
-				}
-			}finally{
+			ProxyMapEntry	entry = proxy_map.get( proxy );
+			
+			if ( entry == null || !entry.isLease()){
 				
-				try{
-					socket.close();
-					
-				}catch( Throwable e ){
-				}
+				return( false );
 			}
-						
-			return( result[0] );
 			
-		}catch( Throwable e ){
+			entry.setLeaseTTL( getLeaseTTL( ttl ));
 			
-			return( false );
+			entry.cancelExpiry();
+			
+			entry.setExpiry( proxy_expiry.schedule( entry, entry.getLeaseTTL()));
 		}
+		
+		return( true );
 	}
 	
-	public Proxy
-	createHTTPPseudoProxy(
-		String		reason,
-		URL			url )
-
-		throws IPCException
+	/**
+	 * Reports the outcome of the connections made with a leased proxy since the last report
+	 * @return false if the lease has expired or been released
+	 * @since 1.3.11
+	 */
+	
+	public boolean
+	reportProxyLeaseStatus(
+		Proxy		proxy,
+		int			good,
+		int			bad )
 	{
-		if ( !plugin_enabled || unloaded ){
+		ProxyMapEntry	entry = getProxyMapEntry( proxy );
+		
+		if ( entry == null || !entry.isLease()){
 			
-			return( null );
+			Debug.out( "Proxy lease missing for " + proxy + ", good=" + good + ", bad=" + bad );
+			
+			return( false );
 		}
 		
-		String	host = url.getHost();
+		proxy_request_ok.addAndGet( good );
+		proxy_request_failed.addAndGet( bad );
+		
+		TorPluginIntermediateHosts.Mapping	intermediate	= entry.getIntermediate();
+		
+		if ( intermediate != null ){
 				
-		if ( !isHostAccepted( reason, host )){
+				// failures due to connects refused locally say nothing about the host
 			
-			return( null );
+			bad = Math.max( 0, bad - intermediate.takeAdmissionRejects());
 		}
 		
-		last_use_time	= SystemTime.getMonotonousTime();
+		if ( good > 0 || bad > 0 ){
+			
+			updateProxyHistory( entry.getHost(), good, bad );
+		}
 		
-		String key = url.getProtocol() + ":" + host + ":" + url.getPort();
+		return( true );
+	}
+	
+	/**
+	 * @since 1.3.11
+	 */
+	
+	public void
+	releaseProxyLease(
+		Proxy		proxy )
+	{
+		ProxyMapEntry	entry = removeProxyMapEntry( proxy );
 		
-		TorPluginHTTPProxy	proxy;
+		if ( entry == null ){
+			
+			return;
+		}
 		
-		boolean				is_new = false;
+		TorPluginIntermediateHosts.Mapping	intermediate	= entry.getIntermediate();
 		
-		int		socks_port = getActiveSocksPort();
-		String	socks_host = getActiveSocksHost();
+		if ( intermediate != null ){
+			
+			intermediate_hosts.release( intermediate );
+		}
+	}
+	
+	/**
+	 * Returns a blocking socket that is already connected through Tor to host:port, which saves the
+	 * intermediate proxy hop and relay copy of getProxy(). The data doesn't pass through the plugin so
+	 * isn't rate limited or included in stream stats. Options (all optional): "timeout" (Number millis),
+	 * "username" and "password" (String) for Tor stream isolation, unless the isolation policy overrides them
+	 * @return null if the host isn't to be routed through Tor
+	 * @throws IPCException if the connect fails
+	 */
+	
+	public Socket
+	getSocket(
+		String				reason,
+		String				host,
+		int					port,
+		Map<String,Object>	options )
 		
-		synchronized( this ){
+		throws IPCException
+	{
+		Object	timeout		= options==null?null:options.get( "timeout" );
+		String	username	= options==null?null:(String)options.get( "username" );
+		String	password	= options==null?null:(String)options.get( "password" );
 			
-			proxy =  http_proxy_map.get( key );
+			// IPC callers may pass any boxed number
+		
+		long	deadline = SystemTime.getMonotonousTime() + ( timeout instanceof Number?((Number)timeout).intValue():SOCKS_CONNECT_TIMEOUT );
+		
+		String[]	credentials = isolation_policy.getCredentials( host, username, password );
+		
+		ActiveProxy proxy_details = getActiveProxy( reason, host, false, false, 0 );
+		
+		if ( proxy_details == null ){
 			
-			if ( proxy == null ){
-				
-				is_new = true;
-				
-				proxy = new TorPluginHTTPProxy( url, new Proxy( Proxy.Type.SOCKS, new InetSocketAddress( socks_host, socks_port )));
-				
-				http_proxy_map.put( key, proxy );
+			return( null );
+		}
+		
+		Proxy	proxy = proxy_details.getProxy();
+		
+		boolean	ok = false;
+		
+		boolean[]	refused = { false };
+		
+		try{
+			Socket socket = 
+				connectDirect(
+					(InetSocketAddress)proxy.address(),
+					proxy_details.getHost(),
+					port,
+					credentials[0],
+					credentials[1],
+					host,
+					TorPluginRateLimiter.getTrafficClass( reason ),
+					deadline,
+					refused );
+			
+			ok = true;
+			
+			return( socket );
+		
+		}catch( Throwable e ){
+			
+			throw( new IPCException( "Connect to '" + host + "' failed", e ));
+		
+		}finally{
+			
+			if ( refused[0] ){
+					
+					// refused locally, says nothing about the host
 				
+				removeProxyMapEntry( proxy );
 			}else{
 				
-				proxy.incRefCount();
+				setProxyStatus( proxy, ok );
 			}
-			
-			setUnloadable( false );
 		}
+	}
 		
-		if ( is_new ){
-			
-			final AESemaphore	sem = new AESemaphore( "start_wait" );
-			
-			final TorPluginHTTPProxy	f_proxy = proxy;
+		/**
+		 * Connects the caller's thread through Tor without a relay. Admission and the SOCKS exchange
+		 * are the same as for relayed streams, the result is deregistered and switched to blocking.
+		 * This always uses the TCP SOCKS port as unix socket channels don't have a java.net.Socket
+		 */
+	
+	private Socket
+	connectDirect(
+		final InetSocketAddress			proxy_address,
+		final String					final_host,
+		final int						final_port,
+		final String					username,
+		final String					password,
+		String							host,
+		int								traffic_class,
+		final long						deadline,
+		final boolean[]					refused )
+		
+		throws IOException
+	{
+		final TorPluginRelayEngine	engine	= getRelayEngine();
+		final TorPluginSOCKSPool	pool	= getSOCKSPool();
+		
+		final AESemaphore	sem = new AESemaphore( "TorConnectDirect" );
 			
-			final IPCException[] error = { null };
-			
-			new AEThread2( "proxystart" )
+			// [0] = SocketChannel or Throwable, [1] = TorPluginSOCKSClient in progress
+		
+		final Object[]		result	= { null, null };
+		final boolean[]		gave_up = { false };
+		
+		TorPluginConnectScheduler.Entry request = connect_scheduler.submit(
+			host,
+			traffic_class,
+			deadline,
+			new TorPluginConnectScheduler.Task()
 			{
 				@Override
 				public void
-				run()
+				rejected(
+					String		reason )
+				{
+					refused[0] = true;
+					
+					done( new IOException( "Connect refused: " + reason ));
+				}
+				
+				@Override
+				public void
+				run(
+					final TorPluginConnectScheduler.Slot	slot )
 				{
 					try{
-						f_proxy.start();
-						
-						log( "Created proxy: " + f_proxy.getString());
+						TorPluginSOCKSClient client = 
+							TorPluginSOCKSClient.connect(
+								engine,
+								pool,
+								proxy_address, 
+								final_host, 
+								final_port,
+								username,
+								password,
+								(int)Math.max( 1000, deadline - SystemTime.getMonotonousTime()),
+								false,
+								new TorPluginSOCKSClient.Listener()
+								{
+									@Override
+									public void
+									connected(
+										final SocketChannel					channel,
+										TorPluginRelayEngine.Registration	registration )
+									{
+										slot.release();
+										
+										registration.cancel(
+											new Runnable()
+											{
+												@Override
+												public void
+												run()
+												{
+													try{
+														channel.configureBlocking( true );
+														
+														done( channel );
+													
+													}catch( Throwable e ){
+														
+														try{
+															channel.close();
+														
+														}catch( Throwable f ){
+														}
+														
+														done( e );
+													}
+												}
+											});
+									}
+									
+									@Override
+									public void
+									failed(
+										Throwable	error )
+									{
+										slot.release();
+										
+										done( error );
+									}
+								});
 						
+						synchronized( result ){
+							
+							if ( gave_up[0] ){
+								
+								client.cancel();
+							
+							}else{
+								
+								result[1] = client;
+							}
+						}
 					}catch( Throwable e ){
 						
-						error[0] = new IPCException( "Failed to start proxy", e );
+						slot.release();
 						
-					}finally{
+						done( e );
+					}
+				}
+				
+				private void
+				done(
+					Object		outcome )
+				{
+					synchronized( result ){
 						
-						sem.release();
+						if ( gave_up[0] ){
+								
+								// caller timed out, nobody wants the connection
+							
+							if ( outcome instanceof SocketChannel ){
+								
+								try{
+									((SocketChannel)outcome).close();
+								
+								}catch( Throwable e ){
+								}
+							}
+							
+							return;
+						}
+						
+						result[0] = outcome;
 					}
+					
+					sem.release();
 				}
-			}.start();
-			
-			sem.reserve( 5*1000 );
+			});
 			
-			if ( error[0] != null ){
-				
-				throw( error[0] );
-			}
-		}
+			// bit of slack so the SOCKS timeout gets to report first
 		
-		return( new Proxy( Proxy.Type.HTTP, new InetSocketAddress( "127.0.0.1", proxy.getPort())));
-	}
-	
-	public void
-	destroyHTTPPseudoProxy(
-		Proxy		proxy )
-	{
-		last_use_time	= SystemTime.getMonotonousTime();
+		long	remaining = deadline - SystemTime.getMonotonousTime();
 		
-		synchronized( this ){
-
-			Iterator<TorPluginHTTPProxy> it =  http_proxy_map.values().iterator();
+		if ( remaining <= 0 || !sem.reserve( remaining + 5*1000 )){
 			
-			while( it.hasNext()){
+			TorPluginSOCKSClient	client;
+			
+			synchronized( result ){
 				
-				TorPluginHTTPProxy http_proxy = it.next();
+				gave_up[0] = true;
 				
-				if ( http_proxy.getPort() == ((InetSocketAddress)proxy.address()).getPort()){
+				client = (TorPluginSOCKSClient)result[1];
+				
+				if ( result[0] instanceof SocketChannel ){
+						
+						// made it just too late
 					
-					if ( http_proxy.decRefCount() == 0 ){
+					try{
+						((SocketChannel)result[0]).close();
 					
-						it.remove();
-						
-						http_proxy.destroy();
+					}catch( Throwable e ){
 					}
-					
-					break;
 				}
 			}
 			
-			if ( http_proxy_map.size() == 0 ){
+			if ( request != null ){
+				
+				request.cancel();
+			}
 			
-				setUnloadable( true );
+			if ( client != null ){
+				
+				client.cancel();
 			}
-		}
-	}
-	
-	public Map<String,Object>
-	getProxyServer(
-		String				reason,
-		Map<String,Object>	server_options )
-		
-		throws IPCException
-	{
-		String	server_id = (String)server_options.get( "id" );
-		
-		if ( server_id.contains( ".." )){
 			
-			throw( new IPCException( "Invalid server id" ));
+			throw( new SocketTimeoutException( "Timeout connecting to '" + final_host + "'" ));
 		}
 		
-		int		target_port = (Integer)server_options.get( AEProxyFactory.SP_PORT );
-
-		Integer remote_port = (Integer)server_options.get( "remote-port" /*AEProxyFactory.SP_REMOTE_PORT*/ );
-		
-		int port = remote_port==null?80:remote_port;
-		
-		File service_file = new File( services_dir, server_id + ".txt" );
-		
-		String FS = File.separator;
-		
-		String bind_ip;
+		Object outcome;
 		
-		String	bind_option = (String)server_options.get( AEProxyFactory.SP_BIND );
-
-		if ( bind_option != null ){
+		synchronized( result ){
 			
-			bind_ip = bind_option;
-			
-		}else{
-			
-			bind_ip = "127.0.0.1";
+			outcome = result[0];
 		}
 		
-		Boolean b_new_keys = (Boolean)server_options.get( "new-identity" /*AEProxyFactory.SP_NEW_IDENTITY*/ );
-		
-		boolean new_keys = b_new_keys != null && b_new_keys;
-		
-		String[] required_lines = { 
-			"HiddenServiceDir ." + FS + "services" + FS + server_id,
-			"HiddenServicePort " + port + " " + bind_ip + ":" + target_port
-		};
-		
-		boolean	config_ok = false;
-		
-		if ( service_file.exists()){
+		if ( outcome instanceof SocketChannel ){
 			
-			List<String> lines = readFileAsStrings( service_file );
-
-			if ( 	lines.size() == 2 && 
-					lines.get(0).equals( required_lines[0] ) &&
-					lines.get(1).equals( required_lines[1])){
-				
-				config_ok = true;
-			}
+			return(((SocketChannel)outcome).socket());
 		}
 		
-		File service_dir = new File( services_dir, server_id );
+		Throwable error = (Throwable)outcome;
 		
-		if ( new_keys ){
+		if ( error instanceof IOException ){
 			
-			FileUtil.recursiveDeleteNoCheck( service_dir );
+			throw((IOException)error );
 		}
 		
-		File host_file = new File( service_dir, "hostname" );
-
-		String	host_name = null;
-		
-		if ( config_ok ){
-			
-				// this code is below as well
-			
-			if ( host_file.exists()){
-				
-				try{
-					String host = FileUtil.readFileAsString( host_file, 100 ).trim();
-					
-					if ( host.endsWith( ".onion" )){
-						
-						host_name = host;
-					}
-				}catch( Throwable e ){
-					
-				}
-			}
-			
-			if ( host_name == null ){
-				
-				config_ok = false;
-			}
-		}
+		throw( new IOException( Debug.getNestedExceptionMessage( error )));
+	}
+	
+	public Boolean
+	testHTTPPseudoProxy(
+		URL			url )
+	{
+		final int TIMEOUT = 30*1000;
 		
-		if ( !config_ok ){
-			
-			PrintWriter pw = null;
-			
-			try{
-				pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( service_file )));
-				
-				for ( String line: required_lines ){
-					
-					pw.println( line );
-				}
-			}catch( Throwable e ){
-				
-				log( "Failed to write " + service_file, e );
-				
-				throw( new IPCException( e ));
-				
-			}finally{
-				
-				if ( pw != null ){
-					
-					try{
-						pw.close();
-						
-					}catch( Throwable e ){
-					}
-				}
-			}
-		}
+		String 	host 	= url.getHost();
+		int		port	= 443;
 		
-		if ( external_tor ){
+		try{
+			String[]	host_bits = host.split( "\\." );
 			
-			return( null );
-		}
-		
-		if ( !services_enable_param.getValue()){
+			final String host_match = "." + host_bits[host_bits.length-2] + "." + host_bits[host_bits.length-1];
 			
-			return( null );
-		}
-
-		if ( host_name == null ){
+			SSLSocketFactory factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
+	
+			final SSLSocket socket = (SSLSocket)factory.createSocket();
 			
-			final AESemaphore sem = new AESemaphore( "waiter" );
+			final boolean[] result = { false };
 			
-			final String[] f_host = { null };
+			final AESemaphore sem = new AESemaphore( "ssl:wait" );
 			
-			new AEThread2( "waiter" )
-			{
-				@Override
-				public void
-				run()
-				{
-					long	start = SystemTime.getMonotonousTime();
-					
-					config_needs_checking	= true;
-				
-					try{
-						while( true ){
-							
-							if ( host_file.exists()){
-								
-								try{
-									String host = FileUtil.readFileAsString( host_file, 100 ).trim();
-									
-									if ( host.endsWith( ".onion" )){
+			try{
+				socket.addHandshakeCompletedListener(
+					new HandshakeCompletedListener() 
+					{	
+						@Override
+						public void
+						handshakeCompleted(
+							HandshakeCompletedEvent event ) 
+						{
+							try{
+								java.security.cert.Certificate[] serverCerts = socket.getSession().getPeerCertificates();
+								
+								if ( serverCerts.length == 0 ){
+													
+									// no certs :(
+									
+								}else{
+								
+									java.security.cert.Certificate	cert = serverCerts[0];
+												
+									java.security.cert.X509Certificate x509_cert;
+									
+									if ( cert instanceof java.security.cert.X509Certificate ){
 										
-										f_host[0] = host;
+										x509_cert = (java.security.cert.X509Certificate)cert;
 										
-										break;
+									}else{
+										
+										java.security.cert.CertificateFactory cf = java.security.cert.CertificateFactory.getInstance("X.509");
+										
+										x509_cert = (java.security.cert.X509Certificate)cf.generateCertificate(new ByteArrayInputStream(cert.getEncoded()));
 									}
-								}catch( Throwable e ){
 									
+									Collection<List<?>> alt_names = x509_cert.getSubjectAlternativeNames();
+									
+									for ( List<?> alt_name: alt_names ){
+										
+										int	type = ((Number)alt_name.get(0)).intValue();
+										
+										if ( type == 2 ){		// DNS name
+											
+											String	dns_name = (String)alt_name.get(1);
+											
+											if ( dns_name.endsWith( host_match )){
+												
+												result[0] = true;
+												
+												break;
+											}
+										}
+									}
 								}
-							}
-							
-							if ( SystemTime.getMonotonousTime() - start > 15*1000 ){
+							}catch( Throwable e ){
 								
-								break;
-							}
-							
-							checkServerStatus();
-							
-							try{
-								Thread.sleep( 1000 );
+								e.printStackTrace();
 								
-							}catch( Throwable e ){
+							}finally{
 								
+								sem.releaseForever();
 							}
 						}
-					}finally{
-						
-						sem.release();
-					}
-				}
-			}.start();
-			
-			sem.reserve( 15*1000 );
-			
-			host_name = f_host[0];
-			
-			if ( host_name == null ){
-			
-				return( null );
-			}
-		}
-		
-		Map<String,Object>	reply = new HashMap<String, Object>();
-		
-		reply.put( "host", host_name );
+					});
 		
-		try{
-			reply.put( "pk", extractPublicKey( service_dir ));
+				long	start = SystemTime.getMonotonousTime();
+				
+				socket.setSoTimeout( TIMEOUT );
+				
+				socket.connect( new InetSocketAddress( host, port  ), TIMEOUT );
 			
-			reply.put( "sk", extractSecretKey( service_dir ));
+				OutputStream os = socket.getOutputStream();
+				
+				os.write( "HEAD / HTTP/1.1\r\n\r\n".getBytes());
+				
+				os.flush();
+				
+				long so_far = SystemTime.getMonotonousTime() - start;
+				
+				long rem = TIMEOUT - so_far;
+				
+				if ( rem > 0 ){
+				
+					sem.reserve( TIMEOUT );
+				}
+			}finally{
+				
+				try{
+					socket.close();
+					
+				}catch( Throwable e ){
+				}
+			}
+						
+			return( result[0] );
 			
 		}catch( Throwable e ){
 			
+			return( false );
 		}
-		
-		return( reply );
 	}
 	
-	public byte[]
-	extractPublicKey(
-		File		dir )
-	
-		throws Exception
+	public Proxy
+	createHTTPPseudoProxy(
+		String		reason,
+		URL			url )
+
+		throws IPCException
 	{
-			// public and private keys can be derived from secret key (which is 64 byte SHA512 hash of
-			// the seed used when creating the key pair) - check out the code that
-			// recreates the PublicKey and PrivateKey instances in using the secret key elsewhere 
+		if ( !settings.plugin_enabled || unloaded ){
+			
+			return( null );
+		}
 		
-		File file = new File( dir, "hs_ed25519_public_key" );
+		String	host = url.getHost();
+				
+		if ( !isHostAccepted( reason, host )){
+			
+			return( null );
+		}
 		
-		byte[] bytes = FileUtil.readFileAsByteArray(file);
+		last_use_time	= SystemTime.getMonotonousTime();
 		
-		return( Arrays.copyOfRange( bytes, bytes.length-32, bytes.length ));
-	}
-	
-	public byte[]
-	extractSecretKey(
-		File		dir )
-	
-		throws Exception
-	{
-		File file = new File( dir, "hs_ed25519_secret_key" );
+		String key = url.getProtocol() + ":" + host + ":" + url.getPort();
 		
-		byte[] bytes = FileUtil.readFileAsByteArray(file);
+		TorPluginHTTPProxy	proxy;
 		
-		return( Arrays.copyOfRange( bytes, bytes.length-64, bytes.length ));
-	}
-	
-	private List<String>
-	readFileAsStrings(
-		File		file )
+		boolean				is_new = false;
 		
-		throws IPCException
-	{
-		List<String>	result = new ArrayList<String>();
+		Settings s = getActiveSettings();
 		
-		LineNumberReader lnr = null;
+		int		socks_port = s.active_socks_port;
+		String	socks_host = s.active_socks_host;
 		
-		try{
-			lnr = new LineNumberReader( new InputStreamReader( new FileInputStream( file )));
+		TorPluginRelayEngine	engine	= null;
+		TorPluginSOCKSPool		pool	= null;
+		
+		if ( s.relay_nio ){
 			
-			while( true ){
+			try{
+				engine	= getRelayEngine();
+				pool	= getSOCKSPool();
+			
+			}catch( Throwable e ){
 				
-				String line = lnr.readLine();
+				Debug.out( e );
+			}
+		}
+		
+		synchronized( http_proxy_map ){
+			
+			proxy =  http_proxy_map.get( key );
+			
+			if ( proxy == null ){
 				
-				if ( line == null ){
-					
-					break;
-				}
+				is_new = true;
 				
-				result.add( line.trim());
+				proxy = new TorPluginHTTPProxy( url, new Proxy( Proxy.Type.SOCKS, new InetSocketAddress( socks_host, socks_port )), TorPluginRateLimiter.getTrafficClass( reason ), engine, pool );
+				
+				http_proxy_map.put( key, proxy );
+				
+			}else{
+				
+				proxy.incRefCount();
 			}
 			
-			return( result );
+			setUnloadable( false );
+		}
+		
+		if ( is_new ){
 			
-		}catch( Throwable e ){
+			final AESemaphore	sem = new AESemaphore( "start_wait" );
 			
-			log( "Failed to read " + file, e );
+			final TorPluginHTTPProxy	f_proxy = proxy;
 			
-			throw( new IPCException( e ));
+			final IPCException[] error = { null };
 			
-		}finally{
+			new AEThread2( "proxystart" )
+			{
+				@Override
+				public void
+				run()
+				{
+					try{
+						f_proxy.start();
+						
+						log( "Created proxy: " + f_proxy.getString());
+						
+					}catch( Throwable e ){
+						
+						error[0] = new IPCException( "Failed to start proxy", e );
+						
+					}finally{
+						
+						sem.release();
+					}
+				}
+			}.start();
 			
-			try{
-				if ( lnr != null ){
+			sem.reserve( 5*1000 );
+			
+			if ( error[0] != null ){
 				
-					lnr.close();
-				}
-			}catch( Throwable e ){
+				throw( error[0] );
 			}
 		}
+		
+		return( new Proxy( Proxy.Type.HTTP, new InetSocketAddress( "127.0.0.1", proxy.getPort())));
 	}
 	
-		// end IPC
-	
-	public PluginInterface
-	getPluginInterface()
-	{
-		return( plugin_interface );
-	}
-	
-	private class
-	ControlConnection
+	public void
+	destroyHTTPPseudoProxy(
+		Proxy		proxy )
 	{
-		private Process		process;
-		private int			control_port;
-		private int			socks_port;
-		private File		data_dir;
-	
-		private Socket				socket;
-		private LineNumberReader 	lnr;
-		private OutputStream 		os;
+		last_use_time	= SystemTime.getMonotonousTime();
 		
-		private boolean		did_connect;
-		private boolean		owns_process;
+		synchronized( http_proxy_map ){
+
+			Iterator<TorPluginHTTPProxy> it =  http_proxy_map.values().iterator();
+			
+			while( it.hasNext()){
+				
+				TorPluginHTTPProxy http_proxy = it.next();
+				
+				if ( http_proxy.getPort() == ((InetSocketAddress)proxy.address()).getPort()){
+					
+					if ( http_proxy.decRefCount() == 0 ){
+					
+						it.remove();
+						
+						http_proxy.destroy();
+					}
+					
+					break;
+				}
+			}
+			
+			if ( http_proxy_map.size() == 0 ){
+			
+				setUnloadable( true );
+			}
+		}
+	}
 	
-		private TimerEventPeriodic	timer;
+	public Map<String,Object>
+	getProxyServer(
+		String				reason,
+		Map<String,Object>	server_options )
 		
-		private 
-		ControlConnection(
-			Process		_process,
-			File		_data_dir,
-			int			_control_port,
-			int			_socks_port )
-		{
-			process			= _process;
-			data_dir		= _data_dir;
-			control_port	= _control_port;
-			socks_port		= _socks_port;
-		}
+		throws IPCException
+	{
+		String	server_id = (String)server_options.get( "id" );
 		
-		private int
-		getSOCKSPort()
-		{
-			return( socks_port );
+		if ( server_id.contains( ".." )){
+			
+			throw( new IPCException( "Invalid server id" ));
 		}
 		
-		private boolean
-		connect()
-		{
-			try{
-				socket = new Socket( Proxy.NO_PROXY );
+		int		target_port = (Integer)server_options.get( AEProxyFactory.SP_PORT );
 
-				socket.bind( new InetSocketAddress( "127.0.0.1", 0 ));
-				
-				socket.connect( new InetSocketAddress( "127.0.0.1", control_port ), 30*1000 );
+		Integer remote_port = (Integer)server_options.get( "remote-port" /*AEProxyFactory.SP_REMOTE_PORT*/ );
+		
+		int port = remote_port==null?80:remote_port;
+		
+		File service_file = new File( services_dir, server_id + ".txt" );
+		
+		String FS = File.separator;
+		
+		String bind_ip;
+		
+		String	bind_option = (String)server_options.get( AEProxyFactory.SP_BIND );
 
-				did_connect = true;
-				
-				socket.setSoTimeout( 30*1000 );
+		if ( bind_option != null ){
+			
+			bind_ip = bind_option;
+			
+		}else{
+			
+			bind_ip = "127.0.0.1";
+		}
+		
+		Boolean b_new_keys = (Boolean)server_options.get( "new-identity" /*AEProxyFactory.SP_NEW_IDENTITY*/ );
+		
+		boolean new_keys = b_new_keys != null && b_new_keys;
+		
+		String[] required_lines = { 
+			"HiddenServiceDir ." + FS + "services" + FS + server_id,
+			"HiddenServicePort " + port + " " + bind_ip + ":" + target_port
+		};
+		
+		boolean	config_ok = false;
+		
+		if ( service_file.exists()){
+			
+			List<String> lines = readFileAsStrings( service_file );
 
-				InputStream is = socket.getInputStream();
-										
-				lnr = new LineNumberReader( new InputStreamReader( is ));
+			if ( 	lines.size() == 2 && 
+					lines.get(0).equals( required_lines[0] ) &&
+					lines.get(1).equals( required_lines[1])){
+				
+				config_ok = true;
+			}
+		}
+		
+		File service_dir = new File( services_dir, server_id );
+		
+		if ( new_keys ){
+			
+			FileUtil.recursiveDeleteNoCheck( service_dir );
+		}
+		
+		File host_file = new File( service_dir, "hostname" );
 
-				os = socket.getOutputStream();
-							
-				byte[] client_nonce = new byte[32];
+		String	host_name = null;
+		
+		if ( config_ok ){
 			
-				RandomUtils.nextSecureBytes( client_nonce );
+				// this code is below as well
+			
+			if ( host_file.exists()){
 				
-				String reply = sendAndReceive( "AUTHCHALLENGE SAFECOOKIE " + ByteFormatter.encodeString( client_nonce ).toUpperCase());
-								
-				if ( !reply.startsWith( "250 AUTHCHALLENGE " )){
+				try{
+					String host = FileUtil.readFileAsString( host_file, 100 ).trim();
+					
+					if ( host.endsWith( ".onion" )){
+						
+						host_name = host;
+					}
+				}catch( Throwable e ){
 					
-					throw( new Exception( "AUTHCHALLENGE response invalid: " + reply ));
 				}
+			}
+			
+			if ( host_name == null ){
 				
-				File cookie_file = new File( data_dir, "control_auth_cookie" );
-				
-				byte[] cookie = FileUtil.readFileAsByteArray( cookie_file );
-				
-				reply = reply.substring( 18 ).trim();
-				
-				String[] bits = reply.split( " " );
-				
-				byte[] server_hash 	= ByteFormatter.decodeString( bits[0].substring( 11 ).trim());
-				byte[] server_nonce = ByteFormatter.decodeString( bits[1].substring( 12 ).trim());
-				
-				Mac mac = Mac.getInstance("HmacSHA256");
-				
-				SecretKeySpec secret_key = new SecretKeySpec( "Tor safe cookie authentication server-to-controller hash".getBytes(Constants.BYTE_ENCODING_CHARSET), "HmacSHA256");
-				
-				mac.init( secret_key );
-				
-				mac.update( cookie );
-				mac.update( client_nonce );
-				mac.update( server_nonce );
-				
-				byte[] server_digest = mac.doFinal();
+				config_ok = false;
+			}
+		}
+		
+		if ( !config_ok ){
+			
+			PrintWriter pw = null;
+			
+			try{
+				pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( service_file )));
 				
-				if ( !Arrays.equals( server_hash, server_digest )){
+				for ( String line: required_lines ){
 					
-					throw( new Exception( "AUTHCHALLENGE response server hash incorrect" ));
+					pw.println( line );
 				}
-											
-				secret_key = new SecretKeySpec( "Tor safe cookie authentication controller-to-server hash".getBytes(Constants.BYTE_ENCODING_CHARSET), "HmacSHA256");
-
-				mac.init( secret_key );
-				
-				mac.update( cookie );
-				mac.update( client_nonce );
-				mac.update( server_nonce );
+			}catch( Throwable e ){
 				
-				reply = sendAndReceive( "AUTHENTICATE " + ByteFormatter.encodeString( mac.doFinal()).toUpperCase());
+				log( "Failed to write " + service_file, e );
 				
-				if ( !reply.startsWith( "250 OK" )){
-					
-					throw( new Exception( "AUTHENTICATE response invalid: " + reply ));
-				}
+				throw( new IPCException( e ));
 				
-				reply = sendAndReceive( "TAKEOWNERSHIP" );
-										
-				if ( !reply.startsWith( "250 OK" )){
-					
-					throw( new Exception( "TAKEOWNERSHIP response invalid: " + reply ));
-				}
+			}finally{
 				
-				reply = sendAndReceive( "RESETCONF __OwningControllerProcess" );
-									
-				if ( !reply.startsWith( "250 OK" )){
+				if ( pw != null ){
 					
-					throw( new Exception( "TAKEOWNERSHIP response invalid: " + reply ));
+					try{
+						pw.close();
+						
+					}catch( Throwable e ){
+					}
 				}
+			}
+		}
+		
+		if ( settings.external_tor ){
+			
+			return( null );
+		}
+		
+		if ( !services_enable_param.getValue()){
+			
+			return( null );
+		}
+
+		if ( host_name == null ){
+			
+			final AESemaphore sem = new AESemaphore( "waiter" );
+			
+			final String[] f_host = { null };
 				
-				String info = getInfo();
-				
-				log( "Connection to control port established - " + info );
+				// one deadline for both the waiter and us so it doesn't carry on after we've given up
+			
+			final long deadline = SystemTime.getMonotonousTime() + 15*1000;
+			
+			new AEThread2( "waiter" )
+			{
+				@Override
+				public void
+				run()
+				{
+					config_needs_checking	= true;
 				
-				timer = SimpleTimer.addPeriodicEvent(
-							"keepalive",
-							30*1000,
-							new TimerEventPerformer() {
-								
-								private boolean	running = false;
+					try{
+						while( true ){
+							
+							if ( host_file.exists()){
 								
-								@Override
-								public void
-								perform(
-									TimerEvent event )
-								{
-									if ( unloaded || !isConnected()){
-										
-										timer.cancel();
-										
-										return;
-									}
+								try{
+									String host = FileUtil.readFileAsString( host_file, 100 ).trim();
 									
-									synchronized( ControlConnection.this ){
+									if ( host.endsWith( ".onion" )){
 										
-										if ( running ){
-											
-											return;
-										}
+										f_host[0] = host;
 										
-										running = true;
+										break;
 									}
+								}catch( Throwable e ){
 									
-									new AEThread2( "getinfo" )
-									{
-										@Override
-										public void
-										run()
-										{
-											try{
-												getInfo();
-												
-												//System.out.println( info );
-												
-											}catch( Throwable e ){
-												
-											}finally{
-												
-												synchronized( ControlConnection.this ){
-													
-													running = false;
-												}
-											}
-										}
-									}.start();
 								}
-							});
-					
-				owns_process = true;
-				
-				return( true );
-				
-			}catch( Throwable e ){
-				
-				if ( did_connect ){
-				
-					String msg = "Connection error: " + Debug.getNestedExceptionMessage( e );
-					
-					Debug.out( msg );
-					
-					close( msg );
-					
-				}else{
-					
-					close( null );
-				}
-				
-				
-				return( false );
-			}	
-		}
-		
-		private String
-		getInfo()
-		
-			throws IOException
-		{
-			synchronized( ControlConnection.this ){
-
-				writeLine( "GETINFO version", true );
-				
-				String	result = "";
-				
-				while( true ){
-					
-					String reply = readLine( true );
-					
-					if ( reply.startsWith( "250" )){
-						
-						if ( reply.equals( "250 OK" )){
+							}
 							
-							return( result );
+							if ( SystemTime.getMonotonousTime() >= deadline ){
+								
+								break;
+							}
 							
-						}else{
+							checkServerStatus();
 							
-							result = reply.substring( 4 );
+							try{
+								Thread.sleep( 1000 );
+								
+							}catch( Throwable e ){
+								
+							}
 						}
-					}else{
+					}finally{
 						
-						throw( new IOException( "Unexpected reply: " + reply ));
-					}	
+						sem.release();
+					}
 				}
-			}
-		}
-		
-		private String
-		sendAndReceive(
-			String	str )
-		
-			throws IOException
-		{
-			synchronized( ControlConnection.this ){
-				
-				writeLine( str );
+			}.start();
+			
+			long	remaining = deadline - SystemTime.getMonotonousTime();
+			
+			if ( remaining > 0 ){
 				
-				return( readLine());
+				sem.reserve( remaining );
+			}
+			
+			host_name = f_host[0];
+			
+			if ( host_name == null ){
+			
+				return( null );
 			}
 		}
 		
-		private void
-		writeLine(
-			String		str )
-		
-			throws IOException 
-		{
-			writeLine( str, false );
-		}
+		Map<String,Object>	reply = new HashMap<String, Object>();
 		
-		private void
-		writeLine(
-			String		str,
-			boolean		boring )
+		reply.put( "host", host_name );
 		
-			throws IOException 
-		{
-			if ( debug_server && !boring ){
-			
-				log( "Control: -> " + str );
-			}
+		try{
+			reply.put( "pk", extractPublicKey( service_dir ));
 			
-			try{
-				os.write( ( str + "\r\n" ).getBytes(Constants.BYTE_ENCODING_CHARSET));
+			reply.put( "sk", extractSecretKey( service_dir ));
 			
-				os.flush();
-				
-			}catch( IOException e ){
+		}catch( Throwable e ){
 			
-				close( Debug.getNestedExceptionMessage( e ));
-				
-				throw( e );
-			}
 		}
 		
-		private String
-		readLine()
+		return( reply );
+	}
+	
+	public byte[]
+	extractPublicKey(
+		File		dir )
+	
+		throws Exception
+	{
+			// public and private keys can be derived from secret key (which is 64 byte SHA512 hash of
+			// the seed used when creating the key pair) - check out the code that
+			// recreates the PublicKey and PrivateKey instances in using the secret key elsewhere 
 		
-			throws IOException
-		{
-			return( readLine( false ));
-		}
+		File file = new File( dir, "hs_ed25519_public_key" );
 		
-		private String
-		readLine(
-			boolean		boring )
+		byte[] bytes = FileUtil.readFileAsByteArray(file);
 		
-			throws IOException
-		{
-			String line = lnr.readLine();
+		return( Arrays.copyOfRange( bytes, bytes.length-32, bytes.length ));
+	}
+	
+	public byte[]
+	extractSecretKey(
+		File		dir )
+	
+		throws Exception
+	{
+		File file = new File( dir, "hs_ed25519_secret_key" );
+		
+		byte[] bytes = FileUtil.readFileAsByteArray(file);
+		
+		return( Arrays.copyOfRange( bytes, bytes.length-64, bytes.length ));
+	}
+	
+	private List<String>
+	readFileAsStrings(
+		File		file )
+		
+		throws IPCException
+	{
+		List<String>	result = new ArrayList<String>();
+		
+		LineNumberReader lnr = null;
+		
+		try{
+			lnr = new LineNumberReader( new InputStreamReader( new FileInputStream( file )));
 			
-			if ( line == null ){
+			while( true ){
 				
-				close( "Unexpected end of file" );
+				String line = lnr.readLine();
 				
-				throw( new IOException( "Unexpected end of file" ));
+				if ( line == null ){
+					
+					break;
+				}
+				
+				result.add( line.trim());
 			}
 			
-			String res = line.trim();
+			return( result );
 			
-			if ( debug_server && !boring ){
+		}catch( Throwable e ){
 			
-				log( "Control: <- " + res );
-			}
+			log( "Failed to read " + file, e );
+			
+			throw( new IPCException( e ));
+			
+		}finally{
 			
-			return( res );
-		}
-		
-		private boolean
-		isConnected()
-		{
-			return( socket != null );
-		}
-		
-		private void
-		shutdown(
-			boolean	force )
-		{
 			try{
-				if ( socket != null ){
+				if ( lnr != null ){
+				
+					lnr.close();
+				}
+			}catch( Throwable e ){
+			}
+		}
+	}
+	
+		// end IPC
+	
+	public PluginInterface
+	getPluginInterface()
+	{
+		return( plugin_interface );
+	}
+	
+	private class
+	ControlConnection
+	{
+		private Process		process;
+		private int			control_port;
+		private int			socks_port;
+		private File		data_dir;
+	
+		private volatile Closeable	socket;
+		private LineNumberReader 	lnr;
+		private OutputStream 		os;
+		
+		private boolean		did_connect;
+		private boolean		owns_process;
+	
+		private TimerEventPeriodic	timer;
+		
+		private 
+		ControlConnection(
+			Process		_process,
+			File		_data_dir,
+			int			_control_port,
+			int			_socks_port )
+		{
+			process			= _process;
+			data_dir		= _data_dir;
+			control_port	= _control_port;
+			socks_port		= _socks_port;
+		}
+		
+		private int
+		getSOCKSPort()
+		{
+			return( socks_port );
+		}
+		
+		private boolean
+		connect()
+		{
+			try{
+				InputStream is;
+				
+				SocketAddress	unix_address = unix_control_address;
+				
+				if ( unix_address != null ){
+					
+					SocketChannel channel = TorPluginUnixSockets.openChannel( unix_address );
+					
+					socket = channel;
+					
+					channel.connect( unix_address );
+					
+					did_connect = true;
+					
+					is = TorPluginUnixSockets.newInputStream( channel, 30*1000 );
+					os = Channels.newOutputStream( channel );
+				
+				}else{
+					
+					Socket s = new Socket( Proxy.NO_PROXY );
+					
+					socket = s;
+					
+					s.bind( new InetSocketAddress( "127.0.0.1", 0 ));
+					
+					s.connect( new InetSocketAddress( "127.0.0.1", control_port ), 30*1000 );
+					
+					did_connect = true;
+					
+					s.setSoTimeout( 30*1000 );
+					
+					is = s.getInputStream();
+					os = s.getOutputStream();
+				}
+				
+				lnr = new LineNumberReader( new InputStreamReader( is ));
+
+				byte[] client_nonce = new byte[32];
+			
+				RandomUtils.nextSecureBytes( client_nonce );
+				
+				String reply = sendAndReceive( "AUTHCHALLENGE SAFECOOKIE " + ByteFormatter.encodeString( client_nonce ).toUpperCase());
+								
+				if ( !reply.startsWith( "250 AUTHCHALLENGE " )){
+					
+					throw( new Exception( "AUTHCHALLENGE response invalid: " + reply ));
+				}
+				
+				File cookie_file = new File( data_dir, "control_auth_cookie" );
+				
+				byte[] cookie = FileUtil.readFileAsByteArray( cookie_file );
+				
+				reply = reply.substring( 18 ).trim();
+				
+				String[] bits = reply.split( " " );
+				
+				byte[] server_hash 	= ByteFormatter.decodeString( bits[0].substring( 11 ).trim());
+				byte[] server_nonce = ByteFormatter.decodeString( bits[1].substring( 12 ).trim());
+				
+				Mac mac = Mac.getInstance("HmacSHA256");
+				
+				SecretKeySpec secret_key = new SecretKeySpec( "Tor safe cookie authentication server-to-controller hash".getBytes(Constants.BYTE_ENCODING_CHARSET), "HmacSHA256");
+				
+				mac.init( secret_key );
+				
+				mac.update( cookie );
+				mac.update( client_nonce );
+				mac.update( server_nonce );
+				
+				byte[] server_digest = mac.doFinal();
+				
+				if ( !Arrays.equals( server_hash, server_digest )){
+					
+					throw( new Exception( "AUTHCHALLENGE response server hash incorrect" ));
+				}
+											
+				secret_key = new SecretKeySpec( "Tor safe cookie authentication controller-to-server hash".getBytes(Constants.BYTE_ENCODING_CHARSET), "HmacSHA256");
+
+				mac.init( secret_key );
+				
+				mac.update( cookie );
+				mac.update( client_nonce );
+				mac.update( server_nonce );
+				
+				reply = sendAndReceive( "AUTHENTICATE " + ByteFormatter.encodeString( mac.doFinal()).toUpperCase());
+				
+				if ( !reply.startsWith( "250 OK" )){
+					
+					throw( new Exception( "AUTHENTICATE response invalid: " + reply ));
+				}
+				
+				reply = sendAndReceive( "TAKEOWNERSHIP" );
+										
+				if ( !reply.startsWith( "250 OK" )){
+					
+					throw( new Exception( "TAKEOWNERSHIP response invalid: " + reply ));
+				}
+				
+				reply = sendAndReceive( "RESETCONF __OwningControllerProcess" );
+									
+				if ( !reply.startsWith( "250 OK" )){
+					
+					throw( new Exception( "TAKEOWNERSHIP response invalid: " + reply ));
+				}
+				
+				String info = getInfo();
+				
+				log( "Connection to control port established - " + info );
+				
+				timer = SimpleTimer.addPeriodicEvent(
+							"keepalive",
+							30*1000,
+							new TimerEventPerformer() {
+								
+								private boolean	running = false;
+								
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									if ( unloaded || !isConnected()){
+										
+										timer.cancel();
+										
+										return;
+									}
+									
+									synchronized( ControlConnection.this ){
+										
+										if ( running ){
+											
+											return;
+										}
+										
+										running = true;
+									}
+									
+									new AEThread2( "getinfo" )
+									{
+										@Override
+										public void
+										run()
+										{
+											try{
+												getInfo();
+												
+												//System.out.println( info );
+												
+											}catch( Throwable e ){
+												
+											}finally{
+												
+												synchronized( ControlConnection.this ){
+													
+													running = false;
+												}
+											}
+										}
+									}.start();
+								}
+							});
+					
+				owns_process = true;
+				
+				return( true );
+				
+			}catch( Throwable e ){
+				
+				if ( did_connect ){
+				
+					String msg = "Connection error: " + Debug.getNestedExceptionMessage( e );
+					
+					Debug.out( msg );
+					
+					close( msg );
+					
+				}else{
+					
+					close( null );
+				}
+				
+				
+				return( false );
+			}	
+		}
+		
+		private String
+		getInfo()
+		
+			throws IOException
+		{
+			synchronized( ControlConnection.this ){
+
+				writeLine( "GETINFO version", true );
+				
+				String	result = "";
+				
+				while( true ){
+					
+					String reply = readLine( true );
+					
+					if ( reply.startsWith( "250" )){
+						
+						if ( reply.equals( "250 OK" )){
+							
+							return( result );
+							
+						}else{
+							
+							result = reply.substring( 4 );
+						}
+					}else{
+						
+						throw( new IOException( "Unexpected reply: " + reply ));
+					}	
+				}
+			}
+		}
+		
+		private String
+		sendAndReceive(
+			String	str )
+		
+			throws IOException
+		{
+			synchronized( ControlConnection.this ){
+				
+				writeLine( str );
+				
+				return( readLine());
+			}
+		}
+		
+		private void
+		writeLine(
+			String		str )
+		
+			throws IOException 
+		{
+			writeLine( str, false );
+		}
+		
+		private void
+		writeLine(
+			String		str,
+			boolean		boring )
+		
+			throws IOException 
+		{
+			if ( settings.debug_server && !boring ){
+			
+				log( "Control: -> " + str );
+			}
+			
+			try{
+				os.write( ( str + "\r\n" ).getBytes(Constants.BYTE_ENCODING_CHARSET));
+			
+				os.flush();
+				
+			}catch( IOException e ){
+			
+				close( Debug.getNestedExceptionMessage( e ));
+				
+				throw( e );
+			}
+		}
+		
+		private String
+		readLine()
+		
+			throws IOException
+		{
+			return( readLine( false ));
+		}
+		
+		private String
+		readLine(
+			boolean		boring )
+		
+			throws IOException
+		{
+			String line = lnr.readLine();
+			
+			if ( line == null ){
+				
+				close( "Unexpected end of file" );
+				
+				throw( new IOException( "Unexpected end of file" ));
+			}
+			
+			String res = line.trim();
+			
+			if ( settings.debug_server && !boring ){
+			
+				log( "Control: <- " + res );
+			}
+			
+			return( res );
+		}
+		
+		private boolean
+		isConnected()
+		{
+			return( socket != null );
+		}
+		
+		private void
+		shutdown(
+			boolean	force )
+		{
+			try{
+				if ( socket != null ){
+					
+					if ( force ){
+						
+						sendAndReceive( "SIGNAL HALT" );
+						
+					}else{
+						
+						sendAndReceive( "SIGNAL SHUTDOWN" );
+					}
+				}
+			}catch( Throwable e ){
+				
+			}finally{
+				
+				close( "Shutdown" );
+			}
+		}
+		
+		private void
+		close(
+			String	reason )
+		{
+			if ( reason != null ){
+				
+				log( "Control connection closed: " + reason );
+			}
+			
+			if ( timer != null ){
+				
+				timer.cancel();
+				
+				timer = null;
+			}
+			
+			if ( lnr != null ){
+				
+				try{
+					lnr.close();
+					
+				}catch( Throwable e ){
+				}
+				
+				lnr = null;
+			}
+			
+			if ( os != null ){
+				
+				try{
+					os.close();
+					
+				}catch( Throwable e ){
+				}
+				
+				os = null;
+			}
+			
+			if ( socket != null ){
+				
+				try{
+					socket.close();
+					
+				}catch( Throwable e ){
+				}
+				
+				socket = null;
+			}
+			
+			if ( owns_process && process != null ){
+				
+				process.destroy();
+				
+				process = null;
+			}
+		}
+	}
+	
+		/**
+		 * Connect outcomes for a host, or for a whole domain when the key starts with "*.". After
+		 * DELAY_AFTER_FAILS consecutive failures one attempt is let through per backoff period, which
+		 * doubles with each further failure up to BACKOFF_MAX and is jittered so that hosts that
+		 * failed together don't all retry together
+		 */
+	
+	private class
+	ProxyHistory
+	{
+		private static final int	DELAY_AFTER_FAILS	= 5;
+		
+		private static final long	BACKOFF_BASE		= 30*1000;
+		private static final long	BACKOFF_MAX			= 15*60*1000;
+		private static final int	BACKOFF_JITTER		= 20;	// +/- percent
+		
+		private final String	host;
+		
+		private long	retry_time;
+		private int		total_fails;
+		private int		total_ok;
+		
+		private int		consec_fails;
+		
+		private long	last_outcome_time;	// wall clock, for decay across restarts
+		
+		private final TorPluginStreamStats.Aggregate	stream_stats = new TorPluginStreamStats.Aggregate();
+		
+		private
+		ProxyHistory(
+			String		_host )
+		{
+			host		= _host;
+		}
+		
+		private String
+		getHost()
+		{
+			return( host );
+		}
+		
+		private TorPluginStreamStats.Aggregate
+		getStreamStats()
+		{
+			return( stream_stats );
+		}
+		
+		private void
+		addStream(
+			TorPluginStreamStats	stats )
+		{
+			stream_stats.add( stats );
+		}
+		
+		private boolean
+		canConnect()
+		{
+			synchronized( this ){
+				
+				if ( consec_fails < DELAY_AFTER_FAILS ){
+					
+					return( true );
+				}
+				
+				long now = SystemTime.getMonotonousTime();
+				
+				if ( now < retry_time ){
+					
+					return( false );
+				}
+					
+					// let this one through, the next has to wait another period
+				
+				retry_time = now + getBackoff();
+				
+				return( true );
+			}
+		}
+			
+			/**
+			 * BACKOFF_BASE * 2^(fails beyond the threshold), capped, +/- BACKOFF_JITTER%
+			 */
+		
+		private long
+		getBackoff()
+		{
+			int	doublings = Math.min( consec_fails - DELAY_AFTER_FAILS, 16 );
+			
+			long	delay = Math.min( BACKOFF_MAX, BACKOFF_BASE << doublings );
+			
+			int	jitter = (int)( delay * BACKOFF_JITTER / 100 );
+			
+			return( delay - jitter + RandomUtils.nextInt( 2*jitter + 1 ));
+		}
+		
+		private void
+		setOutcomes(
+			int		good,
+			int		bad )
+		{
+			String	msg = null;
+			
+			synchronized( this ){
+					
+					// the order within a batch isn't known, any success means the host is reachable
+				
+				total_ok	+= good;
+				total_fails	+= bad;
+				
+				last_outcome_time = SystemTime.getCurrentTime();
+				
+				if ( good > 0 ){
+					
+					consec_fails = 0;
+				
+				}else if ( bad > 0 ){
+					
+					consec_fails += bad;
+					
+					if ( consec_fails >= DELAY_AFTER_FAILS ){
+						
+						retry_time = SystemTime.getMonotonousTime() + getBackoff();
+						
+						msg = "Failed to connect to '" + host + "' " + consec_fails + " times in a row - backing off (ok=" + total_ok + ", fails=" + total_fails + ( stream_stats.getStreamCount()==0?"":( "; " + stream_stats.getString())) + ")";
+					}
+				}
+			}
+			
+			proxy_history_dirty = true;
+			
+			if ( msg != null ){
+				
+				log( msg );
+			}
+		}
+			
+			/**
+			 * @return null if there are no outcomes to persist (stream stats aren't kept across restarts)
+			 */
+		
+		private TorPluginHistoryFile.Record
+		getRecord()
+		{
+			synchronized( this ){
+				
+				if ( total_ok + total_fails == 0 ){
+					
+					return( null );
+				}
+				
+				long	retry_delay = 0;
+				
+				if ( consec_fails >= DELAY_AFTER_FAILS ){
+					
+					retry_delay = Math.max( 0, retry_time - SystemTime.getMonotonousTime());
+				}
+				
+				return( new TorPluginHistoryFile.Record( host, last_outcome_time, total_ok, total_fails, consec_fails, retry_delay ));
+			}
+		}
+		
+		private void
+		restore(
+			TorPluginHistoryFile.Record		record )
+		{
+			synchronized( this ){
+				
+				total_ok			= record.getTotalOK();
+				total_fails			= record.getTotalFails();
+				consec_fails		= record.getConsecutiveFails();
+				last_outcome_time	= record.getLastOutcomeTime();
+				
+				retry_time = SystemTime.getMonotonousTime() + record.getRetryDelay();
+			}
+		}
+	}
+	
+	private class
+	SOCKSProxy
+		implements AESocksProxyPlugableConnectionFactory
+	{
+		private final boolean	filtering;
+		
+		private InetAddress local_address;
+		
+		private Set<SOCKSProxyConnection>		connections = new HashSet<SOCKSProxyConnection>();
+		
+			// blocking connects, used when the NIO relay is off
+		
+		private ThreadPool	connect_pool = new ThreadPool( "TorConnect", 10 );
+
+		{
+			try{
+				local_address = InetAddress.getByName( "127.0.0.1" );
+				
+			}catch( Throwable e ){
+				
+				Debug.printStackTrace(e);
+				
+				local_address = null;
+			}
+		}
+		
+		private AESocksProxy proxy;
+		
+		private InetSocketAddress	address;
+		
+		private
+		SOCKSProxy(
+			int			_port,
+			boolean		_filtering,
+			String 		_reason )
+		
+			throws AEProxyException
+		{
+			filtering	= _filtering;
+			
+			proxy = AESocksProxyFactory.create( _port, 120*1000, 120*1000, this );
+			
+			address = new InetSocketAddress( "127.0.0.1", proxy.getPort());
+			
+			log( "Intermediate SOCKS proxy started on port " + proxy.getPort() + " for " + _reason + ", filtering=" + filtering );
+		}
+		
+		private int
+		getPort()
+		{
+			return( proxy.getPort());
+		}
+		
+		private InetSocketAddress
+		getAddress()
+		{
+			return( address );
+		}
+		
+		@Override
+		public AESocksProxyPlugableConnection
+		create(
+			AESocksProxyConnection	connection )
+		
+			throws AEProxyException
+		{
+				// the limit is across all the listeners
+			
+			if ( socks_connection_count.incrementAndGet() > settings.max_socks_connections ){
+				
+				socks_connection_count.decrementAndGet();
+				
+				try{
+					connection.close();
+				
+				}catch( Throwable e ){
+				}
+				
+				throw( new AEProxyException( "Too many connections" ));
+			}
+			
+			synchronized( this ){
+			
+				SOCKSProxyConnection con = new SOCKSProxyConnection( connection );
+				
+				connections.add( con );
+				
+				socks_idle_group.add( con );
+				
+				return( con );
+			}
+		}
+		
+		private void
+		closed(
+			SOCKSProxyConnection	connection )
+		{
+			synchronized( this ){
+				
+				if ( !connections.remove( connection )){
+					
+					return;
+				}
+			}
+			
+			socks_idle_group.remove( connection );
+			
+			socks_connection_count.decrementAndGet();
+		}
+		
+		private void
+		destroy()
+		{
+			try{
+				proxy.destroy();
+				
+			}catch( Throwable e ){
+			}
+		}
+		
+		private class
+		SOCKSProxyConnection
+			implements AESocksProxyPlugableConnection, SEPasswordListener, TorPluginIdleReaper.Stream
+		{
+			private AESocksProxyConnection	connection;
+			private Socket					tor_socket;
+			private SocketChannel			tor_channel;
+			
+			private TorPluginRelayEngine.Registration	tor_registration;
+			private List<TorPluginSOCKSClient>			socks_clients = new ArrayList<TorPluginSOCKSClient>( 2 );
+			private int									channel_attempts;
+			private TimerEvent							hedge_event;
+			private Socket								connecting_socket;
+			
+			private TorPluginConnectScheduler.Entry		connect_request;
+			
+			private TorPluginRouteTable.Route			route;
+				
+				// what Tor gets for stream isolation, see TorPluginIsolationPolicy
+			
+			private String								socks_username;
+			private String								socks_password;
+				
+				// set when the Tor stream was handed over before its CONNECT reply arrived, the admission
+				// slot is held until the relay has the reply as that's when Tor has actually connected
+			
+			private long								tor_reply_deadline;
+			private long								tor_connect_start;
+			private TorPluginConnectScheduler.Slot		tor_reply_slot;
+			
+			private ProxyStateRelay			relay_state;
+			
+			private TorPluginStreamStats	stream_stats;
+			
+			private boolean	socket_closed;
+			
+			private
+			SOCKSProxyConnection(
+				AESocksProxyConnection		_connection )
+			{
+				connection = _connection;
+				
+				connection.disableDNSLookups();
+			}
+			
+			@Override
+			public String
+			getName()
+			{
+				return( "TorPluginConnection" );
+			}
+				
+				// connects have their own deadline, only streams that are relaying get reaped
+			
+			@Override
+			public long
+			getIdleTime()
+			{
+				synchronized( this ){
+					
+					if ( relay_state == null || !stream_stats.isConnected()){
+						
+						return( -1 );
+					}
+				}
+				
+				return( stream_stats.getIdleTime());
+			}
+			
+			@Override
+			public int
+			getTrafficClass()
+			{
+				TorPluginStreamStats stats = stream_stats;
+				
+				return( stats==null?TorPluginRateLimiter.TC_OTHER:stats.getTrafficClass());
+			}
+			
+			@Override
+			public void
+			reap(
+				String		reason )
+			{
+				try{
+					close();
+				
+				}catch( Throwable e ){
+				}
+			}
+			
+			@Override
+			public InetAddress
+			getLocalAddress()
+			{
+				return( local_address );
+			}
+			
+			@Override
+			public int
+			getLocalPort()
+			{
+				return( -1 );
+			}
+
+			@Override
+			public void
+			connect(
+				AESocksProxyAddress		address )
+				
+				throws IOException
+			{
+				String	proxy_host;
+				int		proxy_port;
+				
+				String	final_host;
+				int		final_port;
+				
+				TorPluginIntermediateHosts.Mapping	intermediate = null;
+				
+				long	deadline;
+				
+				TorPluginRouteTable.Route	route;
+
+				if ( filtering ){
+															
+					InetAddress target = address.getAddress();
+					
+					if ( target != null ){
+						
+						closed( this );
+						
+						throw( new IOException( "Address should be unresolved" ));
+					}
+					
+					final_host	= address.getUnresolvedAddress();
+					final_port	= address.getPort();
+
+					stream_stats = new TorPluginStreamStats( final_host, TorPluginRateLimiter.TC_OTHER );
+					
+					route = route_table.findRoute( final_host );
+					
+					deadline = SystemTime.getMonotonousTime() + route.getConnectTimeout();
+					
+					if ( route.isTor()){
+						
+						Settings s = settings;
+						
+						proxy_host	= s.active_socks_host;
+						proxy_port	= s.active_socks_port;
+					
+					}else{
+						
+						InetSocketAddress endpoint = route.getEndpoint();
+						
+						if ( endpoint == null ){
+							
+							closed( this );
+							
+							throw( new IOException( "Proxy for route '" + route.getName() + "' not set" ));
+						}
+						
+						proxy_host	= endpoint.getHostString();
+						proxy_port	= endpoint.getPort();
+					}
+				}else{
+					
+					InetAddress target = address.getAddress();
+					
+					if ( target == null ){
+						
+						closed( this );
+						
+						throw( new IOException( "Address should be set" ));
+					}
+						
+						// the mapping stays until the proxy status is reported so an address can be used
+						// more than once, for example when an HTTP URL connection needs to be authenticated
+					
+					intermediate = intermediate_hosts.get( target );
+					
+					if ( intermediate == null ){
+						
+						closed( this );
+						
+						throw( new IOException( "Intermediate address not found" ));
+					}
+						
+						// the deadline set when the proxy was handed out, but give a caller that
+						// was slow to use it a fighting chance. Leased addresses are used well after
+						// they were handed out so each connect gets the full time
+					
+					if ( intermediate.isLeased()){
+						
+						deadline = SystemTime.getMonotonousTime() + SOCKS_CONNECT_TIMEOUT;
+					
+					}else{
+						
+						deadline = Math.max( intermediate.getDeadline(), SystemTime.getMonotonousTime() + SOCKS_CONNECT_MIN_TIME );
+					}
+					
+					proxy_host 	= intermediate.getSOCKSHost();
+					proxy_port	= intermediate.getSOCKSPort();
+										
+					final_host = intermediate.getHost();
+					final_port = address.getPort();
+						
+						// account against the host the caller asked for, not the rewritten one, as that's what
+						// ProxyHistory is keyed on
+					
+					stream_stats = new TorPluginStreamStats( final_host, intermediate.getTrafficClass());
+
+					final_host = rewriteHost( final_host, true );
+					
+					route = route_table.getDefaultRoute();
+				}
+				
+				this.route = route;
+				
+				if ( route.isTor()){
+					
+					String[] credentials = isolation_policy.getCredentials( stream_stats.getHost(), connection.getUsername(), connection.getPassword());
+					
+					socks_username	= credentials[0];
+					socks_password	= credentials[1];
+				
+				}else{
+					
+					socks_username	= connection.getUsername();
+					socks_password	= connection.getPassword();
+				}
+				
+				final InetSocketAddress proxy_address = new InetSocketAddress( proxy_host, proxy_port );
+						
+				final InetSocketAddress final_address = InetSocketAddress.createUnresolved( final_host, final_port );
+				
+				final Settings s = settings;
+				
+				final boolean use_channel = s.relay_nio;
+					
+					// race a second attempt on a fresh circuit if this one is slow
+				
+				final boolean hedge = use_channel && route.isTor() && s.hedged_connects;
+				
+					// Tor accepts stream data straight after the CONNECT request, no need to wait for the reply.
+					// Not when hedging though as that needs to see which attempt gets its reply first
+				
+				final boolean optimistic = use_channel && route.isTor() && s.optimistic_data && !hedge;
+				
+				final TorPluginIntermediateHosts.Mapping admission_mapping = intermediate;
+				
+				final long connect_deadline = deadline;
+				
+				TorPluginConnectScheduler.Entry request = route.getScheduler().submit(
+					stream_stats.getHost(),
+					stream_stats.getTrafficClass(),
+					connect_deadline,
+					new TorPluginConnectScheduler.Task()
+					{
+						@Override
+						public void
+						rejected(
+							String		reason )
+						{
+							if ( admission_mapping != null ){
+								
+								admission_mapping.setAdmissionRejected();
+							}
+							
+							log( "Connect to '" + stream_stats.getHost() + "' refused: " + reason );
+							
+							streamClosed();
+							
+							try{
+								connection.close();
+							
+							}catch( Throwable f ){
+							
+							}
+						}
+						
+						@Override
+						public void
+						run(
+							TorPluginConnectScheduler.Slot	slot )
+						{
+							synchronized( SOCKSProxyConnection.this ){
+								
+								if ( socket_closed ){
+									
+									slot.release();
+									
+									return;
+								}
+							}
+							
+							int	timeout = (int)Math.max( 1000, connect_deadline - SystemTime.getMonotonousTime());
+							
+							if ( use_channel ){
+								
+								try{
+									connectChannel( proxy_address, final_address, timeout, optimistic, hedge, slot );
+									
+								}catch( Throwable e ){
+									
+									slot.release();
+									
+									connectFailed();
+								}
+							}else{
+								
+								connectSocket( proxy_address, final_address, timeout, slot );
+							}
+						}
+					});
+				
+				synchronized( this ){
+					
+					if ( socket_closed ){
+						
+						if ( request != null ){
+							
+							request.cancel();
+						}
+					}else{
+						
+						connect_request = request;
+					}
+				}
+			}
+			
+			private void
+			connectSocket(
+				final InetSocketAddress					proxy_address,
+				final InetSocketAddress					final_address,
+				final int								timeout,
+				final TorPluginConnectScheduler.Slot	slot )
+			{
+				connect_pool.run(
+					new AERunnable()
+					{
+						@Override
+						public void
+						runSupport() 
+						{
+							try{
+								final Proxy proxy = new Proxy( Proxy.Type.SOCKS, proxy_address );
+									
+									// Tor uses SOCKS username/password authentication to manage
+									// stream isolation so we need to forward this when delegating
+								
+								boolean	add_pw_listener = socks_username != null;
+								
+								if ( add_pw_listener ){
+									
+									SESecurityManager.setThreadPasswordHandler( SOCKSProxyConnection.this );
+								}
+								
+								try{
+									Socket socket = new Socket( proxy );
+									
+									synchronized( SOCKSProxyConnection.this ){
+										
+										if ( socket_closed ){
+											
+											throw( new Exception( "Connection already closed" ));
+										}
+											
+											// so close() can abort the connect
+										
+										connecting_socket = socket;
+									}
+									
+									try{
+											// the timeout covers the whole SOCKS exchange, not just the TCP connect
+										
+										socket.connect( final_address, timeout );
+									
+									}finally{
+										
+										synchronized( SOCKSProxyConnection.this ){
+											
+											connecting_socket = null;
+										}
+									}
+									
+									synchronized( SOCKSProxyConnection.this ){
+										
+										if ( socket_closed ){
+											
+											try{
+												socket.close();
+											
+											}catch( Throwable e ){
+											
+											}
+											
+											throw( new Exception( "Connection already closed" ));
+										}
+										
+										tor_socket = socket;
+									}
+									
+									stream_stats.connected();
+									
+									connection.connected();
+								}finally{
+									
+									if ( add_pw_listener ){
+										
+										SESecurityManager.unsetThreadPasswordHandler();
+									}
+								}
+							}catch( Throwable e ){
+								
+								connectFailed();
+								
+							}finally{
+								
+								slot.release();
+							}
+						}
+					});
+			}
+			
+			private void
+			connectChannel(
+				final InetSocketAddress					proxy_address,
+				final InetSocketAddress					final_address,
+				final int								timeout,
+				final boolean							optimistic,
+				boolean									hedge,
+				final TorPluginConnectScheduler.Slot	slot )
+				
+				throws IOException
+			{
+				final long	start = SystemTime.getMonotonousTime();
+				
+				startChannelAttempt( proxy_address, final_address, socks_username, socks_password, timeout, optimistic, false, slot );
+				
+				if ( !hedge ){
+					
+					return;
+				}
+				
+				long	delay = getHedgeDelay();
+				
+				if ( delay >= timeout ){
+					
+					return;
+				}
+				
+				TimerEvent event = 
+					SimpleTimer.addEvent(
+						"TorHedge",
+						SystemTime.getOffsetTime( delay ),
+						new TimerEventPerformer()
+						{
+							@Override
+							public void
+							perform(
+								TimerEvent event )
+							{
+								synchronized( SOCKSProxyConnection.this ){
+									
+									hedge_event = null;
+									
+									if ( socket_closed || tor_channel != null || channel_attempts == 0 ){
+										
+										return;
+									}
+								}
+								
+								int	remaining = (int)( timeout - ( SystemTime.getMonotonousTime() - start ));
+								
+								if ( remaining < 1000 ){
+									
+									return;
+								}
+									
+									// Tor puts streams with different SOCKS credentials on different circuits so derive
+									// a unique one for each hedge from the stream's. The hedge gets a circuit of its
+									// own rather than sharing one with the primary or with other streams' hedges
+								
+								String	hedge_id = "hedge-" + hedge_next_id.incrementAndGet();
+								
+								String	username = socks_username;
+								String	password = socks_password;
+								
+								try{
+									startChannelAttempt(
+										proxy_address,
+										final_address,
+										username==null?hedge_id:( username + ":" + hedge_id ),
+										( password==null?"":password ) + ":" + hedge_id,
+										remaining,
+										false,
+										true,
+										slot );
+									
+									hedges_started.incrementAndGet();
+								
+								}catch( Throwable e ){
+								}
+							}
+						});
+				
+				synchronized( this ){
+					
+					if ( socket_closed || tor_channel != null || channel_attempts == 0 ){
+						
+						event.cancel();
+						
+					}else{
+						
+						hedge_event = event;
+					}
+				}
+			}
+				
+				/**
+				 * One of possibly two SOCKS connects racing for this connection, the first to connect wins
+				 * and the other is cancelled. The slot is released once there is a winner or all have failed
+				 */
+			
+			private void
+			startChannelAttempt(
+				InetSocketAddress						proxy_address,
+				InetSocketAddress						final_address,
+				String									username,
+				String									password,
+				final int								timeout,
+				final boolean							optimistic,
+				final boolean							is_hedge,
+				final TorPluginConnectScheduler.Slot	slot )
+				
+				throws IOException
+			{
+				final long	start = SystemTime.getMonotonousTime();
+				
+				synchronized( this ){
+					
+					channel_attempts++;
+				}
+				
+				TorPluginSOCKSClient client;
+				
+				try{
+					client = 
+						TorPluginSOCKSClient.connect(
+							getRelayEngine(),
+							getSOCKSPool(),
+							getChannelSOCKSAddress( proxy_address ), 
+							final_address.getHostString(), 
+							final_address.getPort(),
+							username,
+							password,
+							timeout,
+							optimistic,
+							new TorPluginSOCKSClient.Listener()
+							{
+								@Override
+								public void
+								connected(
+									SocketChannel						channel,
+									TorPluginRelayEngine.Registration	registration )
+								{
+									List<TorPluginSOCKSClient>	losers;
+									TimerEvent					hedge_timer;
+									
+									synchronized( SOCKSProxyConnection.this ){
+										
+										channel_attempts--;
+										
+										if ( socket_closed || tor_channel != null ){
+												
+												// closed while connecting or the other attempt got there first
+											
+											registration.cancel();
+											
+											try{
+												channel.close();
+											
+											}catch( Throwable e ){
+											}
+											
+											if ( socket_closed ){
+												
+												slot.release();
+											}
+											
+											return;
+										}
+										
+										tor_channel			= channel;
+										tor_registration	= registration;
+										
+										losers = new ArrayList<TorPluginSOCKSClient>( socks_clients );
+										
+										socks_clients.clear();
+										
+										hedge_timer	= hedge_event;
+										hedge_event	= null;
+										
+										if ( optimistic ){
+												
+												// the relay picks up the reply, the original deadline still applies
+											
+											tor_reply_deadline	= start + timeout;
+											tor_connect_start	= start;
+											tor_reply_slot		= slot;
+										}
+									}
+									
+									if ( !optimistic ){
+										
+										slot.release();
+									}
+									
+									if ( hedge_timer != null ){
+										
+										hedge_timer.cancel();
+									}
+									
+									for ( TorPluginSOCKSClient loser: losers ){
+										
+										loser.cancel();
+									}
+									
+									if ( !optimistic ){
+										
+										socks_connect_latency.add( SystemTime.getMonotonousTime() - start );
+										
+										stream_stats.connected();
+									}
+									
+									if ( is_hedge ){
+										
+										hedges_won.incrementAndGet();
+									}
+									
+									try{
+										connection.connected();
+									
+									}catch( Throwable e ){
+										
+										connectFailed();
+									}
+								}
+								
+								@Override
+								public void
+								failed(
+									Throwable	error )
+								{
+									TimerEvent	hedge_timer;
+									
+									synchronized( SOCKSProxyConnection.this ){
+										
+										channel_attempts--;
+										
+										if ( tor_channel != null || channel_attempts > 0 ){
+												
+												// lost the race, or the other attempt is still going
+											
+											return;
+										}
+										
+										socks_clients.clear();
+										
+										hedge_timer	= hedge_event;
+										hedge_event	= null;
+									}
+									
+									if ( hedge_timer != null ){
+										
+										hedge_timer.cancel();
+									}
+									
+									slot.release();
+									
+									connectFailed();
+								}
+							});
+				
+				}catch( IOException e ){
 					
-					if ( force ){
-						
-						sendAndReceive( "SIGNAL HALT" );
-						
-					}else{
+					synchronized( this ){
 						
-						sendAndReceive( "SIGNAL SHUTDOWN" );
+						channel_attempts--;
 					}
+					
+					throw( e );
 				}
-			}catch( Throwable e ){
-				
-			}finally{
-				
-				close( "Shutdown" );
-			}
-		}
-		
-		private void
-		close(
-			String	reason )
-		{
-			if ( reason != null ){
-				
-				log( "Control connection closed: " + reason );
-			}
-			
-			if ( timer != null ){
-				
-				timer.cancel();
 				
-				timer = null;
-			}
-			
-			if ( lnr != null ){
+				boolean	cancel;
 				
-				try{
-					lnr.close();
+				synchronized( this ){
 					
-				}catch( Throwable e ){
+					cancel = socket_closed || tor_channel != null;
+					
+					if ( !cancel ){
+						
+						socks_clients.add( client );
+					}
 				}
 				
-				lnr = null;
+				if ( cancel ){
+					
+					client.cancel();
+				}
 			}
 			
-			if ( os != null ){
+			private void
+			connectFailed()
+			{
+				streamClosed();
 				
 				try{
-					os.close();
-					
+					connection.close();
+				
 				}catch( Throwable e ){
-				}
 				
-				os = null;
+				}
 			}
 			
-			if ( socket != null ){
+			private void
+			streamClosed()
+			{
+				TorPluginStreamStats stats = stream_stats;
 				
-				try{
-					socket.close();
+				if ( stats != null && stats.closed()){
 					
-				}catch( Throwable e ){
+					recordStream( stats );
+					
+					TorPluginRouteTable.Route r = route;
+					
+					if ( r != null ){
+						
+						r.addStream( stats );
+					}
 				}
-				
-				socket = null;
 			}
 			
-			if ( owns_process && process != null ){
+			@Override
+			public void
+			relayData()
+			
+				throws IOException
+			{
+				synchronized( this ){
 				
-				process.destroy();
+					if ( socket_closed ){
+						
+						throw( new IOException( "TorPluginConnection::relayData: socket already closed"));
+					}
 				
-				process = null;
+					if ( tor_channel != null ){
+						
+						relay_state = new ProxyStateRelayChannel( connection.getConnection(), tor_channel, tor_registration, stream_stats, tor_reply_deadline, tor_connect_start, tor_reply_slot );
+					
+					}else{
+						
+						relay_state = new ProxyStateRelayData( connection.getConnection(), tor_socket, stream_stats );
+					}
+				}
 			}
-		}
-	}
-	
-	private class
-	ProxyHistory
-	{
-		private final int DELAY_AFTER_FAILS = 5;
-		
-		private String	host;
-		
-		private long	last_connect_time;
-		private int		total_fails;
-		private int		total_ok;
-		
-		private int		consec_fails;
-		
-		private
-		ProxyHistory(
-			String		_host )
-		{
-			host		= _host;
-		}
-		
-		private boolean
-		canConnect()
-		{
-			long now = SystemTime.getMonotonousTime();
 			
-			boolean ok = consec_fails < DELAY_AFTER_FAILS;
+			@Override
+			public void
+			close()
 			
-			if ( !ok ){
+				throws IOException
+			{
+				List<TorPluginSOCKSClient>		clients;
+				TimerEvent						hedge_timer;
+				TorPluginConnectScheduler.Entry	request;
+				TorPluginConnectScheduler.Slot	reply_slot;
+				Socket							connecting;
 				
-				int delay = 0;
+				synchronized( this ){
 				
-				for ( int i=4;i<consec_fails;i++){
+					if ( socket_closed ){
+						
+						return;
+					}
+					
+					socket_closed	= true;
+					
+					reply_slot		= tor_reply_slot;
+					tor_reply_slot	= null;
+					
+					clients			= new ArrayList<TorPluginSOCKSClient>( socks_clients );
+					
+					socks_clients.clear();
+					
+					hedge_timer		= hedge_event;
+					hedge_event		= null;
+					
+					request			= connect_request;
+					connect_request	= null;
+					
+					connecting			= connecting_socket;
+					connecting_socket	= null;
 					
-					delay += 30*1000;
+					if ( relay_state != null ){
+							
+						relay_state.close();
+					}
+						
+					if ( tor_socket != null ){
+						
+						tor_socket.close();
+					}
 					
-					if ( delay > 15*60*1000 ){
+					if ( tor_registration != null ){
 						
-						delay = 15*60*1000;
+						tor_registration.cancel();
+					}
+					
+					if ( tor_channel != null ){
 						
-						break;
+						tor_channel.close();
 					}
-				}
+						
+					connection.close();
+				}	
 				
-				if ( now - last_connect_time >= delay ){
+					// nobody is waiting for the connect any more, give up on it wherever it has got to
+				
+				if ( request != null ){
 					
-					ok = true;
+					request.cancel();
 				}
-			}
-			
-			if ( ok ){
-				
-				last_connect_time = now;
-			}
-			
-			return( ok );
-		}
-		
-		private void
-		setOutcome(
-			boolean		ok )
-		{
-			if ( ok ){
-				
-				total_ok++;
-				
-				consec_fails = 0;
 				
-			}else{
-				
-				total_fails++;
+				if ( reply_slot != null ){
+					
+					reply_slot.release();
+				}
 				
-				consec_fails++;
+				if ( hedge_timer != null ){
+					
+					hedge_timer.cancel();
+				}
 				
-				if ( consec_fails >= DELAY_AFTER_FAILS ){
+				for ( TorPluginSOCKSClient client: clients ){
 					
-					log( "Failed to connect to '" + host + "' " + consec_fails + " times in a row - backing off (ok=" + total_ok + ", fails=" + total_fails +")" );
+					client.cancel();
 				}
-			}
-		}
-	}
-	
-	private class
-	SOCKSProxy
-		implements AESocksProxyPlugableConnectionFactory
-	{
-		private final boolean	filtering;
-		
-		private InetAddress local_address;
-		
-		private Set<SOCKSProxyConnection>		connections = new HashSet<SOCKSProxyConnection>();
-		
-		private ThreadPool	connect_pool = new ThreadPool( "TorConnect", 10 );
-
-		{
-			try{
-				local_address = InetAddress.getByName( "127.0.0.1" );
 				
-			}catch( Throwable e ){
+				if ( connecting != null ){
+					
+					try{
+						connecting.close();
+					
+					}catch( Throwable e ){
+					}
+				}
 				
-				Debug.printStackTrace(e);
+				streamClosed();
 				
-				local_address = null;
+				closed( this );
 			}
-		}
-		
-		private AESocksProxy proxy;
-		
-		private
-		SOCKSProxy(
-			int			_port,
-			boolean		_filtering,
-			String 		_reason )
-		
-			throws AEProxyException
-		{
-			filtering	= _filtering;
-			
-			proxy = AESocksProxyFactory.create( _port, 120*1000, 120*1000, this );
 			
-			log( "Intermediate SOCKS proxy started on port " + proxy.getPort() + " for " + _reason + ", filtering=" + filtering );
-		}
-		
-		private int
-		getPort()
-		{
-			return( proxy.getPort());
-		}
-		
-		@Override
-		public AESocksProxyPlugableConnection
-		create(
-			AESocksProxyConnection	connection )
-		
-			throws AEProxyException
-		{
-			synchronized( this ){
+			@Override
+			public PasswordAuthentication
+			getAuthentication(
+				String		realm,
+				URL			tracker )
+			{
+				String username = socks_username;
+				String password	= socks_password;
 				
-				if ( connections.size() > 32 ){
+				if ( username != null && password != null ){
 					
-					try{
-						connection.close();
-						
-					}catch( Throwable e ){
-					}
+					return( new PasswordAuthentication( username, password.toCharArray()));
 					
-					throw( new AEProxyException( "Too many connections" ));
+				}else{
+					
+					return( null );
 				}
+			}
 			
-				SOCKSProxyConnection con = new SOCKSProxyConnection( connection );
-				
-				connections.add( con );
-				
-				return( con );
+			@Override
+			public void
+			setAuthenticationOutcome(
+				String		realm,
+				URL			tracker,
+				boolean		success )
+			{
+			}
+			
+			@Override
+			public void
+			clearPasswords()
+			{
 			}
 		}
 		
-		private void
-		closed(
-			SOCKSProxyConnection	connection )
+		protected abstract class
+		ProxyStateRelay
+			implements AEProxyState
 		{
-			synchronized( this ){
+			protected abstract void
+			close();
+			
+			@Override
+			public boolean
+			connect(
+				SocketChannel	sc )
 				
-				connections.remove( connection );
+				throws IOException
+			{
+				throw( new IOException( "Not Supported" ));
 			}
-		}
-		
-		private void
-		destroy()
-		{
-			try{
-				proxy.destroy();
-				
-			}catch( Throwable e ){
+			
+			@Override
+			public String
+			getStateName()
+			{
+				return( "relay" );
 			}
 		}
 		
-		private class
-		SOCKSProxyConnection
-			implements AESocksProxyPlugableConnection, SEPasswordListener
+		protected class
+		ProxyStateRelayData
+			extends ProxyStateRelay
 		{
-			private AESocksProxyConnection	connection;
+			private final int	RELAY_BUFFER_CLASS = TorPluginBufferPool.getSizeClass( 32*1024 );
+			
+			private AEProxyConnection		connection;
 			private Socket					tor_socket;
+			private TorPluginStreamStats	stream_stats;
 			
-			private ProxyStateRelayData		relay_state;
+			private ByteBuffer				source_buffer;
+			private ByteBuffer				target_buffer;
 			
-			private boolean	socket_closed;
+			private boolean					closed;
+			private boolean					write_active;
+					
+			private SocketChannel			source_channel;
+
+			private InputStream				tor_input_stream;
+			private OutputStream			tor_output_stream;
+						
+			protected AESemaphore			write_sem = new AESemaphore( "TorSocket write sem" );
+						
+			protected
+			ProxyStateRelayData(
+				AEProxyConnection		_connection,
+				Socket					_tor_socket,
+				TorPluginStreamStats	_stream_stats )
 			
-			private
-			SOCKSProxyConnection(
-				AESocksProxyConnection		_connection )
-			{
-				connection = _connection;
+				throws IOException
+			{		
+				connection		= _connection;
+				tor_socket		= _tor_socket;
+				stream_stats	= _stream_stats;
+								
+				source_buffer	= buffer_pool.allocate( RELAY_BUFFER_CLASS, false );
+
+				source_channel	= connection.getSourceChannel();
 				
-				connection.disableDNSLookups();
+				tor_input_stream 	= tor_socket.getInputStream();
+				tor_output_stream 	= tor_socket.getOutputStream();
+
+				connection.setReadState( this );
+				
+				connection.setWriteState( this );
+				
+				connection.requestReadSelect( source_channel );
+							
+				connection.setConnected();
+				
+				new AEThread2( "RelayRead" )
+				{			
+					@Override
+					public void
+					run()
+					{
+						ByteBuffer	read_buffer = buffer_pool.allocate( RELAY_BUFFER_CLASS, false );
+						
+						byte[]	buffer = read_buffer.array();
+											
+						while( !connection.isClosed()){
+						
+							try{
+								int	len = tor_input_stream.read( buffer );
+								
+								if ( len <= 0 ){
+									
+									break;
+								}
+								
+								stream_stats.bytesIn( len );
+								
+								synchronized( ProxyStateRelayData.this ){
+									
+									target_buffer = ByteBuffer.wrap( buffer, 0, len );
+								}
+								
+								connection.setTimeStamp();
+								
+								connection.requestWriteSelect( source_channel );
+								
+									// sem will only be released once write is complete
+								
+								write_sem.reserve();
+								
+								rate_limiter.waitFor( stream_stats, len );
+							}catch( Throwable e ){
+								
+								break;
+							}
+						}
+							
+							// write() holds the lock while it uses target_buffer and ignores a null one, so
+							// once it's cleared the buffer can be recycled whatever state we exited in
+						
+						synchronized( ProxyStateRelayData.this ){
+							
+							target_buffer = null;
+							
+							buffer_pool.release( read_buffer );
+						}
+						
+						if ( !connection.isClosed()){
+							
+							connection.close();
+						}
+					}
+				}.start();
 			}
 			
 			@Override
-			public String
-			getName()
+			protected void
+			close()
 			{
-				return( "TorPluginConnection" );
+				synchronized( this ){
+					
+					closed = true;
+					
+					if ( !write_active ){
+						
+						buffer_pool.release( source_buffer );
+						
+						source_buffer = null;
+					}
+				}
+				
+				write_sem.releaseForever();
 			}
 			
 			@Override
-			public InetAddress
-			getLocalAddress()
-			{
-				return( local_address );
-			}
+			public boolean
+			read(
+				SocketChannel 		sc )
 			
-			@Override
-			public int
-			getLocalPort()
-			{
-				return( -1 );
-			}
-
-			@Override
-			public void
-			connect(
-				AESocksProxyAddress		address )
-				
 				throws IOException
 			{
-				String	proxy_host;
-				int		proxy_port;
+				final int	len;
 				
-				String	final_host;
-				int		final_port;
-
-				if ( filtering ){
-															
-					InetAddress target = address.getAddress();
+				synchronized( this ){
 					
-					if ( target != null ){
-						
-						closed( this );
+					if ( closed ){
 						
-						throw( new IOException( "Address should be unresolved" ));
+						throw( new EOFException( "relay closed" ));
 					}
 					
-					final_host	= address.getUnresolvedAddress();
-					final_port	= address.getPort();
-
-					if ( AENetworkClassifier.categoriseAddress( final_host ) == AENetworkClassifier.AT_I2P ){
-						
-						if ( filtering_i2p_port == 0 ){
-							
-							throw( new IOException( "I2P proxy not set" ));
-						}
-						
-						proxy_host	= filtering_i2p_host;
-						proxy_port	= filtering_i2p_port;
-						
-					}else{
+					if ( source_buffer.position() != 0 ){
 						
-						proxy_host	= active_socks_host;
-						proxy_port	= active_socks_port;
+						Debug.out( "TorPluginConnection: source buffer position invalid" );
 					}
-				}else{
+						
+						// data read from source
 					
-					InetAddress target = address.getAddress();
+					connection.setTimeStamp();
 					
-					if ( target == null ){
-						
-						closed( this );
+					len = sc.read( source_buffer );
+					
+					write_active = len > 0;
+				}
+				
+				if ( len == 0 ){
+					
+					return( false );
+				}
+				
+				if ( len == -1 ){
+					
+					throw( new EOFException( "read channel shutdown" ));
+					
+				}else{
+					
+					if ( source_buffer.position() > 0 ){
 						
-						throw( new IOException( "Address should be set" ));
+						connection.cancelReadSelect( source_channel );
+												
+							// offload the write to separate thread as can't afford to block the
+							// proxy
+					
+						new AEThread2( "RelayWrite" )
+						{		
+							@Override
+							public void
+							run()
+							{
+								try{					
+									source_buffer.flip();
+																												
+									tor_output_stream.write( source_buffer.array(), 0, len );
+					
+									source_buffer.position( 0 );
+									
+									source_buffer.limit( source_buffer.capacity());
+									
+									tor_output_stream.flush();
+									
+									stream_stats.bytesOut( len );
+									
+									rate_limiter.waitFor( stream_stats, len );
+																													
+									connection.requestReadSelect( source_channel );								
+
+								}catch( Throwable e ){
+									
+									connection.failed( e );
+								
+								}finally{
+									
+									synchronized( ProxyStateRelayData.this ){
+										
+										write_active = false;
+										
+										if ( closed ){
+											
+											buffer_pool.release( source_buffer );
+											
+											source_buffer = null;
+										}
+									}
+								}
+							}
+						}.start();			
 					}
+				}
+				
+				return( true );
+			}
+			
+			@Override
+			public boolean
+			write(
+				SocketChannel 		sc )
+			
+				throws IOException
+			{
+				synchronized( this ){
+					
+					if ( target_buffer == null ){
+							
+							// reader has exited and recycled the buffer
 						
-					String intermediate_host = target.getHostAddress();
-
-					Object[] entry;
+						return( false );
+					}
 					
-					synchronized( TorPlugin.this ){
+					try{
+						int written = source_channel.write( target_buffer );
+						
+						if ( target_buffer.hasRemaining()){
+											
+							connection.requestWriteSelect( source_channel );
 						
-						entry = intermediate_host_map.get( intermediate_host );
-					}
+						}else{
+							
+							target_buffer = null;
+							
+							write_sem.release();
+						}
+						
+						return( written > 0 );
 					
-					if ( entry == null ){
+					}catch( Throwable e ){
 						
-							// allow limited re-use of an address
-							// of use, for example, when an HTTP URL connection needs to
-							// be authenticated
+						target_buffer = null;
 						
-						entry = intermediate_host_old_map.get( intermediate_host );
-					}
-					
-					if ( entry == null ){
+						write_sem.release();
 						
-						closed( this );
+						if ( e instanceof IOException ){
+							
+							throw((IOException)e);
+						}
 						
-						throw( new IOException( "Intermediate address not found" ));
+						throw( new IOException( "write fails: " + Debug.getNestedExceptionMessage(e)));
 					}
-					
-					proxy_host 	= (String)entry[1];
-					proxy_port	= (Integer)entry[2];
-										
-					final_host = (String)entry[0];
-					final_port = address.getPort();
-
-					final_host = rewriteHost( final_host, true );
 				}
+			}
+		}
+			
+			/**
+			 * Relay where the Tor side is a non-blocking channel pumped by the relay engine. Each direction
+			 * has a single buffer and we stop reading from one side until the other side has drained it
+			 */
+		
+		protected class
+		ProxyStateRelayChannel
+			extends ProxyStateRelay
+			implements TorPluginRelayEngine.Handler
+		{
+			private AEProxyConnection		connection;
+			private SocketChannel			tor_channel;
+			private TorPluginStreamStats	stream_stats;
+			
+			private SocketChannel			source_channel;
+			
+				// buffers are only held while data is in flight, idle streams hold nothing
+			
+			private ByteBuffer				source_buffer;		// client -> tor
+			private ByteBuffer				target_buffer;		// tor -> client
+			
+			private int						source_class	= TorPluginBufferPool.MIN_SIZE_CLASS;
+			private int						target_class	= TorPluginBufferPool.MIN_SIZE_CLASS;
 				
-				final Proxy proxy = new Proxy( Proxy.Type.SOCKS, new InetSocketAddress( proxy_host, proxy_port ));
-						
-				final InetSocketAddress final_address = InetSocketAddress.createUnresolved( final_host, final_port );
+				// rate limiting: how long to hold off reading more once the current buffer has drained
+			
+			private long					source_delay;
+			private long					target_delay;
+			
+			private boolean					closed;
+			
+			private TorPluginRelayEngine.Registration	registration;
 				
-				connect_pool.run(
-					new AERunnable()
-					{
-						@Override
-						public void
-						runSupport() 
-						{
-							try{
-									// Tor uses SOCKS username/password authentication to manage
-									// stream isolation so we need to forward this when delegating
-								
-								boolean	add_pw_listener = connection.getUsername() != null;
-								
-								if ( add_pw_listener ){
-									
-									SESecurityManager.setThreadPasswordHandler( SOCKSProxyConnection.this );
-								}
-								
-								try{
-									Socket socket = new Socket( proxy );
-									
-									socket.connect( final_address );
-									
-									synchronized( SOCKSProxyConnection.this ){
+				// optimistic data: the CONNECT reply is still to be read ahead of any data from Tor
+			
+			private TorPluginSOCKSClient.ReplyReader	reply_reader;
+			
+			private TimerEvent							reply_timeout;
+			
+			private long								connect_start;
+			private TorPluginConnectScheduler.Slot		reply_slot;
+				
+				/**
+				 * @param reply_deadline non-zero if the CONNECT reply hasn't been read yet, the monotonous
+				 * time by which it must arrive
+				 * @param _reply_slot admission slot to release once the reply has arrived or won't, null if none
+				 */
+			
+			protected
+			ProxyStateRelayChannel(
+				AEProxyConnection					_connection,
+				SocketChannel						_tor_channel,
+				TorPluginRelayEngine.Registration	_registration,
+				TorPluginStreamStats				_stream_stats,
+				long								reply_deadline,
+				long								_connect_start,
+				TorPluginConnectScheduler.Slot		_reply_slot )
+				
+				throws IOException
+			{
+				connection		= _connection;
+				tor_channel		= _tor_channel;
+				registration	= _registration;
+				stream_stats	= _stream_stats;
+				connect_start	= _connect_start;
+				reply_slot		= _reply_slot;
+				
+				if ( reply_deadline != 0 ){
+					
+					reply_reader = new TorPluginSOCKSClient.ReplyReader();
+					
+					reply_timeout = 
+						SimpleTimer.addEvent(
+							"TorRelay:reply",
+							SystemTime.getOffsetTime( Math.max( 1000, reply_deadline - SystemTime.getMonotonousTime())),
+							new TimerEventPerformer()
+							{
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									synchronized( ProxyStateRelayChannel.this ){
 										
-										if ( socket_closed ){
-											
-											try{
-												socket.close();
-												
-											}catch( Throwable e ){
+										if ( closed || reply_reader == null ){
 											
-											}
-											
-											throw( new Exception( "Connection already closed" ));
+											return;
 										}
-										
-										tor_socket = socket;
 									}
 									
-									connection.connected();
-								}finally{
-									
-									if ( add_pw_listener ){
-										
-										SESecurityManager.unsetThreadPasswordHandler();
-									}
-								}
-							}catch( Throwable e ){
-								
-								try{
-									connection.close();
+									releaseReplySlot();
 									
-								}catch( Throwable f ){
+									registration.cancel();
 									
+									connection.failed( new SocketTimeoutException( "SOCKS: timeout waiting for connect reply" ));
 								}
-							}
-						}
-					});
+							});
+				}
+				
+				source_channel	= connection.getSourceChannel();
+				
+					// take over the channel's registration from the SOCKS handshake
+				
+				registration.setHandler( this );
+				
+				connection.setReadState( this );
+				
+				connection.setWriteState( this );
+				
+				connection.requestReadSelect( source_channel );
+				
+				connection.setConnected();
+				
+				registration.setInterest( SelectionKey.OP_READ );
 			}
 			
 			@Override
-			public void
-			relayData()
-			
-				throws IOException
+			protected void
+			close()
 			{
 				synchronized( this ){
-				
-					if ( socket_closed ){
+					
+					closed = true;
+					
+					if ( reply_timeout != null ){
 						
-						throw( new IOException( "TorPluginConnection::relayData: socket already closed"));
+						reply_timeout.cancel();
+						
+						reply_timeout = null;
 					}
+					
+					buffer_pool.release( source_buffer );
+					buffer_pool.release( target_buffer );
+					
+					source_buffer	= null;
+					target_buffer	= null;
+				}
+				
+				releaseReplySlot();
+				
+				registration.cancel();
+			}
+			
+			private void
+			releaseReplySlot()
+			{
+				TorPluginConnectScheduler.Slot	slot;
 				
-					relay_state = new ProxyStateRelayData( connection.getConnection(), tor_socket );
+				synchronized( this ){
+					
+					slot		= reply_slot;
+					reply_slot	= null;
+				}
+				
+				if ( slot != null ){
+					
+					slot.release();
 				}
 			}
+				
+				// AEProxy side: data available from the client
 			
 			@Override
-			public void
-			close()
+			public boolean
+			read(
+				SocketChannel 		sc )
 			
 				throws IOException
 			{
-				synchronized( this ){
+				connection.setTimeStamp();
 				
-					if ( socket_closed ){
+				synchronized( this ){
+					
+					if ( closed ){
 						
-						return;
+						throw( new EOFException( "relay closed" ));
 					}
 					
-					socket_closed	= true;
-					
-					if ( relay_state != null ){
-							
-						relay_state.close();
-					}
+					if ( source_buffer != null ){
 						
-					if ( tor_socket != null ){
+						Debug.out( "TorPluginConnection: source buffer still in use" );
 						
-						tor_socket.close();
+						return( false );
 					}
+					
+					source_buffer = buffer_pool.allocate( source_class, true );
+					
+					int	len = sc.read( source_buffer );
+					
+					if ( len <= 0 ){
 						
-					connection.close();
-				}	
+						buffer_pool.release( source_buffer );
+						
+						source_buffer = null;
+						
+						if ( len == 0 ){
+							
+							return( false );
+						}
+						
+						throw( new EOFException( "read channel shutdown" ));
+					}
+					
+					source_class = TorPluginBufferPool.adaptSizeClass( source_class, len );
+					
+					source_delay = rate_limiter.getDelay( stream_stats, len );
+					
+					source_buffer.flip();
+				}
+					
+					// no more reads from the client until this lot has gone to Tor
 				
+				connection.cancelReadSelect( source_channel );
 				
-				closed( this );
+				writeToTor();
+				
+				return( true );
 			}
 			
-			@Override
-			public PasswordAuthentication
-			getAuthentication(
-				String		realm,
-				URL			tracker )
+			private void
+			writeToTor()
+				
+				throws IOException
 			{
-				String username = connection.getUsername();
-				String password	= connection.getPassword();
+				boolean	drained;
+				long	delay = 0;
 				
-				if ( username != null && password != null ){
+				synchronized( this ){
 					
-					return( new PasswordAuthentication( username, password.toCharArray()));
+					if ( closed || source_buffer == null ){
+						
+						return;
+					}
 					
-				}else{
+					int	written = tor_channel.write( source_buffer );
 					
-					return( null );
-				}
-			}
-			
-			@Override
-			public void
-			setAuthenticationOutcome(
-				String		realm,
-				URL			tracker,
-				boolean		success )
-			{
-			}
-			
-			@Override
-			public void
-			clearPasswords()
-			{
-			}
-		}
-		
-		protected class
-		ProxyStateRelayData
-			implements AEProxyState
-		{
-			private final int	RELAY_BUFFER_SIZE = 32*1024;
-			
-			private AEProxyConnection		connection;
-			private Socket					tor_socket;
-			
-			private ByteBuffer				source_buffer;
-			private ByteBuffer				target_buffer;
+					if ( written > 0 ){
+						
+						stream_stats.bytesOut( written );
+					}
 					
-			private SocketChannel			source_channel;
-
-			private InputStream				tor_input_stream;
-			private OutputStream			tor_output_stream;
+					drained = !source_buffer.hasRemaining();
+					
+					if ( drained ){
 						
-			protected AESemaphore			write_sem = new AESemaphore( "TorSocket write sem" );
+						buffer_pool.release( source_buffer );
 						
-			protected
-			ProxyStateRelayData(
-				AEProxyConnection	_connection,
-				Socket				_tor_socket )
-			
-				throws IOException
-			{		
-				connection	= _connection;
-				tor_socket	= _tor_socket;
-								
-				source_buffer	= ByteBuffer.allocate( RELAY_BUFFER_SIZE );
-
-				source_channel	= connection.getSourceChannel();
+						source_buffer = null;
+						
+						delay = source_delay;
+					}
+				}
+				
+				if ( drained ){
+					
+					registration.removeInterest( SelectionKey.OP_WRITE );
+					
+					if ( delay > 0 ){
+						
+						SimpleTimer.addEvent(
+							"TorRelay:limit",
+							SystemTime.getOffsetTime( delay ),
+							new TimerEventPerformer()
+							{
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									synchronized( ProxyStateRelayChannel.this ){
+										
+										if ( closed ){
+											
+											return;
+										}
+									}
+									
+									connection.requestReadSelect( source_channel );
+								}
+							});
+					}else{
+						
+						connection.requestReadSelect( source_channel );
+					}
 				
-				tor_input_stream 	= tor_socket.getInputStream();
-				tor_output_stream 	= tor_socket.getOutputStream();
-
-				connection.setReadState( this );
+				}else{
+					
+					registration.addInterest( SelectionKey.OP_WRITE );
+				}
+			}
 				
-				connection.setWriteState( this );
+				// relay engine side
+			
+			@Override
+			public void
+			selected(
+				int		ready_ops )
 				
-				connection.requestReadSelect( source_channel );
-							
-				connection.setConnected();
+				throws IOException
+			{
+				if (( ready_ops & SelectionKey.OP_WRITE ) != 0 ){
+					
+					writeToTor();
+				}
 				
-				new AEThread2( "RelayRead" )
-				{			
-					@Override
-					public void
-					run()
-					{
-						byte[]	buffer = new byte[RELAY_BUFFER_SIZE];
-											
-						while( !connection.isClosed()){
+				if (( ready_ops & SelectionKey.OP_READ ) != 0 ){
+					
+					int		len;
+					boolean	replied = false;
+					
+					synchronized( this ){
 						
-							try{
-								int	len = tor_input_stream.read( buffer );
-								
-								if ( len <= 0 ){
-									
-									break;
-								}
-																																
-								target_buffer = ByteBuffer.wrap( buffer, 0, len );
-								
-								connection.setTimeStamp();
+						if ( closed || target_buffer != null ){
+							
+							return;
+						}
+						
+						if ( reply_reader != null ){
 								
-								if ( target_buffer.hasRemaining()){
+								// a failed connect throws and the client sees the connection close, which is
+								// all it can be told now that it has been given the go-ahead
+							
+							if ( !reply_reader.read( tor_channel )){
 								
-									connection.requestWriteSelect( source_channel );
-									
-										// sem will only be released once write is complete
-									
-									write_sem.reserve();
-									
-								}else{
+								return;
+							}
+							
+							reply_reader = null;
+							
+							if ( reply_timeout != null ){
 								
-									target_buffer	= null;
-								}
-							}catch( Throwable e ){
+								reply_timeout.cancel();
 								
-								break;
+								reply_timeout = null;
 							}
+							
+							socks_connect_latency.add( SystemTime.getMonotonousTime() - connect_start );
+							
+							stream_stats.connected();
+							
+							replied = true;
+						}
+						
+						target_buffer = buffer_pool.allocate( target_class, true );
+						
+						len = tor_channel.read( target_buffer );
+						
+						if ( len > 0 ){
+							
+							target_class = TorPluginBufferPool.adaptSizeClass( target_class, len );
+							
+							stream_stats.bytesIn( len );
+							
+							target_delay = rate_limiter.getDelay( stream_stats, len );
+							
+							target_buffer.flip();
+						
+						}else{
+							
+							buffer_pool.release( target_buffer );
+							
+							target_buffer = null;
 						}
+					}
+					
+					if ( replied ){
+						
+						releaseReplySlot();
+					}
+					
+					if ( len == -1 ){
+						
+						registration.cancel();
 						
 						if ( !connection.isClosed()){
 							
 							connection.close();
 						}
+					}else if ( len > 0 ){
+						
+						connection.setTimeStamp();
+							
+							// no more reads from Tor until the client has taken this lot
+						
+						registration.removeInterest( SelectionKey.OP_READ );
+						
+						connection.requestWriteSelect( source_channel );
 					}
-				}.start();
+				}
 			}
 			
-			protected void
-			close()
-			{						
-				write_sem.releaseForever();
+			@Override
+			public void
+			failed(
+				Throwable	error )
+			{
+				connection.failed( error );
 			}
+				
+				// AEProxy side: client can accept data
 			
 			@Override
 			public boolean
-			read(
+			write(
 				SocketChannel 		sc )
-			
+				
 				throws IOException
 			{
-				if ( source_buffer.position() != 0 ){
-					
-					Debug.out( "TorPluginConnection: source buffer position invalid" );
-				}
-				
-					// data read from source
+				int		written;
+				boolean	drained;
+				long	delay = 0;
 				
-				connection.setTimeStamp();
-																
-				final int	len = sc.read( source_buffer );
-		
-				if ( len == 0 ){
-					
-					return( false );
-				}
-				
-				if ( len == -1 ){
-					
-					throw( new EOFException( "read channel shutdown" ));
-					
-				}else{
+				synchronized( this ){
 					
-					if ( source_buffer.position() > 0 ){
+					if ( closed || target_buffer == null ){
 						
-						connection.cancelReadSelect( source_channel );
-												
-							// offload the write to separate thread as can't afford to block the
-							// proxy
+						return( false );
+					}
 					
-						new AEThread2( "RelayWrite" )
-						{		
-							@Override
-							public void
-							run()
-							{
-								try{					
-									source_buffer.flip();
-																												
-									tor_output_stream.write( source_buffer.array(), 0, len );
+					written = source_channel.write( target_buffer );
 					
-									source_buffer.position( 0 );
-									
-									source_buffer.limit( source_buffer.capacity());
-									
-									tor_output_stream.flush();
-																													
-									connection.requestReadSelect( source_channel );								
-
-								}catch( Throwable e ){
-									
-									connection.failed( e );
-								}
-							}
-						}.start();			
-					}
-				}
-				
-				return( true );
-			}
-			
-			@Override
-			public boolean
-			write(
-				SocketChannel 		sc )
-			
-				throws IOException
-			{
-				try{
-					int written = source_channel.write( target_buffer );
-											
-					if ( target_buffer.hasRemaining()){
-										
-						connection.requestWriteSelect( source_channel );
+					drained = !target_buffer.hasRemaining();
+					
+					if ( drained ){
 						
-					}else{
+						buffer_pool.release( target_buffer );
 						
 						target_buffer = null;
 						
-						write_sem.release();
+						delay = target_delay;
 					}
+				}
+				
+				if ( drained ){
 					
-					return( written > 0 );
-					
-				}catch( Throwable e ){
-					
-					target_buffer = null;
-					
-					write_sem.release();
-					
-					if ( e instanceof IOException ){
+					if ( delay > 0 ){
+						
+						SimpleTimer.addEvent(
+							"TorRelay:limit",
+							SystemTime.getOffsetTime( delay ),
+							new TimerEventPerformer()
+							{
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									registration.addInterest( SelectionKey.OP_READ );
+								}
+							});
+					}else{
 						
-						throw((IOException)e);
+						registration.addInterest( SelectionKey.OP_READ );
 					}
+				
+				}else{
 					
-					throw( new IOException( "write fails: " + Debug.getNestedExceptionMessage(e)));
+					connection.requestWriteSelect( source_channel );
 				}
+				
+				return( written > 0 );
 			}
+		}
+	}
+	
+	private static class
+	Settings
+	{
+		private final boolean	plugin_enabled;
+		private final boolean	external_tor;
+		private final boolean	start_on_demand;
+		private final boolean	stop_on_idle;
+		private final boolean	prompt_on_use;
+		private final boolean	prompt_skip_vuze;
+		private final boolean	debug_server;
+		private final boolean	relay_nio;
+		private final boolean	socks_pool_enabled;
+		private final boolean	optimistic_data;
+		private final boolean	hedged_connects;
+		private final boolean	domain_backoff;
+		
+		private final String	external_socks_host;
+		private final int		external_socks_port;
 			
-			@Override
-			public boolean
-			connect(
-				SocketChannel	sc )
-			
-				throws IOException
-			{
-				throw( new IOException( "Not Supported" ));
-			}
-			
-			@Override
-			public String
-			getStateName()
-			{
-				return( "relay" );
+			// the SOCKS server in use, internal or external, port 0 if disabled
+		
+		private final String	active_socks_host;
+		private final int		active_socks_port;
+		
+		private final int		max_socks_connections;
+		
+		private
+		Settings()
+		{
+			this( false, false, false, false, false, false, false, false, false, false, false, false, "127.0.0.1", 0, "127.0.0.1", 0, 0 );
+		}
+		
+		private
+		Settings(
+			boolean		_plugin_enabled,
+			boolean		_external_tor,
+			boolean		_start_on_demand,
+			boolean		_stop_on_idle,
+			boolean		_prompt_on_use,
+			boolean		_prompt_skip_vuze,
+			boolean		_debug_server,
+			boolean		_relay_nio,
+			boolean		_socks_pool_enabled,
+			boolean		_optimistic_data,
+			boolean		_hedged_connects,
+			boolean		_domain_backoff,
+			String		_external_socks_host,
+			int			_external_socks_port,
+			String		_internal_socks_host,
+			int			_internal_socks_port,
+			int			_max_socks_connections )
+		{
+			plugin_enabled			= _plugin_enabled;
+			external_tor			= _external_tor;
+			start_on_demand			= _start_on_demand;
+			stop_on_idle			= _stop_on_idle;
+			prompt_on_use			= _prompt_on_use;
+			prompt_skip_vuze		= _prompt_skip_vuze;
+			debug_server			= _debug_server;
+			relay_nio				= _relay_nio;
+			socks_pool_enabled		= _socks_pool_enabled;
+			optimistic_data			= _optimistic_data;
+			hedged_connects			= _hedged_connects;
+			domain_backoff			= _domain_backoff;
+			external_socks_host		= _external_socks_host;
+			external_socks_port		= _external_socks_port;
+			max_socks_connections	= _max_socks_connections;
+			
+			if ( plugin_enabled ){
+				
+				if ( external_tor ){
+					
+					active_socks_host	= external_socks_host;
+					active_socks_port	= external_socks_port;
+				
+				}else{
+					
+					active_socks_host	= _internal_socks_host;
+					active_socks_port	= _internal_socks_port;
+				}
+			}else{
+				
+				active_socks_host	= "127.0.0.1";
+				active_socks_port	= 0;
 			}
 		}
 	}
@@ -4442,20 +6922,29 @@ TorPlugin
 	{
 		private final long	created = SystemTime.getMonotonousTime();
 		
-		private	final String	host;
-		private final String	intermediate_host;
+		private final Proxy									proxy;
+		private	final String								host;
+		private final TorPluginIntermediateHosts.Mapping	intermediate;
 		
 		private final String creator;
 		
+		private volatile TorPluginTimerWheel.Timeout<ProxyMapEntry>	expiry;
+		
+		private volatile long	lease_ttl;
+		
 		private
 		ProxyMapEntry(
-			String		_host,
-			String		_intermediate_host )
+			Proxy								_proxy,
+			String								_host,
+			TorPluginIntermediateHosts.Mapping	_intermediate,
+			long								_lease_ttl )
 		{
-			host				= _host;
-			intermediate_host	= _intermediate_host;
+			proxy			= _proxy;
+			host			= _host;
+			intermediate	= _intermediate;
+			lease_ttl		= _lease_ttl;
 			
-			if ( Constants.isCVSVersion()){
+			if ( Constants.isCVSVersion() && RandomUtils.nextInt( CREATOR_SAMPLE_RATE ) == 0 ){
 				
 				creator = Debug.getCompressedStackTrace();
 				
@@ -4471,16 +6960,59 @@ TorPlugin
 			return( created );
 		}
 		
+		private Proxy
+		getProxy()
+		{
+			return( proxy );
+		}
+		
+		private boolean
+		isLease()
+		{
+			return( lease_ttl > 0 );
+		}
+		
+		private long
+		getLeaseTTL()
+		{
+			return( lease_ttl );
+		}
+		
+		private void
+		setLeaseTTL(
+			long		ttl )
+		{
+			lease_ttl = ttl;
+		}
+		
+		private void
+		setExpiry(
+			TorPluginTimerWheel.Timeout<ProxyMapEntry>	_expiry )
+		{
+			expiry = _expiry;
+		}
+		
+		private void
+		cancelExpiry()
+		{
+			TorPluginTimerWheel.Timeout<ProxyMapEntry> e = expiry;
+			
+			if ( e != null ){
+				
+				e.cancel();
+			}
+		}
+		
 		private String
 		getHost()
 		{
 			return( host );
 		}
 		
-		private String
-		getIntermediateHost()
+		private TorPluginIntermediateHosts.Mapping
+		getIntermediate()
 		{
-			return( intermediate_host );
+			return( intermediate );
 		}
 		
 		private String
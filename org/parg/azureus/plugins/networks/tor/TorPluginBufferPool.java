@@ -0,0 +1,294 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of relay buffers in power-of-two size classes. Streams hold a buffer only while
+ * data is in flight and step up/down a size class depending on how full their reads are.
+ */
+
+public class
+TorPluginBufferPool
+{
+	public static final int	MIN_SIZE_CLASS	= 0;
+	public static final int	MAX_SIZE_CLASS	= 4;
+	
+	private static final int[]	SIZES = { 4*1024, 8*1024, 16*1024, 32*1024, 64*1024 };
+	
+	private static final int	DIRECT_BYTES_PER_CLASS	= 1024*1024;
+	private static final int	HEAP_BYTES_PER_CLASS	= 512*1024;
+	
+	private static final TorPluginBufferPool	singleton = new TorPluginBufferPool();
+	
+	public static TorPluginBufferPool
+	getSingleton()
+	{
+		return( singleton );
+	}
+	
+	private final SizeClass[]	direct_classes	= new SizeClass[SIZES.length];
+	private final SizeClass[]	heap_classes	= new SizeClass[SIZES.length];
+	
+	private final AtomicLong	hits		= new AtomicLong();
+	private final AtomicLong	misses		= new AtomicLong();
+	private final AtomicLong	outstanding	= new AtomicLong();
+	
+	private
+	TorPluginBufferPool()
+	{
+		for ( int i=0;i<SIZES.length;i++){
+			
+			direct_classes[i]	= new SizeClass( SIZES[i], DIRECT_BYTES_PER_CLASS/SIZES[i] );
+			heap_classes[i]		= new SizeClass( SIZES[i], HEAP_BYTES_PER_CLASS/SIZES[i] );
+		}
+	}
+	
+	public static int
+	getSize(
+		int		size_class )
+	{
+		return( SIZES[size_class] );
+	}
+		
+		/**
+		 * @return smallest size class that holds at least 'size' bytes, capped at the largest class
+		 */
+	
+	public static int
+	getSizeClass(
+		int		size )
+	{
+		for ( int i=0;i<SIZES.length;i++){
+			
+			if ( SIZES[i] >= size ){
+				
+				return( i );
+			}
+		}
+		
+		return( MAX_SIZE_CLASS );
+	}
+		
+		/**
+		 * Grow if the last read filled the buffer, shrink if it used less than a quarter of it
+		 */
+	
+	public static int
+	adaptSizeClass(
+		int		size_class,
+		int		last_read )
+	{
+		int	size = SIZES[size_class];
+		
+		if ( last_read >= size ){
+			
+			if ( size_class < MAX_SIZE_CLASS ){
+				
+				return( size_class + 1 );
+			}
+		}else if ( last_read <= size/4 ){
+			
+			if ( size_class > MIN_SIZE_CLASS ){
+				
+				return( size_class - 1 );
+			}
+		}
+		
+		return( size_class );
+	}
+	
+	public ByteBuffer
+	allocate(
+		int			size_class,
+		boolean		direct )
+	{
+		SizeClass sc = direct?direct_classes[size_class]:heap_classes[size_class];
+		
+		ByteBuffer buffer = sc.free.poll();
+		
+		if ( buffer == null ){
+			
+			misses.incrementAndGet();
+			
+			buffer = direct?ByteBuffer.allocateDirect( sc.size ):ByteBuffer.allocate( sc.size );
+		
+		}else{
+			
+			sc.pooled.decrementAndGet();
+			
+			hits.incrementAndGet();
+		}
+		
+		outstanding.incrementAndGet();
+		
+		return( buffer );
+	}
+		
+		/**
+		 * Returns 'buffer' if its size class is still appropriate, otherwise releases it and returns
+		 * one of the adapted size
+		 */
+	
+	public ByteBuffer
+	adapt(
+		ByteBuffer		buffer,
+		int				last_read )
+	{
+		int	size_class	= getSizeClass( buffer.capacity());
+		
+		int	new_class	= adaptSizeClass( size_class, last_read );
+		
+		if ( new_class == size_class ){
+			
+			return( buffer );
+		}
+		
+		boolean direct = buffer.isDirect();
+		
+		release( buffer );
+		
+		return( allocate( new_class, direct ));
+	}
+	
+	public void
+	release(
+		ByteBuffer		buffer )
+	{
+		if ( buffer == null ){
+			
+			return;
+		}
+		
+		outstanding.decrementAndGet();
+		
+		int	size_class = getSizeClass( buffer.capacity());
+		
+		SizeClass sc = buffer.isDirect()?direct_classes[size_class]:heap_classes[size_class];
+		
+		if ( sc.size != buffer.capacity()){
+			
+			return;
+		}
+		
+		if ( sc.pooled.incrementAndGet() > sc.max_pooled ){
+				
+				// pool full, let it go
+			
+			sc.pooled.decrementAndGet();
+			
+			return;
+		}
+		
+		buffer.clear();
+		
+		sc.free.add( buffer );
+	}
+	
+	public long
+	getOutstandingCount()
+	{
+		return( outstanding.get());
+	}
+	
+	public long
+	getPooledBytes()
+	{
+		long	total = 0;
+		
+		for ( int i=0;i<SIZES.length;i++){
+			
+			total += (long)direct_classes[i].pooled.get() * SIZES[i];
+			total += (long)heap_classes[i].pooled.get() * SIZES[i];
+		}
+		
+		return( total );
+	}
+		
+		/**
+		 * @return hit rate in percent, -1 if no allocations yet
+		 */
+	
+	public int
+	getHitRate()
+	{
+		long	h = hits.get();
+		long	m = misses.get();
+		
+		long	total = h + m;
+		
+		if ( total == 0 ){
+			
+			return( -1 );
+		}
+		
+		return((int)( h*100/total ));
+	}
+	
+	public boolean
+	hasActivity()
+	{
+		return( hits.get() + misses.get() > 0 );
+	}
+	
+	public String
+	getString()
+	{
+		String	direct_str	= "";
+		String	heap_str	= "";
+		
+		for ( int i=0;i<SIZES.length;i++){
+			
+			direct_str	+= (i==0?"":"/") + direct_classes[i].pooled.get();
+			heap_str	+= (i==0?"":"/") + heap_classes[i].pooled.get();
+		}
+		
+		return( "in use=" + outstanding.get() +
+				", pooled=" + ( getPooledBytes()/1024 ) + "KB (direct " + direct_str + ", heap " + heap_str + ")" +
+				", hit rate=" + getHitRate() + "%" );
+	}
+	
+	private static class
+	SizeClass
+	{
+		private final int		size;
+		private final int		max_pooled;
+		
+		private final ConcurrentLinkedQueue<ByteBuffer>	free = new ConcurrentLinkedQueue<ByteBuffer>();
+		
+		private final AtomicInteger		pooled = new AtomicInteger();
+		
+		private
+		SizeClass(
+			int			_size,
+			int			_max_pooled )
+		{
+			size		= _size;
+			max_pooled	= _max_pooled;
+		}
+	}
+}
@@ -0,0 +1,620 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SimpleTimer;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.TimerEvent;
+import com.biglybt.core.util.TimerEventPerformer;
+import com.biglybt.core.util.TimerEventPeriodic;
+
+/**
+ * Admission control for outbound Tor connects. At most 'max_active' connects are in progress at once, the rest
+ * wait in a bounded queue until admitted or their deadline passes. Waiting connects are served by
+ * traffic class priority and, within a class, round-robin across destination hosts so that one busy
+ * host can't starve the others.
+ */
+
+public class
+TorPluginConnectScheduler
+{
+		// indexed by TorPluginRateLimiter.TC_*, lower value is served first - bulk goes last
+	
+	private static final int[]	CLASS_PRIORITY = { 0, 1, 3, 2 };
+	
+	private static final int	PRIORITY_LEVELS	= 4;
+	
+	private final String		name;
+	
+	private int		max_active;
+	private int		max_queued;
+	private long	max_wait;
+	
+	private int		active;
+	private int		queued;
+	
+	private final PriorityQueue[]	queues = new PriorityQueue[PRIORITY_LEVELS];
+	
+	private TimerEventPeriodic		expiry_timer;
+	
+	private long	admitted;
+	private long	rejected_full;
+	private long	expired;
+	private long	cancelled;
+	private long	wait_total;
+	private long	wait_max;
+	private int		queued_max;
+	
+	public
+	TorPluginConnectScheduler(
+		String		_name,
+		int			_max_active,
+		int			_max_queued,
+		long		_max_wait )
+	{
+		name	= _name;
+		
+		for ( int i=0;i<queues.length;i++){
+			
+			queues[i] = new PriorityQueue();
+		}
+		
+		setLimits( _max_active, _max_queued, _max_wait );
+	}
+	
+	public void
+	setLimits(
+		int			_max_active,
+		int			_max_queued,
+		long		_max_wait )
+	{
+		synchronized( this ){
+			
+			max_active	= Math.max( 1, _max_active );
+			max_queued	= Math.max( 0, _max_queued );
+			max_wait	= _max_wait;
+		}
+		
+		dispatch();
+	}
+		
+		/**
+		 * Queues the task for admission. Exactly one of task.run() or task.rejected() will be called
+		 * unless the returned entry is cancelled while still waiting
+		 * @param deadline monotonous time by which the task must be admitted, 0 for the default max wait
+		 */
+	
+	public Entry
+	submit(
+		String		host,
+		int			traffic_class,
+		long		deadline,
+		Task		task )
+	{
+		long	now = SystemTime.getMonotonousTime();
+		
+		String	reject = null;
+		
+		boolean	was_queued = false;
+		
+		Entry	entry = null;
+		
+		synchronized( this ){
+			
+			if ( active < max_active && queued == 0 ){
+				
+				active++;
+				
+				admitted++;
+			
+			}else if ( queued >= max_queued ){
+				
+				rejected_full++;
+				
+				reject = "Connect queue full (" + queued + " waiting)";
+			
+			}else{
+				
+				long	max_deadline = now + max_wait;
+				
+				if ( deadline <= 0 || deadline > max_deadline ){
+					
+					deadline = max_deadline;
+				}
+				
+				entry = new Entry( CLASS_PRIORITY[ traffic_class ], host, deadline, now, task );
+				
+				queues[ entry.level ].add( entry );
+				
+				queued++;
+				
+				if ( queued > queued_max ){
+					
+					queued_max = queued;
+				}
+				
+				if ( expiry_timer == null ){
+					
+					expiry_timer =
+						SimpleTimer.addPeriodicEvent(
+							"TorConnectScheduler:" + name,
+							1000,
+							new TimerEventPerformer()
+							{
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									dispatch();
+								}
+							});
+				}
+				
+				was_queued = true;
+			}
+		}
+		
+		if ( reject != null ){
+			
+			rejected( task, reject );
+		
+		}else if ( was_queued ){
+			
+			dispatch();
+		
+		}else{
+			
+			start( task );
+		}
+		
+		return( entry );
+	}
+	
+	private void
+	start(
+		Task		task )
+	{
+		Slot	slot = new Slot();
+		
+		try{
+			task.run( slot );
+		
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+			
+			slot.release();
+		}
+	}
+	
+	private void
+	rejected(
+		Task		task,
+		String		reason )
+	{
+		try{
+			task.rejected( reason );
+		
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+		}
+	}
+		
+		/**
+		 * Expires overdue entries and admits waiting ones while there's capacity
+		 */
+	
+	private void
+	dispatch()
+	{
+		List<Entry>	to_start	= null;
+		List<Entry>	to_expire	= null;
+		
+		long	now = SystemTime.getMonotonousTime();
+		
+		synchronized( this ){
+			
+			if ( queued == 0 ){
+				
+				return;
+			}
+			
+			for ( PriorityQueue queue: queues ){
+				
+				List<Entry> overdue = queue.removeExpired( now );
+				
+				if ( overdue != null ){
+					
+					if ( to_expire == null ){
+						
+						to_expire = overdue;
+					
+					}else{
+						
+						to_expire.addAll( overdue );
+					}
+				}
+			}
+			
+			if ( to_expire != null ){
+				
+				queued 	-= to_expire.size();
+				expired	+= to_expire.size();
+			}
+			
+			while( active < max_active && queued > 0 ){
+				
+				Entry	entry = null;
+				
+				for ( PriorityQueue queue: queues ){
+					
+					entry = queue.next();
+					
+					if ( entry != null ){
+						
+						break;
+					}
+				}
+				
+				if ( entry == null ){
+					
+					Debug.out( "Connect queue count inconsistent" );
+					
+					queued = 0;
+					
+					break;
+				}
+				
+				queued--;
+				
+				active++;
+				
+				admitted++;
+				
+				long	wait = now - entry.queued_time;
+				
+				wait_total	+= wait;
+				
+				if ( wait > wait_max ){
+					
+					wait_max = wait;
+				}
+				
+				if ( to_start == null ){
+					
+					to_start = new ArrayList<Entry>();
+				}
+				
+				to_start.add( entry );
+			}
+			
+			if ( queued == 0 && expiry_timer != null ){
+				
+				expiry_timer.cancel();
+				
+				expiry_timer = null;
+			}
+		}
+		
+		if ( to_expire != null ){
+			
+			for ( Entry entry: to_expire ){
+				
+				rejected( entry.task, "Timed out waiting for a connect slot" );
+			}
+		}
+		
+		if ( to_start != null ){
+			
+			for ( Entry entry: to_start ){
+				
+				start( entry.task );
+			}
+		}
+	}
+	
+	public int
+	getQueuedCount()
+	{
+		synchronized( this ){
+			
+			return( queued );
+		}
+	}
+	
+	public int
+	getActiveCount()
+	{
+		synchronized( this ){
+			
+			return( active );
+		}
+	}
+	
+	public boolean
+	hasActivity()
+	{
+		synchronized( this ){
+			
+			return( admitted + rejected_full + expired + cancelled > 0 );
+		}
+	}
+	
+	public Map<String,Object>
+	toMap()
+	{
+		synchronized( this ){
+			
+			Map<String,Object>	map = new HashMap<String,Object>();
+			
+			map.put( "active", active );
+			map.put( "queued", queued );
+			map.put( "queued_max", queued_max );
+			map.put( "admitted", admitted );
+			map.put( "rejected", rejected_full );
+			map.put( "expired", expired );
+			map.put( "cancelled", cancelled );
+			map.put( "wait_avg", admitted==0?0:( wait_total/admitted ));
+			map.put( "wait_max", wait_max );
+			
+			return( map );
+		}
+	}
+	
+	public String
+	getString()
+	{
+		synchronized( this ){
+			
+			return( "active=" + active + "/" + max_active +
+					", queued=" + queued + "/" + max_queued + " (max " + queued_max + ")" +
+					", admitted=" + admitted + ", rejected=" + rejected_full + ", expired=" + expired + ", cancelled=" + cancelled +
+					", wait avg=" + ( admitted==0?0:( wait_total/admitted )) + "ms, max=" + wait_max + "ms" );
+		}
+	}
+	
+	public interface
+	Task
+	{
+			/**
+			 * Called once admitted, on whichever thread made the admission so must not block. The
+			 * slot must be released when the connect completes or fails
+			 */
+		
+		public void
+		run(
+			Slot		slot );
+		
+		public void
+		rejected(
+			String		reason );
+	}
+	
+	public class
+	Slot
+	{
+		private boolean	released;
+		
+		private
+		Slot()
+		{
+		}
+		
+		public void
+		release()
+		{
+			synchronized( TorPluginConnectScheduler.this ){
+				
+				if ( released ){
+					
+					return;
+				}
+				
+				released = true;
+				
+				active--;
+			}
+			
+			dispatch();
+		}
+	}
+	
+	public class
+	Entry
+	{
+		private final int		level;
+		private final String	host;
+		private final long		deadline;
+		private final long		queued_time;
+		private final Task		task;
+		
+		private
+		Entry(
+			int			_level,
+			String		_host,
+			long		_deadline,
+			long		_queued_time,
+			Task		_task )
+		{
+			level		= _level;
+			host		= _host;
+			deadline	= _deadline;
+			queued_time	= _queued_time;
+			task		= _task;
+		}
+			
+			/**
+			 * Withdraws the entry if it is still waiting, neither run() nor rejected() will be called
+			 * @return false if it has already been admitted or rejected
+			 */
+		
+		public boolean
+		cancel()
+		{
+			synchronized( TorPluginConnectScheduler.this ){
+				
+				if ( !queues[level].remove( this )){
+					
+					return( false );
+				}
+				
+				queued--;
+				
+				cancelled++;
+				
+				if ( queued == 0 && expiry_timer != null ){
+					
+					expiry_timer.cancel();
+					
+					expiry_timer = null;
+				}
+			}
+			
+			return( true );
+		}
+	}
+		
+		/**
+		 * Waiting entries for one priority level, grouped by host and served round-robin
+		 */
+	
+	private static class
+	PriorityQueue
+	{
+		private final LinkedHashMap<String,LinkedList<Entry>>	hosts = new LinkedHashMap<String,LinkedList<Entry>>();
+		
+		private void
+		add(
+			Entry		entry )
+		{
+			LinkedList<Entry> list = hosts.get( entry.host );
+			
+			if ( list == null ){
+				
+				list = new LinkedList<Entry>();
+				
+				hosts.put( entry.host, list );
+			}
+			
+			list.add( entry );
+		}
+		
+		private Entry
+		next()
+		{
+			if ( hosts.isEmpty()){
+				
+				return( null );
+			}
+			
+			Iterator<Map.Entry<String,LinkedList<Entry>>> it = hosts.entrySet().iterator();
+			
+			Map.Entry<String,LinkedList<Entry>> first = it.next();
+			
+			it.remove();
+			
+			LinkedList<Entry> list = first.getValue();
+			
+			Entry	entry = list.removeFirst();
+			
+			if ( !list.isEmpty()){
+					
+					// back of the line for this host
+				
+				hosts.put( first.getKey(), list );
+			}
+			
+			return( entry );
+		}
+		
+		private boolean
+		remove(
+			Entry		entry )
+		{
+			LinkedList<Entry> list = hosts.get( entry.host );
+			
+			if ( list == null || !list.remove( entry )){
+				
+				return( false );
+			}
+			
+			if ( list.isEmpty()){
+				
+				hosts.remove( entry.host );
+			}
+			
+			return( true );
+		}
+		
+		private List<Entry>
+		removeExpired(
+			long		now )
+		{
+			List<Entry>	result = null;
+			
+			Iterator<LinkedList<Entry>> host_it = hosts.values().iterator();
+			
+			while( host_it.hasNext()){
+				
+				LinkedList<Entry> list = host_it.next();
+				
+				Iterator<Entry> it = list.iterator();
+				
+				while( it.hasNext()){
+					
+					Entry entry = it.next();
+					
+					if ( now >= entry.deadline ){
+						
+						it.remove();
+						
+						if ( result == null ){
+							
+							result = new ArrayList<Entry>();
+						}
+						
+						result.add( entry );
+					}
+				}
+				
+				if ( list.isEmpty()){
+					
+					host_it.remove();
+				}
+			}
+			
+			return( result );
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled domain rewrite rules, one per line as <from>=<to>:
+ * 
+ *   example.com=example.net		example.com and any subdomain, a.example.com -> a.example.net
+ *   *.example.com=example.net	subdomains only
+ *   example.com.=example.net	example.com only
+ *   
+ * The rules are held in a TorPluginLabelTrie so a lookup walks the host once without splitting or
+ * building strings, the most specific match wins. Instances are immutable apart from a cache of
+ * results and are replaced as a whole when the rules change.
+ * 
+ * Built-in rules take precedence over the user's but are only applied when asked for, they map
+ * BiglyBT's own hosts to their onion services
+ */
+
+public class
+TorPluginDomainRewrites
+{
+	private static final String[]	BUILTIN_RULES = {
+		"version.biglybt.com.=yh6p7w5v4puo36vumdjabo4lggit4n6iua5l7eyonyhexg4lkj2n6yad.onion",
+		"plugins.biglybt.com.=xp5qetgwtj6w62sutz2xnjpx2l7j4z56mbt7xr7wmejerbg67g7nwfyd.onion",
+		"i2pboot.biglybt.com.=547reb67onr5bq2zb4n77qtrk2gzyskeln23qyx7m4v76splsohuhvad.onion",
+	};
+	
+	private static final int	CACHE_MAX	= 1024;
+	
+	private static final TorPluginLabelTrie<Rule>	builtin_rules = new TorPluginLabelTrie<Rule>();
+	
+	static{
+		for ( String rule: BUILTIN_RULES ){
+			
+			addRule( builtin_rules, rule );
+		}
+		
+		builtin_rules.compile();
+	}
+	
+	private final TorPluginLabelTrie<Rule>	rules = new TorPluginLabelTrie<Rule>();
+	
+	private final String	str;
+	
+	private final Map<String,String>	cache			= new ConcurrentHashMap<String, String>();
+	private final Map<String,String>	cache_builtin	= new ConcurrentHashMap<String, String>();
+		
+		/**
+		 * @param invalid	receives the lines that couldn't be parsed
+		 */
+	
+	public
+	TorPluginDomainRewrites(
+		String			text,
+		List<String>	invalid )
+	{
+		StringBuilder	sb = new StringBuilder( "{" );
+		
+		for ( String line: text.split( "\n" )){
+			
+			line = line.trim();
+			
+			if ( line.length() == 0 ){
+				
+				continue;
+			}
+			
+			if ( addRule( rules, line )){
+				
+				sb.append( sb.length()==1?"":", " ).append( line );
+				
+			}else{
+				
+				invalid.add( line );
+			}
+		}
+		
+		rules.compile();
+		
+		str = sb.append( "}" ).toString();
+	}
+	
+	private static boolean
+	addRule(
+		TorPluginLabelTrie<Rule>	trie,
+		String						line )
+	{
+		String[] bits = line.split( "=" );
+		
+		if ( bits.length != 2 ){
+			
+			return( false );
+		}
+		
+		String from = bits[0].trim().toLowerCase( Locale.US );
+		String to	= bits[1].trim();
+		
+		boolean	wildcard	= from.startsWith( "*." );
+		boolean	exact		= from.endsWith( "." );
+		
+		if ( wildcard ){
+			
+			from = from.substring( 2 );
+		}
+		
+		if ( exact ){
+			
+			from = from.substring( 0, from.length() - 1 );
+		}
+		
+		if ( 	( wildcard && exact ) ||
+				!( from.contains( "." ) && to.contains( "." )) ||
+				from.startsWith( "." ) || from.endsWith( "." ) || from.contains( ".." ) || from.contains( "*" )){
+			
+			return( false );
+		}
+		
+		trie.add(
+			from,
+			wildcard?TorPluginLabelTrie.MATCH_SUBDOMAINS:(exact?TorPluginLabelTrie.MATCH_EXACT:TorPluginLabelTrie.MATCH_DOMAIN),
+			new Rule( from, to ));
+		
+		return( true );
+	}
+	
+	public String
+	rewrite(
+		String		host,
+		boolean		use_builtin )
+	{
+		Map<String,String>	c = use_builtin?cache_builtin:cache;
+		
+		String	result = c.get( host );
+		
+		if ( result == null ){
+			
+			Rule	rule = null;
+			
+			if ( use_builtin ){
+				
+				rule = builtin_rules.match( host );
+			}
+			
+			if ( rule == null ){
+				
+				rule = rules.match( host );
+			}
+			
+			result = rule==null?host:rule.apply( host );
+			
+			if ( c.size() >= CACHE_MAX ){
+				
+				c.clear();
+			}
+			
+			c.put( host, result );
+		}
+		
+		return( result );
+	}
+	
+	public int
+	getRuleCount()
+	{
+		return( rules.size());
+	}
+	
+	@Override
+	public String
+	toString()
+	{
+		return( str );
+	}
+	
+	private static class
+	Rule
+	{
+		private final String	from;
+		private final String	to;
+		
+		private
+		Rule(
+			String		_from,
+			String		_to )
+		{
+			from	= _from;
+			to		= _to;
+		}
+			
+			/**
+			 * host is known to match, replaces the matched domain and keeps any subdomain prefix
+			 */
+		
+		private String
+		apply(
+			String		host )
+		{
+			int	end = host.length();
+			
+			if ( host.charAt( end-1 ) == '.' ){
+				
+				end--;
+			}
+			
+			int	prefix_len = end - from.length();
+			
+			if ( prefix_len <= 0 ){
+				
+				return( to );
+			}
+			
+				// prefix includes the '.'
+			
+			return( host.substring( 0, prefix_len ) + to );
+		}
+	}
+}
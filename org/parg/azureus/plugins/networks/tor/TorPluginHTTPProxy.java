@@ -24,6 +24,8 @@
 package org.parg.azureus.plugins.networks.tor;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -49,7 +51,6 @@ TorPluginHTTPProxy
 	public static final int MAX_PROCESSORS = 32;
 		
 	public static final int	CONNECT_TIMEOUT		= 30*1000;
-	public static final int READ_TIMEOUT		= 30*1000;
 
 	private TorPluginHTTPProxy					parent;
 	private Map<String,TorPluginHTTPProxy>		children	= new HashMap<String, TorPluginHTTPProxy>();
@@ -60,7 +61,11 @@ TorPluginHTTPProxy
 	private boolean					delegate_is_https;
 	
 	private Proxy					delegate_to_proxy;
-		
+	private int						traffic_class;
+	
+	private TorPluginRelayEngine	relay_engine;
+	private TorPluginSOCKSPool		socks_pool;
+	
 	private int		port;
 	
 	private ServerSocket	server_socket;	
@@ -73,20 +78,32 @@ TorPluginHTTPProxy
 	
 	private AtomicInteger	request_count	= new AtomicInteger();
 	
+	private final TorPluginIdleReaper.Group	idle_group = TorPluginIdleReaper.getSingleton().createGroup( "HTTP", MAX_PROCESSORS );
+	
 	private List<Processor>	processors = new ArrayList<Processor>();
 	
 	private AtomicInteger	ref_count = new AtomicInteger(1);
 	
+	private final TorPluginBufferPool	buffer_pool = TorPluginBufferPool.getSingleton();
+	
+	private final TorPluginRateLimiter	rate_limiter = TorPluginRateLimiter.getSingleton();
+	
 	private volatile boolean		destroyed;
 		
 	public
 	TorPluginHTTPProxy(
-		URL			url,
-		Proxy		proxy )
+		URL						url,
+		Proxy					proxy,
+		int						_traffic_class,
+		TorPluginRelayEngine	_relay_engine,
+		TorPluginSOCKSPool		_socks_pool )
 	{
 		this( null, url );
 		
 		delegate_to_proxy	= proxy;
+		traffic_class		= _traffic_class;
+		relay_engine		= _relay_engine;
+		socks_pool			= _socks_pool;
 	}
 	
 	private
@@ -104,6 +121,9 @@ TorPluginHTTPProxy
 		if ( parent != null ){
 		
 			delegate_to_proxy	= parent.delegate_to_proxy;
+			traffic_class		= parent.traffic_class;
+			relay_engine		= parent.relay_engine;
+			socks_pool			= parent.socks_pool;
 		}
 	}
 	
@@ -145,7 +165,9 @@ TorPluginHTTPProxy
     
         					Socket	socket = server_socket.accept();
         					   
-        					socket.setSoTimeout( READ_TIMEOUT );
+        						// also bounds the wait for the request header, tightens as we fill up
+        					
+        					socket.setSoTimeout( idle_group.getTimeout( traffic_class ));
         					
         					synchronized( TorPluginHTTPProxy.this ){
         						
@@ -164,6 +186,8 @@ TorPluginHTTPProxy
         							
         							processors.add( proc );
         							
+        							idle_group.add( proc );
+        							
         							proc.start();
         						}
         					}
@@ -357,6 +381,8 @@ TorPluginHTTPProxy
 			
 			processors.clear();
 			
+			idle_group.destroy();
+			
 			try{				
 				server_socket.close();
 
@@ -415,14 +441,19 @@ TorPluginHTTPProxy
 	
 	private class
 	Processor
+		implements TorPluginIdleReaper.Stream
 	{
 		private static final String	NL = "\r\n";
 		
 		private Socket		socket_in;
 		private Socket		socket_out;
 		
+		private TorPluginSOCKSClient	socks_client;
+		
 		private volatile boolean	destroyed;
 		
+		private final TorPluginStreamStats	stream_stats = new TorPluginStreamStats( delegate_to_host, traffic_class );
+		
 		private
 		Processor(
 			Socket		_socket )
@@ -440,14 +471,16 @@ TorPluginHTTPProxy
 					public void
 					runSupport()
 					{
+						boolean	async = false;
+						
 						try{
-							process();
+							async = process();
 							
 						}finally{
-													
-							synchronized( TorPluginHTTPProxy.this ){
-
-								processors.remove( Processor.this );
+							
+							if ( !async ){
+								
+								processorDone();
 							}
 						}
 					}
@@ -455,6 +488,54 @@ TorPluginHTTPProxy
 		}
 		
 		private void
+		processorDone()
+		{
+			synchronized( TorPluginHTTPProxy.this ){
+				
+				processors.remove( Processor.this );
+			}
+			
+			idle_group.remove( Processor.this );
+		}
+			
+			// the delegate connect has its own timeout, only reap once connected
+		
+		@Override
+		public long
+		getIdleTime()
+		{
+			Socket	socket = socket_out;
+			
+			if ( socket == null || !socket.isConnected()){
+				
+				return( -1 );
+			}
+			
+			return( stream_stats.getIdleTime());
+		}
+		
+		@Override
+		public int
+		getTrafficClass()
+		{
+			return( traffic_class );
+		}
+		
+		@Override
+		public void
+		reap(
+			String		reason )
+		{
+			trace( "Reaping " + delegate_to_host + " (" + reason + ")" );
+			
+			destroy();
+		}
+			
+			/**
+			 * @return true if processing continues asynchronously once the delegate connect completes
+			 */
+		
+		private boolean
 		process()
 		{
 			request_count.incrementAndGet();
@@ -463,22 +544,205 @@ TorPluginHTTPProxy
 				InputStream is = socket_in.getInputStream();
 				
 				String request_header = readHeader( is );
-								
+				
+				if ( relay_engine != null && delegate_to_proxy != null && delegate_to_proxy.type() == Proxy.Type.SOCKS ){
+					
+					connectToDelegateAsync( request_header );
+					
+					return( true );
+				}
+				
 				connectToDelegate();
 				
 				process( request_header );
 				
 			}catch( Throwable e ){
 				
-				if ( !( e instanceof IOException )){
+				processFailed( e );
+			}
+			
+			return( false );
+		}
+		
+		private void
+		processFailed(
+			Throwable	e )
+		{
+			if ( !( e instanceof IOException )){
+				
+				Debug.out( e );
+			}
+			
+			destroy();
+		}
+			
+			/**
+			 * Does the SOCKS handshake without holding a thread, circuit building can take a while. Once
+			 * connected the channel is switched back to blocking and processing resumes on the pool
+			 */
+		
+		private void
+		connectToDelegateAsync(
+			final String		request_header )
+			
+			throws IOException
+		{
+			TorPluginSOCKSClient client = 
+				TorPluginSOCKSClient.connect(
+					relay_engine,
+					socks_pool,
+					(InetSocketAddress)delegate_to_proxy.address(),
+					delegate_to_host,
+					delegate_to_port,
+					null,
+					null,
+					CONNECT_TIMEOUT,
+					false,
+					new TorPluginSOCKSClient.Listener()
+					{
+						@Override
+						public void
+						connected(
+							final SocketChannel						channel,
+							TorPluginRelayEngine.Registration		registration )
+						{
+							registration.cancel(
+								new Runnable()
+								{
+									@Override
+									public void
+									run()
+									{
+										thread_pool.run(
+											new AERunnable()
+											{
+												@Override
+												public void
+												runSupport()
+												{
+													try{
+														channel.configureBlocking( true );
+														
+														setDelegateSocket( channel.socket());
+														
+														process( request_header );
+													
+													}catch( Throwable e ){
+														
+														try{
+															channel.close();
+														
+														}catch( Throwable f ){
+														}
+														
+														processFailed( e );
+													
+													}finally{
+														
+														processorDone();
+													}
+												}
+											});
+									}
+								});
+						}
+						
+						@Override
+						public void
+						failed(
+							Throwable	error )
+						{
+							try{
+								processFailed( error );
+							
+							}finally{
+								
+								processorDone();
+							}
+						}
+					});
+			
+			synchronized( this ){
+				
+				if ( destroyed ){
+					
+					client.cancel();
+				
+				}else{
 					
-					Debug.out( e );
+					socks_client = client;
 				}
+			}
+		}
+		
+		private void
+		setDelegateSocket(
+			Socket		plain_socket )
+			
+			throws Exception
+		{
+			Socket	socket;
+			
+			if ( delegate_is_https ){
 				
-				destroy();
+				try{
+					socket = getTrustAllSocketFactory().createSocket( plain_socket, delegate_to_host, delegate_to_port, true );
+				
+				}catch( SSLException e ){
+					
+					socket = SESecurityManager.installServerCertificates( "TorHTTPPseudoProxy:" + delegate_to_host + ":" + port, delegate_to_host, delegate_to_port ).createSocket( plain_socket, delegate_to_host, delegate_to_port, true );
+				}
+			}else{
+				
+				socket = plain_socket;
+			}
+			
+			synchronized( this ){
+				
+				if ( destroyed ){
+					
+					try{
+						socket.close();
+					
+					}catch( Throwable e ){
+					}
+					
+					throw( new IOException( "destroyed" ));
+				}
+				
+				socket_out = socket;
 			}
 		}
 		
+		private SSLSocketFactory
+		getTrustAllSocketFactory()
+			
+			throws Exception
+		{
+			TrustManager[] trustAllCerts = new TrustManager[]{
+					new X509TrustManager() {
+						@Override
+						public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+							return null;
+						}
+						@Override
+						public void checkClientTrusted(
+								java.security.cert.X509Certificate[] certs, String authType) {
+						}
+						@Override
+						public void checkServerTrusted(
+								java.security.cert.X509Certificate[] certs, String authType) {
+						}
+					}
+				};
+			
+			SSLContext sc = SSLContext.getInstance("SSL");
+			
+			sc.init(null, trustAllCerts, RandomUtils.SECURE_RANDOM );
+			
+			return( sc.getSocketFactory());
+		}
+		
 		private void
 		connectToDelegate()
 		
@@ -498,28 +762,7 @@ TorPluginHTTPProxy
 
 				if ( delegate_is_https ){
 					
-					TrustManager[] trustAllCerts = new TrustManager[]{
-							new X509TrustManager() {
-								@Override
-								public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-									return null;
-								}
-								@Override
-								public void checkClientTrusted(
-										java.security.cert.X509Certificate[] certs, String authType) {
-								}
-								@Override
-								public void checkServerTrusted(
-										java.security.cert.X509Certificate[] certs, String authType) {
-								}
-							}
-						};
-				
-					SSLContext sc = SSLContext.getInstance("SSL");
-				
-					sc.init(null, trustAllCerts, RandomUtils.SECURE_RANDOM );
-				
-					SSLSocketFactory factory = sc.getSocketFactory();
+					SSLSocketFactory factory = getTrustAllSocketFactory();
 					
 					try{
 						if ( delegate_to_proxy == null ){
@@ -754,13 +997,15 @@ TorPluginHTTPProxy
 				public void
 				run() 
 				{
+					ByteBuffer	pooled = buffer_pool.allocate( TorPluginBufferPool.MIN_SIZE_CLASS, false );
+					
 					try{
 						InputStream	source_is = socket_in.getInputStream();
 						
-						byte[]	buffer = new byte[32000];
-	
 						while( !destroyed ){
-												
+							
+							byte[]	buffer = pooled.array();
+							
 							int	len = source_is.read( buffer );
 								
 							if ( len <= 0 ){
@@ -772,8 +1017,17 @@ TorPluginHTTPProxy
 							
 							trace( "POST:" + new String( buffer, 0, len ));
 							
+							stream_stats.bytesOut( len );
+							
+							rate_limiter.waitFor( stream_stats, len );
+							
+							pooled = buffer_pool.adapt( pooled, len );
 						}
 					}catch( Throwable e ){
+					
+					}finally{
+						
+						buffer_pool.release( pooled );
 					}
 				}
 			}.start();
@@ -1119,9 +1373,6 @@ TorPluginHTTPProxy
 				}
 			}
 			
-			byte[]	buffer = new byte[32000];
-			
-
 			if ( rewrite ){
 										
 				StringBuffer	sb = new StringBuffer();
@@ -1130,17 +1381,7 @@ TorPluginHTTPProxy
 					
 						// chunking uses ISO-8859-1
 					
-					while( true ){
-						
-						int	len = target_is.read( buffer );
-						
-						if ( len <= 0 ){
-							
-							break;
-						}
-						
-						sb.append(new String( buffer, 0, len, "ISO-8859-1" ));
-					}
+					readAll( target_is, sb, "ISO-8859-1" );
 					
 					StringBuffer	sb_dechunked = new StringBuffer( sb.length());
 					
@@ -1215,17 +1456,7 @@ TorPluginHTTPProxy
 					
 				sb.setLength(0);
 					
-				while( !destroyed ){
-						
-					int	len = target_is.read( buffer );
-						
-					if ( len <= 0 ){
-							
-						break;
-					}
-				
-					sb.append(new String( buffer, 0, len, content_charset ));
-				}
+				readAll( target_is, sb, content_charset );
 				
 				String 	str 	= sb.toString();
 				String	lc_str 	= str.toLowerCase();
@@ -1408,17 +1639,78 @@ TorPluginHTTPProxy
 				
 				source_os.write( NL.getBytes());
 							
-				while( !destroyed  ){
-									
-					int	len = target_is.read( buffer );
+				copy( target_is, source_os );
+			}
+		}
+		
+		private void
+		readAll(
+			InputStream		is,
+			StringBuffer	sb,
+			String			charset )
+			
+			throws IOException
+		{
+			ByteBuffer	pooled = buffer_pool.allocate( TorPluginBufferPool.MIN_SIZE_CLASS, false );
+			
+			try{
+				while( !destroyed ){
+					
+					byte[]	buffer = pooled.array();
+					
+					int	len = is.read( buffer );
 					
 					if ( len <= 0 ){
 						
 						break;
 					}
 					
-					source_os.write( buffer, 0, len );
+					sb.append( new String( buffer, 0, len, charset ));
+					
+					stream_stats.bytesIn( len );
+					
+					rate_limiter.waitFor( stream_stats, len );
+					
+					pooled = buffer_pool.adapt( pooled, len );
 				}
+			}finally{
+				
+				buffer_pool.release( pooled );
+			}
+		}
+		
+		private void
+		copy(
+			InputStream		is,
+			OutputStream	os )
+			
+			throws IOException
+		{
+			ByteBuffer	pooled = buffer_pool.allocate( TorPluginBufferPool.MIN_SIZE_CLASS, false );
+			
+			try{
+				while( !destroyed ){
+					
+					byte[]	buffer = pooled.array();
+					
+					int	len = is.read( buffer );
+					
+					if ( len <= 0 ){
+						
+						break;
+					}
+					
+					os.write( buffer, 0, len );
+					
+					stream_stats.bytesIn( len );
+					
+					rate_limiter.waitFor( stream_stats, len );
+					
+					pooled = buffer_pool.adapt( pooled, len );
+				}
+			}finally{
+				
+				buffer_pool.release( pooled );
 			}
 		}
 		
@@ -1471,6 +1763,8 @@ TorPluginHTTPProxy
 		private void
 		destroy()
 		{
+			TorPluginSOCKSClient client;
+			
 			synchronized( this ){
 				
 				if ( destroyed ){
@@ -1479,6 +1773,13 @@ TorPluginHTTPProxy
 				}
 				
 				destroyed = true;
+				
+				client = socks_client;
+			}
+			
+			if ( client != null ){
+				
+				client.cancel();
 			}
 			
 			if ( socket_out != null ){
@@ -1505,7 +1806,7 @@ TorPluginHTTPProxy
 		try{
 			Proxy SP = new Proxy( Proxy.Type.SOCKS, new InetSocketAddress( "127.0.0.1", 9050 ));
 
-			TorPluginHTTPProxy proxy = new TorPluginHTTPProxy( new URL( "https://client.vuze.com/" ), SP );
+			TorPluginHTTPProxy proxy = new TorPluginHTTPProxy( new URL( "https://client.vuze.com/" ), SP, TorPluginRateLimiter.TC_OTHER, null, null );
 			
 			proxy.start();
 			
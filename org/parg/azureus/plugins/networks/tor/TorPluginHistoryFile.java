@@ -0,0 +1,248 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.biglybt.core.util.SystemTime;
+
+/**
+ * Binary file holding connect history between runs. A header (magic, version, save time, count) is
+ * followed by one fixed layout record per host. Times are wall clock as monotonic time doesn't survive
+ * a restart, a backoff still running at save time is stored as the time it had left.
+ * 
+ * Reading applies the time since the save: pending backoffs are reduced by it, consecutive failures
+ * halve for each FAIL_HALF_LIFE since the host last reported an outcome, and hosts that haven't been
+ * heard of for MAX_RECORD_AGE are dropped.
+ */
+
+public class
+TorPluginHistoryFile
+{
+	private static final int	MAGIC			= 0x415a5448;	// AZTH
+	private static final int	VERSION			= 1;
+	
+	private static final int	MAX_RECORDS		= 64*1024;
+	
+	private static final long	FAIL_HALF_LIFE	= 60*60*1000;
+	private static final long	MAX_RECORD_AGE	= 7*24*60*60*1000L;
+	
+	public static void
+	write(
+		File			file,
+		List<Record>	records )
+		
+		throws IOException
+	{
+		File	temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+		
+		int	count = Math.min( records.size(), MAX_RECORDS );
+		
+		DataOutputStream	dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ), 32*1024 ));
+		
+		try{
+			dos.writeInt( MAGIC );
+			dos.writeInt( VERSION );
+			dos.writeLong( SystemTime.getCurrentTime());
+			dos.writeInt( count );
+			
+			for ( int i=0;i<count;i++){
+				
+				Record	record = records.get( i );
+				
+				dos.writeUTF( record.host );
+				dos.writeLong( record.last_outcome_time );
+				dos.writeInt( record.total_ok );
+				dos.writeInt( record.total_fails );
+				dos.writeInt( record.consec_fails );
+				dos.writeLong( record.retry_delay );
+			}
+		}finally{
+			
+			dos.close();
+		}
+			
+			// the temp file replaces the old one atomically so a crash or failure at any point leaves
+			// either the old or the new file in place. Where the file system can't do that it is still
+			// a single replacing move rather than a delete followed by a rename
+		
+		try{
+			Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			
+		}catch( AtomicMoveNotSupportedException e ){
+			
+			Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+		
+		/**
+		 * @return the records with decay applied, empty if the file doesn't exist or isn't one of ours
+		 */
+	
+	public static List<Record>
+	read(
+		File		file )
+		
+		throws IOException
+	{
+		List<Record>	result = new ArrayList<Record>();
+		
+		if ( !file.exists()){
+			
+			return( result );
+		}
+		
+		DataInputStream	dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 32*1024 ));
+		
+		try{
+			if ( dis.readInt() != MAGIC || dis.readInt() != VERSION ){
+				
+				return( result );
+			}
+			
+			long	now			= SystemTime.getCurrentTime();
+			long	save_time	= dis.readLong();
+				
+				// clock went backwards, treat it as saved just now
+			
+			long	since_save	= Math.max( 0, now - save_time );
+			
+			int	count = dis.readInt();
+			
+			if ( count < 0 || count > MAX_RECORDS ){
+				
+				throw( new IOException( "Invalid record count: " + count ));
+			}
+			
+			for ( int i=0;i<count;i++){
+				
+				String	host				= dis.readUTF();
+				long	last_outcome_time	= dis.readLong();
+				int		total_ok			= dis.readInt();
+				int		total_fails			= dis.readInt();
+				int		consec_fails		= dis.readInt();
+				long	retry_delay			= dis.readLong();
+				
+				long	age = Math.max( 0, now - last_outcome_time );
+				
+				if ( age > MAX_RECORD_AGE ){
+					
+					continue;
+				}
+				
+				long	half_lives = age / FAIL_HALF_LIFE;
+				
+				consec_fails = half_lives >= 31?0:( consec_fails >> half_lives );
+				
+				retry_delay = Math.max( 0, retry_delay - since_save );
+				
+				result.add( new Record( host, last_outcome_time, total_ok, total_fails, consec_fails, retry_delay ));
+			}
+		}finally{
+			
+			dis.close();
+		}
+		
+		return( result );
+	}
+	
+	public static class
+	Record
+	{
+		private final String	host;
+		private final long		last_outcome_time;
+		private final int		total_ok;
+		private final int		total_fails;
+		private final int		consec_fails;
+		private final long		retry_delay;
+		
+		public
+		Record(
+			String		_host,
+			long		_last_outcome_time,
+			int			_total_ok,
+			int			_total_fails,
+			int			_consec_fails,
+			long		_retry_delay )
+		{
+			host				= _host;
+			last_outcome_time	= _last_outcome_time;
+			total_ok			= _total_ok;
+			total_fails			= _total_fails;
+			consec_fails		= _consec_fails;
+			retry_delay			= _retry_delay;
+		}
+		
+		public String
+		getHost()
+		{
+			return( host );
+		}
+		
+		public long
+		getLastOutcomeTime()
+		{
+			return( last_outcome_time );
+		}
+		
+		public int
+		getTotalOK()
+		{
+			return( total_ok );
+		}
+		
+		public int
+		getTotalFails()
+		{
+			return( total_fails );
+		}
+		
+		public int
+		getConsecutiveFails()
+		{
+			return( consec_fails );
+		}
+			
+			/**
+			 * @return millis of backoff remaining, 0 if none
+			 */
+		
+		public long
+		getRetryDelay()
+		{
+			return( retry_delay );
+		}
+	}
+}
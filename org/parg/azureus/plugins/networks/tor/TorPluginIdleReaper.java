@@ -0,0 +1,396 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SimpleTimer;
+import com.biglybt.core.util.TimerEvent;
+import com.biglybt.core.util.TimerEventPerformer;
+import com.biglybt.core.util.TimerEventPeriodic;
+
+/**
+ * Closes relayed streams that have been idle for too long. The idle timeout depends on the stream's
+ * traffic class and shrinks as its group (e.g. the intermediate SOCKS connections) gets close to
+ * its connection cap, so idle streams give up their slot when someone else needs it.
+ */
+
+public class
+TorPluginIdleReaper
+{
+	public static final String	REASON_IDLE		= "idle";
+	public static final String	REASON_PRESSURE	= "pressure";
+		
+		// indexed by TorPluginRateLimiter.TC_*. Bulk is peer traffic which has 2 minute keep-alives
+	
+	private static final long[]	CLASS_TIMEOUTS = { 30*1000, 30*1000, 4*60*1000, 60*1000 };
+	
+	private static final long	MIN_TIMEOUT		= 5*1000;
+		
+		// timeouts start shrinking once a group is this full, reaching MIN_FACTOR at the cap
+	
+	private static final float	PRESSURE_START	= 0.5f;
+	private static final float	MIN_FACTOR		= 0.1f;
+	
+	private static final int	TICK_PERIOD		= 5*1000;
+	
+	private static final TorPluginIdleReaper	singleton = new TorPluginIdleReaper();
+	
+	public static TorPluginIdleReaper
+	getSingleton()
+	{
+		return( singleton );
+	}
+	
+	private final Set<Group>	groups = new HashSet<Group>();
+	
+	private TimerEventPeriodic	tick_timer;
+	
+	private final long[]	reaped_idle		= new long[CLASS_TIMEOUTS.length];
+	private final long[]	reaped_pressure	= new long[CLASS_TIMEOUTS.length];
+	
+	private
+	TorPluginIdleReaper()
+	{
+	}
+	
+	public Group
+	createGroup(
+		String		name,
+		int			capacity )
+	{
+		return( new Group( name, capacity ));
+	}
+	
+	private void
+	tick()
+	{
+		List<Group>	to_check;
+		
+		synchronized( this ){
+			
+			to_check = new ArrayList<Group>( groups );
+		}
+		
+		for ( Group group: to_check ){
+			
+			group.check();
+		}
+	}
+	
+	private void
+	reaped(
+		int			traffic_class,
+		String		reason )
+	{
+		synchronized( this ){
+			
+			if ( reason.equals( REASON_IDLE )){
+				
+				reaped_idle[traffic_class]++;
+			
+			}else{
+				
+				reaped_pressure[traffic_class]++;
+			}
+		}
+	}
+	
+	public boolean
+	hasActivity()
+	{
+		synchronized( this ){
+			
+			for ( int i=0;i<CLASS_TIMEOUTS.length;i++){
+				
+				if ( reaped_idle[i] + reaped_pressure[i] > 0 ){
+					
+					return( true );
+				}
+			}
+			
+			return( false );
+		}
+	}
+		
+		/**
+		 * @return traffic class name -> { "idle": count, "pressure": count }
+		 */
+	
+	public Map<String,Object>
+	toMap()
+	{
+		Map<String,Object>	result = new HashMap<String,Object>();
+		
+		synchronized( this ){
+			
+			for ( int i=0;i<CLASS_TIMEOUTS.length;i++){
+				
+				Map<String,Object>	map = new HashMap<String,Object>();
+				
+				map.put( REASON_IDLE, reaped_idle[i] );
+				map.put( REASON_PRESSURE, reaped_pressure[i] );
+				
+				result.put( TorPluginRateLimiter.getTrafficClassName( i ), map );
+			}
+		}
+		
+		return( result );
+	}
+	
+	public String
+	getString()
+	{
+		synchronized( this ){
+			
+			long	idle		= 0;
+			long	pressure	= 0;
+			
+			String	class_str = "";
+			
+			for ( int i=0;i<CLASS_TIMEOUTS.length;i++){
+				
+				long	total = reaped_idle[i] + reaped_pressure[i];
+				
+				if ( total > 0 ){
+					
+					class_str += ", " + TorPluginRateLimiter.getTrafficClassName( i ) + "=" + total;
+				}
+				
+				idle		+= reaped_idle[i];
+				pressure	+= reaped_pressure[i];
+			}
+			
+			return( "reaped idle=" + idle + ", pressure=" + pressure + class_str );
+		}
+	}
+	
+	public interface
+	Stream
+	{
+			/**
+			 * @return millis since data last moved, -1 if the stream isn't relaying yet
+			 */
+		
+		public long
+		getIdleTime();
+		
+		public int
+		getTrafficClass();
+		
+		public void
+		reap(
+			String		reason );
+	}
+	
+	public class
+	Group
+	{
+		private final String	name;
+		
+		private volatile int	capacity;
+		
+		private final Set<Stream>	streams = new HashSet<Stream>();
+		
+		private
+		Group(
+			String		_name,
+			int			_capacity )
+		{
+			name		= _name;
+			capacity	= _capacity;
+		}
+		
+		public void
+		setCapacity(
+			int		_capacity )
+		{
+			capacity	= _capacity;
+		}
+		
+		public void
+		add(
+			Stream		stream )
+		{
+			synchronized( TorPluginIdleReaper.this ){
+				
+				streams.add( stream );
+				
+				groups.add( this );
+				
+				if ( tick_timer == null ){
+					
+					tick_timer =
+						SimpleTimer.addPeriodicEvent(
+							"TorIdleReaper",
+							TICK_PERIOD,
+							new TimerEventPerformer()
+							{
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									tick();
+								}
+							});
+				}
+			}
+		}
+		
+		public void
+		remove(
+			Stream		stream )
+		{
+			synchronized( TorPluginIdleReaper.this ){
+				
+				streams.remove( stream );
+				
+				if ( streams.isEmpty()){
+					
+					groups.remove( this );
+					
+					if ( groups.isEmpty() && tick_timer != null ){
+						
+						tick_timer.cancel();
+						
+						tick_timer = null;
+					}
+				}
+			}
+		}
+			
+			/**
+			 * @return the idle timeout currently applied to streams of the traffic class
+			 */
+		
+		public int
+		getTimeout(
+			int		traffic_class )
+		{
+			int	size;
+			
+			synchronized( TorPluginIdleReaper.this ){
+				
+				size = streams.size();
+			}
+			
+			return((int)getTimeout( traffic_class, size ));
+		}
+		
+		private long
+		getTimeout(
+			int		traffic_class,
+			int		size )
+		{
+			long	base = CLASS_TIMEOUTS[ traffic_class ];
+			
+			int		cap = capacity;
+			
+			float	load = cap<=0?0:((float)size/cap);
+			
+			if ( load <= PRESSURE_START ){
+				
+				return( base );
+			}
+			
+			float	factor = Math.max( MIN_FACTOR, ( 1 - load ) / ( 1 - PRESSURE_START ));
+			
+			return( Math.max( MIN_TIMEOUT, (long)( base * factor )));
+		}
+		
+		private void
+		check()
+		{
+			List<Stream>	to_check;
+			
+			synchronized( TorPluginIdleReaper.this ){
+				
+				to_check = new ArrayList<Stream>( streams );
+			}
+			
+			int	size = to_check.size();
+			
+			for ( Stream stream: to_check ){
+				
+				long	idle = stream.getIdleTime();
+				
+				if ( idle < 0 ){
+					
+					continue;
+				}
+				
+				int	traffic_class = stream.getTrafficClass();
+				
+				if ( idle < getTimeout( traffic_class, size )){
+					
+					continue;
+				}
+				
+				String	reason = idle >= CLASS_TIMEOUTS[ traffic_class ]?REASON_IDLE:REASON_PRESSURE;
+				
+				reaped( traffic_class, reason );
+				
+				remove( stream );
+				
+				try{
+					stream.reap( reason );
+				
+				}catch( Throwable e ){
+					
+					Debug.out( e );
+				}
+			}
+		}
+		
+		public void
+		destroy()
+		{
+			synchronized( TorPluginIdleReaper.this ){
+				
+				streams.clear();
+				
+				groups.remove( this );
+				
+				if ( groups.isEmpty() && tick_timer != null ){
+					
+					tick_timer.cancel();
+					
+					tick_timer = null;
+				}
+			}
+		}
+		
+		public String
+		getName()
+		{
+			return( name );
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.biglybt.core.util.RandomUtils;
+import com.biglybt.core.util.SystemTime;
+
+/**
+ * The 10.x.x.x addresses handed out with intermediate proxies and what they map to. Addresses are
+ * allocated by a cursor rotating through the 24 bit space and live in a direct-mapped table indexed
+ * by their low bits, the cursor simply skips addresses whose slot is taken. Neither allocation nor
+ * lookup takes a lock.
+ */
+
+public class
+TorPluginIntermediateHosts
+{
+	private static final int	NETWORK			= 0x0a000000;
+	private static final int	NETWORK_MASK	= 0xff000000;
+	private static final int	HOST_MASK		= 0x00ffffff;
+	
+	private static final int	TABLE_SIZE		= 1<<16;
+	private static final int	TABLE_MASK		= TABLE_SIZE - 1;
+		
+		// a mapping that was never released (caller didn't report the proxy status) can be taken over
+		// after this, same age as orphaned proxy entries are dropped. Leased mappings are exempt as the
+		// lease's own expiry releases them
+	
+	private static final long	MAX_AGE			= 10*60*1000;
+	
+	private final AtomicReferenceArray<Mapping>	table = new AtomicReferenceArray<Mapping>( TABLE_SIZE );
+	
+	private final AtomicInteger		cursor	= new AtomicInteger( RandomUtils.nextInt( HOST_MASK ));
+	
+	private final AtomicInteger		size	= new AtomicInteger();
+		
+		/**
+		 * @return null if the table is full
+		 */
+	
+	public Mapping
+	allocate(
+		String		host,
+		String		socks_host,
+		int			socks_port,
+		int			traffic_class,
+		long		deadline )
+	{
+		long	now = SystemTime.getMonotonousTime();
+		
+		for ( int i=0;i<TABLE_SIZE;i++){
+			
+			int	host_part = cursor.getAndIncrement() & HOST_MASK;
+				
+				// skip x.x.x.0 and x.x.x.255
+			
+			int	last = host_part & 0xff;
+			
+			if ( last == 0 || last == 0xff ){
+				
+				continue;
+			}
+			
+			int	slot = host_part & TABLE_MASK;
+			
+			Mapping	existing = table.get( slot );
+			
+			if ( existing == null || ( !existing.leased && now - existing.create_time > MAX_AGE )){
+				
+				Mapping mapping = new Mapping( NETWORK | host_part, host, socks_host, socks_port, now, traffic_class, deadline );
+				
+				if ( table.compareAndSet( slot, existing, mapping )){
+					
+					if ( existing == null ){
+						
+						size.incrementAndGet();
+					}
+					
+					return( mapping );
+				}
+			}
+		}
+		
+		return( null );
+	}
+	
+	public Mapping
+	get(
+		InetAddress		address )
+	{
+		byte[]	bytes = address.getAddress();
+		
+		if ( bytes.length != 4 ){
+			
+			return( null );
+		}
+		
+		return( get(((bytes[0]&0xff)<<24) | ((bytes[1]&0xff)<<16) | ((bytes[2]&0xff)<<8) | (bytes[3]&0xff)));
+	}
+	
+	public Mapping
+	get(
+		int		address )
+	{
+		if (( address & NETWORK_MASK ) != NETWORK ){
+			
+			return( null );
+		}
+		
+		Mapping	mapping = table.get( address & TABLE_MASK );
+		
+		if ( mapping == null || mapping.address != address ){
+			
+			return( null );
+		}
+		
+		return( mapping );
+	}
+	
+	public void
+	release(
+		Mapping		mapping )
+	{
+		if ( table.compareAndSet( mapping.address & TABLE_MASK, mapping, null )){
+			
+			size.decrementAndGet();
+		}
+	}
+	
+	public int
+	size()
+	{
+		return( size.get());
+	}
+	
+	public static class
+	Mapping
+	{
+		private final int		address;
+		private final String	host;
+		private final String	socks_host;
+		private final int		socks_port;
+		private final long		create_time;
+		private final int		traffic_class;
+		private final long		deadline;
+			
+			// connects refused locally by the scheduler, the outcomes reported for them say nothing
+			// about the destination
+		
+		private final AtomicInteger	admission_rejects	= new AtomicInteger();
+		
+		private volatile boolean	leased;
+		
+		private
+		Mapping(
+			int			_address,
+			String		_host,
+			String		_socks_host,
+			int			_socks_port,
+			long		_create_time,
+			int			_traffic_class,
+			long		_deadline )
+		{
+			address			= _address;
+			host			= _host;
+			socks_host		= _socks_host;
+			socks_port		= _socks_port;
+			create_time		= _create_time;
+			traffic_class	= _traffic_class;
+			deadline		= _deadline;
+		}
+		
+		public String
+		getAddress()
+		{
+			return(	((address>>>24)&0xff) + "." + ((address>>>16)&0xff) + "." + ((address>>>8)&0xff) + "." + (address&0xff));
+		}
+		
+		public String
+		getHost()
+		{
+			return( host );
+		}
+		
+		public String
+		getSOCKSHost()
+		{
+			return( socks_host );
+		}
+		
+		public int
+		getSOCKSPort()
+		{
+			return( socks_port );
+		}
+		
+		public long
+		getCreateTime()
+		{
+			return( create_time );
+		}
+		
+		public int
+		getTrafficClass()
+		{
+			return( traffic_class );
+		}
+		
+		public long
+		getDeadline()
+		{
+			return( deadline );
+		}
+		
+		public void
+		setAdmissionRejected()
+		{
+			admission_rejects.incrementAndGet();
+		}
+		
+		public boolean
+		isAdmissionRejected()
+		{
+			return( admission_rejects.get() > 0 );
+		}
+			
+			/**
+			 * @return the number of connects refused locally since the last call
+			 */
+		
+		public int
+		takeAdmissionRejects()
+		{
+			return( admission_rejects.getAndSet( 0 ));
+		}
+			
+			/**
+			 * A leased mapping is used for many connects, each gets the full connect timeout rather
+			 * than the deadline set at allocation
+			 */
+		
+		public void
+		setLeased()
+		{
+			leased = true;
+		}
+		
+		public boolean
+		isLeased()
+		{
+			return( leased );
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import com.biglybt.core.util.ByteFormatter;
+import com.biglybt.core.util.RandomUtils;
+
+/**
+ * Chooses the SOCKS credentials Tor sees for a stream. Tor isolates streams by credential, so the
+ * credential decides which streams may share a circuit. Other than in 'caller' mode, whatever the caller
+ * sent is replaced by one derived from the destination so repeat requests to a site reuse a warm circuit
+ * while different sites stay apart.
+ */
+
+public class
+TorPluginIsolationPolicy
+{
+	public static final String	POLICY_CALLER	= "caller";
+	public static final String	POLICY_HOST		= "host";
+	public static final String	POLICY_DOMAIN	= "domain";
+	public static final String	POLICY_TIME		= "time";
+	
+	public static final String[]	POLICIES = { POLICY_CALLER, POLICY_HOST, POLICY_DOMAIN, POLICY_TIME };
+		
+		// matches Tor's default MaxCircuitDirtiness
+	
+	private static final long	TIME_BUCKET		= 10*60*1000;
+		
+		// second-level labels that are registries themselves under country code TLDs, e.g. co.uk. Not the full
+		// public suffix list but covers the common cases
+	
+	private static final Set<String>	CC_SECOND_LEVEL = new HashSet<String>(
+		Arrays.asList( new String[]{ "ac", "co", "com", "edu", "gov", "net", "org", "or", "ne", "go", "mil", "nic", "gob", "ltd", "plc" }));
+		
+		// random per session so our credentials can't collide with anything else using the same Tor
+	
+	private final String	secret;
+	
+	private volatile String	policy = POLICY_CALLER;
+	
+	public
+	TorPluginIsolationPolicy()
+	{
+		byte[]	bytes = new byte[16];
+		
+		RandomUtils.nextSecureBytes( bytes );
+		
+		secret = ByteFormatter.encodeString( bytes );
+	}
+	
+	public void
+	setPolicy(
+		String		_policy )
+	{
+		for ( String p: POLICIES ){
+			
+			if ( p.equals( _policy )){
+				
+				policy = p;
+				
+				return;
+			}
+		}
+		
+		policy = POLICY_CALLER;
+	}
+	
+	public String
+	getPolicy()
+	{
+		return( policy );
+	}
+		
+		/**
+		 * @param host the destination as the caller asked for it
+		 * @return { username, password } to send to Tor, either may be null
+		 */
+	
+	public String[]
+	getCredentials(
+		String		host,
+		String		username,
+		String		password )
+	{
+		String	p = policy;
+		
+		if ( p == POLICY_CALLER ){
+			
+			return( new String[]{ username, password });
+		}
+		
+		String	key;
+		
+		if ( p == POLICY_HOST ){
+			
+			key = host.toLowerCase( Locale.US );
+		
+		}else{
+			
+			key = getRegistrableDomain( host );
+			
+			if ( p == POLICY_TIME ){
+				
+				key += "/" + ( System.currentTimeMillis() / TIME_BUCKET );
+			}
+		}
+		
+		return( new String[]{ "aztor:" + p + ":" + key, secret });
+	}
+		
+		/**
+		 * Approximates the eTLD+1 of a host name, IP literals are returned as is
+		 */
+	
+	public static String
+	getRegistrableDomain(
+		String		host )
+	{
+		host = host.toLowerCase( Locale.US );
+		
+		if ( host.endsWith( "." )){
+			
+			host = host.substring( 0, host.length()-1 );
+		}
+		
+		if ( host.indexOf( ':' ) != -1 || host.matches( "[0-9.]+" )){
+			
+			return( host );
+		}
+		
+		String[]	labels = host.split( "\\." );
+		
+		int	num = labels.length;
+		
+		if ( num <= 2 ){
+			
+			return( host );
+		}
+		
+		int	keep = 2;
+		
+		if ( labels[num-1].length() == 2 && CC_SECOND_LEVEL.contains( labels[num-2] )){
+			
+			keep = 3;
+		}
+		
+		String	result = labels[num-keep];
+		
+		for ( int i=num-keep+1;i<num;i++){
+			
+			result += "." + labels[i];
+		}
+		
+		return( result );
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps domains to values, keyed by label from the right hand end so a host is matched in a single
+ * pass without splitting it or building any strings. Populate with add() then compile(), after
+ * which the trie is read-only and can be matched from any thread without locking.
+ * 
+ * When more than one entry matches, the one for the longest domain wins. For the same domain an
+ * exact entry beats a subdomain one which beats a domain one
+ */
+
+public class
+TorPluginLabelTrie<T>
+{
+		// the domain and any subdomain
+	
+	public static final int	MATCH_DOMAIN		= 0;
+		
+		// subdomains only, '*.domain'
+	
+	public static final int	MATCH_SUBDOMAINS	= 1;
+		
+		// the domain only
+	
+	public static final int	MATCH_EXACT			= 2;
+	
+	private final Node<T>	root = new Node<T>( null );
+	
+	private boolean	compiled;
+	
+	private int		size;
+		
+		/**
+		 * Replaces any existing value for the same domain and match type
+		 * @param domain	labels separated by '.', no leading or trailing '.' or wildcard
+		 */
+	
+	public void
+	add(
+		String		domain,
+		int			match_type,
+		T			value )
+	{
+		if ( compiled ){
+			
+			throw( new IllegalStateException( "Trie is compiled" ));
+		}
+		
+		Node<T>	node = root;
+		
+		String[] labels = domain.toLowerCase( Locale.US ).split( "\\." );
+		
+		for ( int i=labels.length-1;i>=0;i--){
+			
+			node = node.addChild( labels[i] );
+		}
+		
+		if ( node.values[match_type] == null ){
+			
+			size++;
+		}
+		
+		node.values[match_type] = value;
+	}
+	
+	public void
+	compile()
+	{
+		if ( !compiled ){
+			
+			root.compile();
+			
+			compiled = true;
+		}
+	}
+	
+	public int
+	size()
+	{
+		return( size );
+	}
+		
+		/**
+		 * A trailing '.' on the host is ignored, matching is case insensitive
+		 * @return the value of the most specific entry matching host, null if none
+		 */
+	
+	public T
+	match(
+		String		host )
+	{
+		if ( root.children == null ){
+			
+			return( null );
+		}
+		
+		int	end = host.length();
+		
+		if ( end > 0 && host.charAt( end-1 ) == '.' ){
+			
+			end--;
+		}
+		
+		Node<T>	node = root;
+		
+		T	result = null;
+		
+		while( end > 0 ){
+			
+			int	start = host.lastIndexOf( '.', end-1 ) + 1;
+			
+			node = node.getChild( host, start, end );
+			
+			if ( node == null ){
+				
+				break;
+			}
+			
+			T	value;
+			
+			if ( start == 0 ){
+				
+				value = node.values[MATCH_EXACT];
+				
+				if ( value == null ){
+					
+					value = node.values[MATCH_DOMAIN];
+				}
+			}else{
+				
+				value = node.values[MATCH_SUBDOMAINS];
+				
+				if ( value == null ){
+					
+					value = node.values[MATCH_DOMAIN];
+				}
+			}
+			
+			if ( value != null ){
+				
+				result = value;
+			}
+			
+			if ( start == 0 ){
+				
+				break;
+			}
+			
+			end = start - 1;
+		}
+		
+		return( result );
+	}
+	
+	private static class
+	Node<T>
+	{
+		private final String	label;
+		private final int		hash;
+		
+		@SuppressWarnings( "unchecked" )
+		private final T[]		values = (T[])new Object[3];
+		
+		private Map<String,Node<T>>	building;
+			
+			// open addressing, power of 2 size
+		
+		private Node<T>[]		children;
+		
+		private
+		Node(
+			String		_label )
+		{
+			label	= _label;
+			hash	= _label==null?0:_label.hashCode();
+		}
+		
+		private Node<T>
+		addChild(
+			String		_label )
+		{
+			if ( building == null ){
+				
+				building = new HashMap<String, Node<T>>();
+			}
+			
+			Node<T>	child = building.get( _label );
+			
+			if ( child == null ){
+				
+				child = new Node<T>( _label );
+				
+				building.put( _label, child );
+			}
+			
+			return( child );
+		}
+		
+		private void
+		compile()
+		{
+			if ( building == null ){
+				
+				return;
+			}
+			
+			int	size = 2;
+			
+			while( size < building.size() * 2 ){
+				
+				size <<= 1;
+			}
+			
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			Node<T>[]	table = new Node[size];
+			
+			for ( Node<T> child: building.values()){
+				
+				int	pos = child.hash & ( size - 1 );
+				
+				while( table[pos] != null ){
+					
+					pos = ( pos + 1 ) & ( size - 1 );
+				}
+				
+				table[pos] = child;
+				
+				child.compile();
+			}
+			
+			children	= table;
+			building	= null;
+		}
+			
+			/**
+			 * case insensitive lookup of host[start,end) without creating the substring
+			 */
+		
+		private Node<T>
+		getChild(
+			String		host,
+			int			start,
+			int			end )
+		{
+			Node<T>[]	table = children;
+			
+			if ( table == null ){
+				
+				return( null );
+			}
+			
+			int	len = end - start;
+			
+			int	h = 0;
+			
+			for ( int i=start;i<end;i++){
+				
+				h = 31*h + Character.toLowerCase( host.charAt( i ));
+			}
+			
+			int	mask = table.length - 1;
+			
+			int	pos = h & mask;
+			
+			while( true ){
+				
+				Node<T>	child = table[pos];
+				
+				if ( child == null ){
+					
+					return( null );
+				}
+				
+				if ( child.hash == h && child.label.length() == len && child.label.regionMatches( true, 0, host, start, len )){
+					
+					return( child );
+				}
+				
+				pos = ( pos + 1 ) & mask;
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples so percentiles can be taken over them
+ */
+
+public class
+TorPluginLatencyTracker
+{
+	private final long[]	samples;
+	
+	private int		next;
+	private int		count;
+	
+	public
+	TorPluginLatencyTracker(
+		int		size )
+	{
+		samples = new long[size];
+	}
+	
+	public synchronized void
+	add(
+		long	millis )
+	{
+		samples[next] = millis;
+		
+		next = ( next + 1 ) % samples.length;
+		
+		if ( count < samples.length ){
+			
+			count++;
+		}
+	}
+	
+	public synchronized int
+	getSampleCount()
+	{
+		return( count );
+	}
+		
+		/**
+		 * @param percent 0..100
+		 * @return -1 if there are no samples
+		 */
+	
+	public synchronized long
+	getPercentile(
+		int		percent )
+	{
+		if ( count == 0 ){
+			
+			return( -1 );
+		}
+		
+		long[]	sorted = Arrays.copyOf( samples, count );
+		
+		Arrays.sort( sorted );
+		
+		int	index = (int)Math.ceil( count * percent / 100.0 ) - 1;
+		
+		return( sorted[ Math.max( 0, Math.min( count-1, index ))]);
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.TreeMap;
+
+import com.biglybt.core.util.SimpleTimer;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.TimerEvent;
+import com.biglybt.core.util.TimerEventPerformer;
+import com.biglybt.pif.PluginConfig;
+
+/**
+ * The user's remembered answers to 'use Tor for this host?' prompts. Entries are persisted as a comma
+ * separated list of 'host' (allow), '^host' (deny), '*.domain' and '^*.domain' (subdomains) and '^*'
+ * (deny everything).
+ * 
+ * Lookups go to an immutable TorPluginLabelTrie snapshot that is rebuilt when the entries change, so
+ * they don't lock. Changes are saved in batches a few seconds after the first unsaved one.
+ */
+
+public class
+TorPluginPromptDecisions
+{
+	private static final String	CONFIG_KEY	= "prompt.decisions";
+	
+	private static final String	DENY_ALL	= "^*";
+	
+	private static final int	SAVE_DELAY	= 10*1000;
+	
+	private final PluginConfig		plugin_config;
+		
+		// reversed domain + " " + entry -> entry so that everything under a domain is a contiguous range
+	
+	private final TreeMap<String,String>	entries = new TreeMap<String, String>();
+	
+	private volatile Snapshot	snapshot = new Snapshot( false, new TorPluginLabelTrie<Boolean>());
+	
+	private TimerEvent		save_event;
+	private boolean			dirty;
+	
+	public
+	TorPluginPromptDecisions(
+		PluginConfig		_plugin_config )
+	{
+		plugin_config	= _plugin_config;
+	}
+	
+	public void
+	read()
+	{
+		String	str = plugin_config.getPluginStringParameter( CONFIG_KEY, "" );
+		
+		synchronized( this ){
+			
+			entries.clear();
+			
+			for ( String bit: str.split( "," )){
+				
+				bit = bit.trim();
+				
+				if ( bit.length() > 0 ){
+					
+					addEntry( bit );
+				}
+			}
+			
+			rebuild();
+		}
+	}
+		
+		/**
+		 * @return TRUE if Tor should be used, FALSE if not, null if there's no decision and the user
+		 * should be asked
+		 */
+	
+	public Boolean
+	getDecision(
+		String		host )
+	{
+		return( snapshot.getDecision( host ));
+	}
+		
+		/**
+		 * @param host	a host, '*.domain' for all subdomains of domain or '*' to deny all (allowing
+		 * all is the caller's business as it means not prompting at all)
+		 */
+	
+	public void
+	setDecision(
+		String		host,
+		boolean		accepted )
+	{
+		synchronized( this ){
+			
+			if ( host.equals( "*" )){
+				
+				entries.clear();
+				
+				addEntry( DENY_ALL );
+			
+			}else{
+				
+				if ( host.startsWith( "*." )){
+						
+						// replaces any decisions for the domain's subdomains, keys from "<reversed>." up to
+						// "<reversed>/" ('/' follows '.')
+					
+					String	domain = reverse( host.substring( 2 ));
+					
+					entries.subMap( domain + ".", domain + "/" ).clear();
+				}
+				
+				addEntry( accepted?host:("^"+host));
+			}
+			
+			rebuild();
+			
+			scheduleSave();
+		}
+	}
+		
+		/**
+		 * @return false if there was nothing to reset
+		 */
+	
+	public boolean
+	reset()
+	{
+		synchronized( this ){
+			
+			if ( entries.isEmpty()){
+				
+				return( false );
+			}
+			
+			entries.clear();
+			
+			rebuild();
+			
+			scheduleSave();
+			
+			return( true );
+		}
+	}
+	
+	public int
+	size()
+	{
+		synchronized( this ){
+			
+			return( entries.size());
+		}
+	}
+	
+	private void
+	addEntry(
+		String		entry )
+	{
+		String	domain = entry.startsWith( "^" )?entry.substring( 1 ):entry;
+		
+		entries.put( reverse( domain ) + " " + entry, entry );
+	}
+	
+	private static String
+	reverse(
+		String		domain )
+	{
+		String[]	labels = domain.split( "\\." );
+		
+		StringBuilder	sb = new StringBuilder( domain.length());
+		
+		for ( int i=labels.length-1;i>=0;i--){
+			
+			sb.append( labels[i] );
+			
+			if ( i > 0 ){
+				
+				sb.append( '.' );
+			}
+		}
+		
+		return( sb.toString());
+	}
+		
+		/**
+		 * lock held
+		 */
+	
+	private void
+	rebuild()
+	{
+		boolean	deny_all = false;
+		
+		TorPluginLabelTrie<Boolean>	trie = new TorPluginLabelTrie<Boolean>();
+			
+			// allows take precedence over denies for the same host, so add them last
+		
+		for ( int pass=0;pass<2;pass++){
+			
+			boolean	allow = pass == 1;
+			
+			for ( String entry: entries.values()){
+				
+				if ( entry.equals( DENY_ALL )){
+					
+					deny_all = true;
+					
+					continue;
+				}
+				
+				boolean	deny = entry.startsWith( "^" );
+				
+				if ( deny == allow ){
+					
+					continue;
+				}
+				
+				String	domain = deny?entry.substring( 1 ):entry;
+				
+				int	match_type = TorPluginLabelTrie.MATCH_EXACT;
+				
+				if ( domain.startsWith( "*." )){
+					
+					domain = domain.substring( 2 );
+					
+					match_type = TorPluginLabelTrie.MATCH_SUBDOMAINS;
+				}
+				
+				if ( domain.length() == 0 || domain.contains( "*" )){
+					
+					continue;
+				}
+				
+				trie.add( domain, match_type, allow?Boolean.TRUE:Boolean.FALSE );
+			}
+		}
+		
+		trie.compile();
+		
+		snapshot = new Snapshot( deny_all, trie );
+	}
+		
+		/**
+		 * lock held
+		 */
+	
+	private void
+	scheduleSave()
+	{
+		dirty = true;
+		
+		if ( save_event == null ){
+			
+			save_event = 
+				SimpleTimer.addEvent(
+					"TorPromptSave",
+					SystemTime.getOffsetTime( SAVE_DELAY ),
+					new TimerEventPerformer()
+					{
+						@Override
+						public void
+						perform(
+							TimerEvent event )
+						{
+							flush();
+						}
+					});
+		}
+	}
+		
+		/**
+		 * Saves any outstanding changes now
+		 */
+	
+	public void
+	flush()
+	{
+		String	str;
+		
+		synchronized( this ){
+			
+			if ( save_event != null ){
+				
+				save_event.cancel();
+				
+				save_event = null;
+			}
+			
+			if ( !dirty ){
+				
+				return;
+			}
+			
+			dirty = false;
+			
+			StringBuilder	sb = new StringBuilder();
+			
+			for ( String entry: entries.values()){
+				
+				if ( sb.length() > 0 ){
+					
+					sb.append( ',' );
+				}
+				
+				sb.append( entry );
+			}
+			
+			str = sb.toString();
+		}
+		
+		plugin_config.setPluginParameter( CONFIG_KEY, str );
+		
+		try{
+			plugin_config.save();
+		
+		}catch( Throwable e ){
+		}
+	}
+	
+	public String
+	getString()
+	{
+		synchronized( this ){
+			
+			return( String.valueOf( entries.values()));
+		}
+	}
+	
+	private static class
+	Snapshot
+	{
+		private final boolean						deny_all;
+		private final TorPluginLabelTrie<Boolean>	trie;
+		
+		private
+		Snapshot(
+			boolean						_deny_all,
+			TorPluginLabelTrie<Boolean>	_trie )
+		{
+			deny_all	= _deny_all;
+			trie		= _trie;
+		}
+		
+		private Boolean
+		getDecision(
+			String		host )
+		{
+			if ( deny_all ){
+				
+				return( Boolean.FALSE );
+			}
+			
+			return( trie.match( host ));
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.biglybt.core.util.DisplayFormatters;
+import com.biglybt.core.util.SystemTime;
+
+/**
+ * Token-bucket shaping of relayed Tor traffic: a global bucket, one per destination host and one per
+ * traffic class. Streams reserve tokens for data they have just moved and are told how long to back
+ * off before moving more.
+ *
+ * Latency-sensitive classes (tracker, DHT) and the first few KB of any stream consume tokens but
+ * never wait, so bulk transfers are the ones that give way when a limit is reached.
+ */
+
+public class
+TorPluginRateLimiter
+{
+	public static final int	TC_TRACKER	= 0;
+	public static final int	TC_DHT		= 1;
+	public static final int	TC_BULK		= 2;
+	public static final int	TC_OTHER	= 3;
+	
+	private static final String[]	TC_NAMES = { "tracker", "dht", "bulk", "other" };
+	
+	private static final String[][]	TC_KEYWORDS = {
+		{ "tracker", "announce", "scrape" },
+		{ "dht", "bootstrap" },
+		{ "webseed", "web seed", "http seed", "download", "bulk" },
+	};
+	
+	private static final int	SMALL_STREAM_BYTES	= 64*1024;
+	
+	private static final int	MAX_HOST_BUCKETS	= 256;
+		
+		// callers use a small set of fixed reason strings so the classification is cached
+	
+	private static final int	MAX_REASON_CACHE	= 256;
+	
+	private static final Map<String,Integer>	reason_cache = new ConcurrentHashMap<String, Integer>();
+	
+	private static final TorPluginRateLimiter	singleton = new TorPluginRateLimiter();
+	
+	public static TorPluginRateLimiter
+	getSingleton()
+	{
+		return( singleton );
+	}
+		
+		/**
+		 * Derives the traffic class from the 'reason' given by the caller of getProxy etc
+		 */
+	
+	public static int
+	getTrafficClass(
+		String		reason )
+	{
+		if ( reason == null ){
+			
+			return( TC_OTHER );
+		}
+		
+		Integer	result = reason_cache.get( reason );
+		
+		if ( result == null ){
+			
+			result = TC_OTHER;
+			
+			String lc_reason = reason.toLowerCase();
+			
+			outer:
+			for ( int i=0;i<TC_KEYWORDS.length;i++){
+				
+				for ( String keyword: TC_KEYWORDS[i] ){
+					
+					if ( lc_reason.contains( keyword )){
+						
+						result = i;
+						
+						break outer;
+					}
+				}
+			}
+			
+			if ( reason_cache.size() >= MAX_REASON_CACHE ){
+				
+				reason_cache.clear();
+			}
+			
+			reason_cache.put( reason, result );
+		}
+		
+		return( result );
+	}
+	
+	public static String
+	getTrafficClassName(
+		int		traffic_class )
+	{
+		return( TC_NAMES[traffic_class] );
+	}
+	
+	public static boolean
+	isLatencySensitive(
+		int		traffic_class )
+	{
+		return( traffic_class == TC_TRACKER || traffic_class == TC_DHT );
+	}
+	
+	private final TokenBucket		global_bucket	= new TokenBucket();
+	private final TokenBucket[]		class_buckets	= new TokenBucket[TC_NAMES.length];
+	
+	private volatile int	host_rate;
+	
+	@SuppressWarnings( "serial" )
+	private final Map<String,TokenBucket>	host_buckets =
+		new LinkedHashMap<String,TokenBucket>(MAX_HOST_BUCKETS,0.75f,true)
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<String,TokenBucket> eldest)
+			{
+				return size() > MAX_HOST_BUCKETS;
+			}
+		};
+	
+	private volatile boolean	enabled;
+	
+	private final AtomicLong	delay_count		= new AtomicLong();
+	private final AtomicLong	delay_total		= new AtomicLong();
+	
+	private
+	TorPluginRateLimiter()
+	{
+		for ( int i=0;i<class_buckets.length;i++){
+			
+			class_buckets[i] = new TokenBucket();
+		}
+	}
+		
+		/**
+		 * All rates are bytes/sec, 0 means unlimited
+		 */
+	
+	public void
+	setLimits(
+		int		global_rate,
+		int		_host_rate,
+		int[]	class_rates )
+	{
+		global_bucket.setRate( global_rate );
+		
+		host_rate	= _host_rate;
+		
+		synchronized( host_buckets ){
+			
+			for ( TokenBucket bucket: host_buckets.values()){
+				
+				bucket.setRate( host_rate );
+			}
+		}
+		
+		boolean	any_class = false;
+		
+		for ( int i=0;i<class_buckets.length;i++){
+			
+			int	rate = i<class_rates.length?class_rates[i]:0;
+			
+			class_buckets[i].setRate( rate );
+			
+			any_class |= rate > 0;
+		}
+		
+		enabled = global_rate > 0 || host_rate > 0 || any_class;
+	}
+	
+	public boolean
+	isEnabled()
+	{
+		return( enabled );
+	}
+		
+		/**
+		 * Call after 'bytes' have been moved on the stream (and accounted in its stats)
+		 * @return millis to wait before moving any more data, 0 if none
+		 */
+	
+	public long
+	getDelay(
+		TorPluginStreamStats	stream,
+		int						bytes )
+	{
+		if ( !enabled || bytes <= 0 ){
+			
+			return( 0 );
+		}
+		
+		int	traffic_class = stream.getTrafficClass();
+		
+		boolean	exempt = 
+			isLatencySensitive( traffic_class ) ||
+			stream.getBytesIn() + stream.getBytesOut() <= SMALL_STREAM_BYTES;
+		
+		long	delay = global_bucket.consume( bytes, exempt );
+		
+		delay = Math.max( delay, class_buckets[traffic_class].consume( bytes, exempt ));
+		
+		if ( host_rate > 0 ){
+			
+			TokenBucket	host_bucket;
+			
+			synchronized( host_buckets ){
+				
+				String	host = stream.getHost();
+				
+				host_bucket = host_buckets.get( host );
+				
+				if ( host_bucket == null ){
+					
+					host_bucket = new TokenBucket();
+					
+					host_bucket.setRate( host_rate );
+					
+					host_buckets.put( host, host_bucket );
+				}
+			}
+			
+			delay = Math.max( delay, host_bucket.consume( bytes, exempt ));
+		}
+		
+		if ( delay == 0 || exempt ){
+				
+				// exempt - the tokens we took will slow down everyone else instead
+			
+			return( 0 );
+		}
+		
+		delay_count.incrementAndGet();
+		delay_total.addAndGet( delay );
+		
+		return( delay );
+	}
+		
+		/**
+		 * For blocking relays
+		 */
+	
+	public void
+	waitFor(
+		TorPluginStreamStats	stream,
+		int						bytes )
+	{
+		long	delay = getDelay( stream, bytes );
+		
+		if ( delay > 0 ){
+			
+			try{
+				Thread.sleep( delay );
+			
+			}catch( InterruptedException e ){
+				
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	public String
+	getString()
+	{
+		long	count = delay_count.get();
+		
+		String	class_str = "";
+		
+		for ( int i=0;i<class_buckets.length;i++){
+			
+			int	rate = class_buckets[i].getRate();
+			
+			if ( rate > 0 ){
+				
+				class_str += ", " + TC_NAMES[i] + "=" + DisplayFormatters.formatByteCountToKiBEtcPerSec( rate );
+			}
+		}
+		
+		int	global_rate = global_bucket.getRate();
+		
+		return( "global=" + (global_rate==0?"unlimited":DisplayFormatters.formatByteCountToKiBEtcPerSec( global_rate )) +
+				(host_rate==0?"":( ", host=" + DisplayFormatters.formatByteCountToKiBEtcPerSec( host_rate ))) +
+				class_str +
+				", delays=" + count + (count==0?"":( " (avg " + delay_total.get()/count + "ms)" )));
+	}
+	
+	private static class
+	TokenBucket
+	{
+		private int		rate;
+		private long	tokens;
+		private long	last_refill	= SystemTime.getMonotonousTime();
+		
+		private synchronized void
+		setRate(
+			int		_rate )
+		{
+			rate	= _rate;
+			tokens	= Math.min( tokens, rate );
+		}
+		
+		private synchronized int
+		getRate()
+		{
+			return( rate );
+		}
+		
+		private synchronized long
+		consume(
+			int			bytes,
+			boolean		exempt )
+		{
+			if ( rate <= 0 ){
+				
+				return( 0 );
+			}
+			
+			long	now = SystemTime.getMonotonousTime();
+			
+			long	elapsed = now - last_refill;
+			
+			if ( elapsed > 0 ){
+					
+					// burst of at most one second's worth
+				
+				tokens = Math.min( rate, tokens + elapsed*rate/1000 );
+				
+				last_refill = now;
+			}
+				
+			if ( exempt ){
+					
+					// exempt traffic only builds the debt up to a second so that it pushes back on bulk
+					// without starving it indefinitely. It never reduces a debt that bulk has run up
+				
+				tokens = Math.min( tokens, Math.max( -rate, tokens - bytes ));
+			
+			}else{
+					
+					// bulk keeps its full debt so that a chunk larger than the rate waits bytes/rate,
+					// otherwise limits below the relay's chunk size would have no effect
+				
+				tokens -= bytes;
+			}
+			
+			if ( tokens >= 0 ){
+				
+				return( 0 );
+			}
+			
+			return( -tokens*1000/rate );
+		}
+	}
+}
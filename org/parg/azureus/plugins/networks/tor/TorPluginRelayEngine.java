@@ -0,0 +1,553 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.biglybt.core.util.AEThread2;
+import com.biglybt.core.util.Debug;
+
+/**
+ * A small fixed set of selector threads that pump non-blocking channels. Interest changes
+ * can be requested from any thread, they are queued and applied by the owning select loop.
+ */
+
+public class
+TorPluginRelayEngine
+{
+	private final String			name;
+	
+	private final SelectLoop[]		loops;
+	
+	private final AtomicInteger		next_loop	= new AtomicInteger();
+	
+	private volatile boolean		destroyed;
+	
+	public
+	TorPluginRelayEngine(
+		String		_name,
+		int			_num_loops )
+		
+		throws IOException
+	{
+		name	= _name;
+		
+		loops = new SelectLoop[ Math.max( 1, _num_loops )];
+		
+		try{
+			for ( int i=0;i<loops.length;i++){
+				
+				loops[i] = new SelectLoop( name + ":" + i );
+			}
+		}catch( IOException e ){
+			
+			destroy();
+			
+			throw( e );
+		}
+		
+		for ( SelectLoop loop: loops ){
+			
+			loop.start();
+		}
+	}
+	
+	public Registration
+	register(
+		SelectableChannel		channel,
+		Handler					handler )
+		
+		throws IOException
+	{
+		if ( destroyed ){
+			
+			throw( new IOException( "Relay engine destroyed" ));
+		}
+		
+		channel.configureBlocking( false );
+		
+		SelectLoop loop = loops[ ( next_loop.getAndIncrement() & Integer.MAX_VALUE ) % loops.length ];
+		
+		return( new Registration( loop, channel, handler ));
+	}
+	
+	public int
+	getLoopCount()
+	{
+		return( loops.length );
+	}
+	
+	public int
+	getRegistrationCount()
+	{
+		int	total = 0;
+		
+		for ( SelectLoop loop: loops ){
+			
+			if ( loop != null ){
+				
+				total += loop.getRegistrationCount();
+			}
+		}
+		
+		return( total );
+	}
+	
+	public String
+	getString()
+	{
+		return( "loops=" + loops.length + ", channels=" + getRegistrationCount());
+	}
+	
+	public void
+	destroy()
+	{
+		destroyed = true;
+		
+		for ( SelectLoop loop: loops ){
+			
+			if ( loop != null ){
+				
+				loop.wakeup();
+			}
+		}
+	}
+	
+	public interface
+	Handler
+	{
+			/**
+			 * Called on the select thread with the ready-ops masked by the current interest
+			 */
+		
+		public void
+		selected(
+			int		ready_ops )
+			
+			throws IOException;
+		
+		public void
+		failed(
+			Throwable	error );
+	}
+	
+	public class
+	Registration
+	{
+		private final SelectLoop			loop;
+		private final SelectableChannel		channel;
+		
+		private volatile Handler			handler;
+		
+		private SelectionKey	key;
+		
+		private int				interest;
+		private boolean			cancelled;
+		private boolean			queued;
+		
+		private Runnable		deregistered;
+		
+		private
+		Registration(
+			SelectLoop			_loop,
+			SelectableChannel	_channel,
+			Handler				_handler )
+		{
+			loop		= _loop;
+			channel		= _channel;
+			handler		= _handler;
+		}
+			
+			/**
+			 * Passes the channel on to a new owner, e.g. from the SOCKS handshake to the relay
+			 */
+		
+		public void
+		setHandler(
+			Handler		_handler )
+		{
+			handler	= _handler;
+		}
+		
+		public void
+		setInterest(
+			int		ops )
+		{
+			synchronized( this ){
+				
+				if ( cancelled || interest == ops ){
+					
+					return;
+				}
+				
+				interest = ops;
+			}
+			
+			queue();
+		}
+		
+		public void
+		addInterest(
+			int		ops )
+		{
+			synchronized( this ){
+				
+				if ( cancelled || ( interest & ops ) == ops ){
+					
+					return;
+				}
+				
+				interest |= ops;
+			}
+			
+			queue();
+		}
+		
+		public void
+		removeInterest(
+			int		ops )
+		{
+			synchronized( this ){
+				
+				if ( cancelled || ( interest & ops ) == 0 ){
+					
+					return;
+				}
+				
+				interest &= ~ops;
+			}
+			
+			queue();
+		}
+		
+		public void
+		cancel()
+		{
+			cancel( null );
+		}
+			
+			/**
+			 * @param _deregistered if non-null is called on the select thread once the channel has been
+			 * deregistered from the selector and can therefore be switched back to blocking mode
+			 */
+		
+		public void
+		cancel(
+			Runnable	_deregistered )
+		{
+			synchronized( this ){
+				
+				if ( cancelled ){
+					
+					return;
+				}
+				
+				cancelled 		= true;
+				deregistered	= _deregistered;
+			}
+			
+			queue();
+		}
+		
+		public boolean
+		isCancelled()
+		{
+			synchronized( this ){
+				
+				return( cancelled );
+			}
+		}
+		
+		private void
+		queue()
+		{
+			synchronized( this ){
+				
+				if ( queued ){
+					
+					return;
+				}
+				
+				queued = true;
+			}
+			
+			loop.queue( this );
+		}
+			
+			/**
+			 * select thread only
+			 */
+		
+		private void
+		apply()
+			
+			throws IOException
+		{
+			int			ops;
+			boolean		cancel;
+			Runnable	on_deregistered;
+			
+			synchronized( this ){
+				
+				queued	= false;
+				
+				ops		= interest;
+				cancel	= cancelled;
+				
+				on_deregistered	= deregistered;
+				deregistered	= null;
+			}
+			
+			if ( cancel ){
+				
+				if ( key != null ){
+					
+					key.cancel();
+					
+					key = null;
+					
+					loop.registrationRemoved();
+					
+					if ( on_deregistered != null ){
+							
+							// the key is only dropped from the selector by the next select operation
+						
+						loop.selector.selectNow();
+					}
+				}
+				
+				if ( on_deregistered != null ){
+					
+					try{
+						on_deregistered.run();
+					
+					}catch( Throwable e ){
+						
+						Debug.out( e );
+					}
+				}
+			}else if ( key == null ){
+				
+				key = channel.register( loop.selector, ops, this );
+				
+				loop.registrationAdded();
+			
+			}else{
+				
+				key.interestOps( ops );
+			}
+		}
+		
+		private int
+		getInterest()
+		{
+			synchronized( this ){
+				
+				return( cancelled?0:interest );
+			}
+		}
+		
+		private void
+		failed(
+			Throwable	e )
+		{
+			cancel();
+			
+			try{
+				handler.failed( e );
+			
+			}catch( Throwable f ){
+				
+				Debug.out( f );
+			}
+		}
+	}
+	
+	private class
+	SelectLoop
+	{
+		private final String		loop_name;
+		private final Selector		selector;
+		
+		private final ConcurrentLinkedQueue<Registration>	pending = new ConcurrentLinkedQueue<Registration>();
+		
+		private final AtomicInteger		registrations = new AtomicInteger();
+		
+		private
+		SelectLoop(
+			String		_name )
+			
+			throws IOException
+		{
+			loop_name	= _name;
+			selector	= Selector.open();
+		}
+		
+		private void
+		start()
+		{
+			new AEThread2( "TorRelay:" + loop_name, true )
+			{
+				@Override
+				public void
+				run()
+				{
+					try{
+						runLoop();
+					
+					}finally{
+						
+						try{
+							selector.close();
+						
+						}catch( Throwable e ){
+						}
+					}
+				}
+			}.start();
+		}
+		
+		private void
+		queue(
+			Registration	reg )
+		{
+			pending.add( reg );
+			
+			selector.wakeup();
+		}
+		
+		private void
+		wakeup()
+		{
+			selector.wakeup();
+		}
+		
+		private void
+		registrationAdded()
+		{
+			registrations.incrementAndGet();
+		}
+		
+		private void
+		registrationRemoved()
+		{
+			registrations.decrementAndGet();
+		}
+		
+		private int
+		getRegistrationCount()
+		{
+			return( registrations.get());
+		}
+		
+		private void
+		runLoop()
+		{
+			while( !destroyed ){
+				
+				Registration reg;
+				
+				while(( reg = pending.poll()) != null ){
+					
+					try{
+						reg.apply();
+					
+					}catch( Throwable e ){
+						
+						reg.failed( e );
+					}
+				}
+				
+				try{
+					if ( selector.selectedKeys().isEmpty()){
+						
+						selector.select();
+					
+					}else{
+							
+							// a deregistration did a selectNow and may have picked up events that a
+							// blocking select wouldn't report again
+						
+						selector.selectNow();
+					}
+				
+				}catch( Throwable e ){
+					
+					Debug.out( e );
+					
+					try{
+						Thread.sleep( 100 );
+					
+					}catch( Throwable f ){
+					}
+					
+					continue;
+				}
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				
+				while( it.hasNext()){
+					
+					SelectionKey key = it.next();
+					
+					it.remove();
+					
+					reg = (Registration)key.attachment();
+					
+					try{
+						int	ready = key.readyOps() & reg.getInterest();
+						
+						if ( ready != 0 ){
+							
+							reg.handler.selected( ready );
+						}
+					}catch( CancelledKeyException e ){
+					
+					}catch( Throwable e ){
+						
+						reg.failed( e );
+					}
+				}
+			}
+				
+				// engine destroyed, fail anything still registered so owners can tidy up
+			
+			for ( SelectionKey key: selector.keys()){
+				
+				Registration reg = (Registration)key.attachment();
+				
+				if ( reg != null ){
+					
+					reg.failed( new IOException( "Relay engine destroyed" ));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,477 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.biglybt.core.util.AENetworkClassifier;
+
+/**
+ * Upstream SOCKS routes for the filtering proxy. Each route has its own connect scheduler, and
+ * therefore its own concurrency limit and queue, plus its own connect timeout and stream totals so
+ * a slow network (I2P tunnel builds, say) can only hold up connects to that network.
+ *
+ * A destination is matched against the host suffixes of the extra routes first, then by network
+ * category, falling back to the Tor route.
+ */
+
+public class
+TorPluginRouteTable
+{
+	public static final String	ROUTE_TOR	= "tor";
+	public static final String	ROUTE_I2P	= "i2p";
+	
+	private static final int	EXTRA_MAX_ACTIVE		= 16;
+	private static final int	EXTRA_MAX_QUEUED		= 64;
+	private static final long	EXTRA_MAX_WAIT			= 2*60*1000;
+	private static final int	EXTRA_CONNECT_TIMEOUT	= 2*60*1000;
+	
+	private final Route			default_route;
+	
+	private final Map<String,Route>	routes = new LinkedHashMap<String,Route>();
+	
+	public
+	TorPluginRouteTable(
+		TorPluginConnectScheduler	tor_scheduler,
+		int							tor_connect_timeout )
+	{
+		default_route = new Route( ROUTE_TOR, AENetworkClassifier.AT_TOR, tor_scheduler, tor_connect_timeout, false );
+		
+		routes.put( ROUTE_TOR, default_route );
+	}
+	
+	public Route
+	addNetworkRoute(
+		String						name,
+		String						network,
+		TorPluginConnectScheduler	scheduler,
+		int							connect_timeout )
+	{
+		Route route = new Route( name, network, scheduler, connect_timeout, false );
+		
+		synchronized( this ){
+			
+			routes.put( name, route );
+		}
+		
+		return( route );
+	}
+	
+	public Route
+	getRoute(
+		String		name )
+	{
+		synchronized( this ){
+			
+			return( routes.get( name ));
+		}
+	}
+	
+	public Route
+	getDefaultRoute()
+	{
+		return( default_route );
+	}
+	
+	public Route
+	findRoute(
+		String		host )
+	{
+		String	lc_host = host.toLowerCase( Locale.US );
+		
+		List<Route>	candidates;
+		
+		synchronized( this ){
+			
+			candidates = new ArrayList<Route>( routes.values());
+		}
+		
+		for ( Route route: candidates ){
+			
+			if ( route.matchesSuffix( lc_host )){
+				
+				return( route );
+			}
+		}
+		
+		String	network = AENetworkClassifier.categoriseAddress( host );
+		
+		for ( Route route: candidates ){
+			
+			if ( route.network != null && route.network.equals( network )){
+				
+				return( route );
+			}
+		}
+		
+		return( default_route );
+	}
+		
+		/**
+		 * Replaces the extra (non-network) routes. Each map has "name", "host", "port" and "suffixes" (a
+		 * list of host suffixes such as ".loki"), and optionally "max_active" and "connect_timeout" (millis).
+		 * Existing routes of the same name keep their scheduler and totals
+		 */
+	
+	public void
+	setExtraRoutes(
+		List<Map<String,Object>>		configs )
+	{
+		synchronized( this ){
+			
+			Set<String>	keep = new HashSet<String>();
+			
+			for ( Map<String,Object> config: configs ){
+				
+				String	name 	= (String)config.get( "name" );
+				String	host	= (String)config.get( "host" );
+				Number	port	= (Number)config.get( "port" );
+				
+				Object	o_suffixes = config.get( "suffixes" );
+				
+				if ( name == null || port == null || o_suffixes == null ){
+					
+					continue;
+				}
+				
+				Route	route = routes.get( name );
+				
+				if ( route != null && !route.extra ){
+						
+						// can't redefine tor/i2p this way
+					
+					continue;
+				}
+				
+				Number	max_active	= (Number)config.get( "max_active" );
+				Number	timeout		= (Number)config.get( "connect_timeout" );
+				
+				if ( route == null ){
+					
+					route = new Route(
+								name,
+								null,
+								new TorPluginConnectScheduler( "TorConnect:" + name, EXTRA_MAX_ACTIVE, EXTRA_MAX_QUEUED, EXTRA_MAX_WAIT ),
+								timeout==null?EXTRA_CONNECT_TIMEOUT:timeout.intValue(),
+								true );
+					
+					routes.put( name, route );
+				
+				}else if ( timeout != null ){
+					
+					route.connect_timeout = timeout.intValue();
+				}
+				
+				if ( max_active != null ){
+					
+					route.scheduler.setLimits( max_active.intValue(), EXTRA_MAX_QUEUED, EXTRA_MAX_WAIT );
+				}
+				
+				List<String>	suffixes = new ArrayList<String>();
+				
+				if ( o_suffixes instanceof String ){
+					
+					for ( String s: ((String)o_suffixes).split( "," )){
+						
+						suffixes.add( s );
+					}
+				}else{
+					
+					for ( Object o: (List<?>)o_suffixes ){
+						
+						suffixes.add( String.valueOf( o ));
+					}
+				}
+				
+				route.setSuffixes( suffixes );
+				
+				route.setEndpoint( host==null?"127.0.0.1":host, port.intValue());
+				
+				keep.add( name );
+			}
+			
+			List<Route>	removed = new ArrayList<Route>();
+			
+			for ( Route route: routes.values()){
+				
+				if ( route.extra && !keep.contains( route.name )){
+					
+					removed.add( route );
+				}
+			}
+			
+			for ( Route route: removed ){
+				
+				routes.remove( route.name );
+			}
+		}
+	}
+	
+	public List<Map<String,Object>>
+	getExtraRoutes()
+	{
+		List<Map<String,Object>>	result = new ArrayList<Map<String,Object>>();
+		
+		synchronized( this ){
+			
+			for ( Route route: routes.values()){
+				
+				if ( route.extra ){
+					
+					Map<String,Object>	map = new HashMap<String,Object>();
+					
+					InetSocketAddress	address = route.getEndpoint();
+					
+					map.put( "name", route.name );
+					map.put( "host", address==null?"":address.getHostString());
+					map.put( "port", address==null?0:address.getPort());
+					map.put( "suffixes", new ArrayList<String>( route.suffixes ));
+					map.put( "connect_timeout", route.connect_timeout );
+					
+					result.add( map );
+				}
+			}
+		}
+		
+		return( result );
+	}
+	
+	public boolean
+	hasActivity()
+	{
+		synchronized( this ){
+			
+			for ( Route route: routes.values()){
+				
+				if ( route != default_route && route.hasActivity()){
+					
+					return( true );
+				}
+			}
+		}
+		
+		return( false );
+	}
+	
+	public Map<String,Object>
+	toMap()
+	{
+		Map<String,Object>	result = new HashMap<String,Object>();
+		
+		synchronized( this ){
+			
+			for ( Route route: routes.values()){
+				
+				result.put( route.name, route.toMap());
+			}
+		}
+		
+		return( result );
+	}
+	
+	public String
+	getString()
+	{
+		String	str = "";
+		
+		synchronized( this ){
+			
+			for ( Route route: routes.values()){
+				
+				if ( route.hasActivity()){
+					
+					str += (str.isEmpty()?"":", ") + route.getString();
+				}
+			}
+		}
+		
+		return( str );
+	}
+	
+	public class
+	Route
+	{
+		private final String						name;
+		private final String						network;
+		private final TorPluginConnectScheduler		scheduler;
+		private final boolean						extra;
+		
+		private volatile int					connect_timeout;
+		
+		private volatile InetSocketAddress		endpoint;
+		
+		private volatile List<String>			suffixes	= new ArrayList<String>();
+		
+		private final TorPluginStreamStats.Aggregate	stream_stats = new TorPluginStreamStats.Aggregate();
+		
+		private
+		Route(
+			String						_name,
+			String						_network,
+			TorPluginConnectScheduler	_scheduler,
+			int							_connect_timeout,
+			boolean						_extra )
+		{
+			name				= _name;
+			network				= _network;
+			scheduler			= _scheduler;
+			connect_timeout		= _connect_timeout;
+			extra				= _extra;
+		}
+		
+		public String
+		getName()
+		{
+			return( name );
+		}
+			
+			/**
+			 * The Tor route has no fixed endpoint, the caller uses whichever SOCKS port is currently active
+			 */
+		
+		public boolean
+		isTor()
+		{
+			return( this == default_route );
+		}
+		
+		public void
+		setEndpoint(
+			String		host,
+			int			port )
+		{
+			endpoint = port==0?null:InetSocketAddress.createUnresolved( host, port );
+		}
+			
+			/**
+			 * @return unresolved address or null if the route hasn't been configured
+			 */
+		
+		public InetSocketAddress
+		getEndpoint()
+		{
+			return( endpoint );
+		}
+		
+		private void
+		setSuffixes(
+			List<String>	_suffixes )
+		{
+			List<String>	result = new ArrayList<String>();
+			
+			for ( String suffix: _suffixes ){
+				
+				suffix = suffix.trim().toLowerCase( Locale.US );
+				
+				if ( suffix.startsWith( "." )){
+					
+					suffix = suffix.substring( 1 );
+				}
+				
+				if ( !suffix.isEmpty()){
+					
+					result.add( suffix );
+				}
+			}
+			
+			suffixes = result;
+		}
+		
+		private boolean
+		matchesSuffix(
+			String		lc_host )
+		{
+			for ( String suffix: suffixes ){
+				
+				if ( lc_host.endsWith( suffix )){
+					
+					int	pos = lc_host.length() - suffix.length();
+					
+					if ( pos == 0 || lc_host.charAt( pos-1 ) == '.' ){
+						
+						return( true );
+					}
+				}
+			}
+			
+			return( false );
+		}
+		
+		public TorPluginConnectScheduler
+		getScheduler()
+		{
+			return( scheduler );
+		}
+		
+		public int
+		getConnectTimeout()
+		{
+			return( connect_timeout );
+		}
+		
+		public void
+		addStream(
+			TorPluginStreamStats	stats )
+		{
+			stream_stats.add( stats );
+		}
+		
+		public TorPluginStreamStats.Aggregate
+		getStreamStats()
+		{
+			return( stream_stats );
+		}
+		
+		private boolean
+		hasActivity()
+		{
+			return( scheduler.hasActivity() || stream_stats.getStreamCount() > 0 );
+		}
+		
+		private Map<String,Object>
+		toMap()
+		{
+			Map<String,Object>	map = new HashMap<String,Object>();
+			
+			map.put( "connects", scheduler.toMap());
+			map.put( "streams", stream_stats.toMap());
+			map.put( "connect_timeout", connect_timeout );
+			
+			return( map );
+		}
+		
+		private String
+		getString()
+		{
+			return( name + ": " + stream_stats.getString() + "; " + scheduler.getString());
+		}
+	}
+}
@@ -0,0 +1,874 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.biglybt.core.util.Constants;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SimpleTimer;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.TimerEvent;
+import com.biglybt.core.util.TimerEventPerformer;
+
+/**
+ * Non-blocking SOCKS5 client used to get a SocketChannel through to the target. The handshake
+ * is driven by the relay engine so a pending connect (which can take many seconds while Tor builds
+ * a circuit) costs a registration rather than a thread.
+ */
+
+public class
+TorPluginSOCKSClient
+	implements TorPluginRelayEngine.Handler
+{
+	private static final int	SOCKS_VERSION		= 5;
+	
+	private static final int	METHOD_NONE			= 0x00;
+	private static final int	METHOD_USER_PASS	= 0x02;
+	private static final int	METHOD_REJECTED		= 0xff;
+	
+	private static final int	CMD_CONNECT			= 0x01;
+	
+	private static final int	ATYP_IPV4			= 0x01;
+	private static final int	ATYP_DOMAIN			= 0x03;
+	private static final int	ATYP_IPV6			= 0x04;
+	
+	private static final int	ST_CONNECTING		= 0;
+	private static final int	ST_METHOD			= 1;
+	private static final int	ST_AUTH				= 2;
+	private static final int	ST_REPLY			= 3;
+	private static final int	ST_REPLY_ADDRESS	= 4;
+	private static final int	ST_DONE				= 5;
+	private static final int	ST_FAILED			= 6;
+	
+	private static final String[]	STATE_NAMES = { "connecting", "method", "auth", "reply", "reply address", "done", "failed" };
+	
+	private static final AtomicInteger	pending_count = new AtomicInteger();
+		
+		/**
+		 * Starts a connect through the SOCKS server at 'proxy_address'. The listener is informed of the
+		 * outcome exactly once, on the relay engine's select thread unless setup fails immediately in
+		 * which case an exception is thrown and the listener isn't called
+		 */
+	
+	public static TorPluginSOCKSClient
+	connect(
+		TorPluginRelayEngine	engine,
+		SocketAddress			proxy_address,
+		String					host,
+		int						port,
+		String					username,
+		String					password,
+		int						timeout,
+		Listener				listener )
+		
+		throws IOException
+	{
+		return( connect( engine, null, proxy_address, host, port, username, password, timeout, false, listener ));
+	}
+		
+		/**
+		 * As above but takes a pre-negotiated connection from 'pool' (may be null) if one is available.
+		 * If 'optimistic' the listener is told of the connection as soon as the CONNECT request has been
+		 * sent, see ReplyReader
+		 */
+	
+	public static TorPluginSOCKSClient
+	connect(
+		TorPluginRelayEngine	engine,
+		TorPluginSOCKSPool		pool,
+		SocketAddress			proxy_address,
+		String					host,
+		int						port,
+		String					username,
+		String					password,
+		int						timeout,
+		boolean					optimistic,
+		Listener				listener )
+		
+		throws IOException
+	{
+		TorPluginSOCKSClient client = new TorPluginSOCKSClient( host, port, username, password, listener );
+		
+		client.optimistic = optimistic;
+		
+		TorPluginSOCKSPool.Connection pooled = pool==null?null:pool.acquire( proxy_address, username, password );
+		
+		client.start( engine, proxy_address, pooled, timeout );
+		
+		return( client );
+	}
+		
+		/**
+		 * Runs the greeting and authentication only, the listener gets a connection that is ready for
+		 * a CONNECT request. Used to warm up the SOCKS pool
+		 */
+	
+	public static TorPluginSOCKSClient
+	negotiate(
+		TorPluginRelayEngine	engine,
+		SocketAddress			proxy_address,
+		String					username,
+		String					password,
+		int						timeout,
+		Listener				listener )
+		
+		throws IOException
+	{
+		TorPluginSOCKSClient client = new TorPluginSOCKSClient( null, 0, username, password, listener );
+		
+		client.start( engine, proxy_address, null, timeout );
+		
+		return( client );
+	}
+	
+	public static int
+	getPendingCount()
+	{
+		return( pending_count.get());
+	}
+	
+	private final String		host;
+	private final int			port;
+	private final String		username;
+	private final String		password;
+	private final Listener		listener;
+	
+	private TorPluginRelayEngine	engine;
+	private SocketAddress			proxy_address;
+	
+	private SocketChannel		channel;
+	
+	private TorPluginRelayEngine.Registration	registration;
+	
+	private TimerEvent			timeout_event;
+	
+	private int					state	= ST_CONNECTING;
+	
+	private ByteBuffer			out_buffer;
+	private ByteBuffer			in_buffer;
+	
+	private boolean				optimistic;
+	private boolean				pooled;
+	private boolean				cancelled;
+	
+	private
+	TorPluginSOCKSClient(
+		String		_host,
+		int			_port,
+		String		_username,
+		String		_password,
+		Listener	_listener )
+	{
+		host		= _host;
+		port		= _port;
+		username	= _username;
+		password	= _password;
+		listener	= _listener;
+	}
+	
+	private void
+	start(
+		TorPluginRelayEngine			_engine,
+		SocketAddress					_proxy_address,
+		TorPluginSOCKSPool.Connection	pooled_connection,
+		int								timeout )
+		
+		throws IOException
+	{
+		engine			= _engine;
+		proxy_address	= _proxy_address;
+		
+		pending_count.incrementAndGet();
+		
+		try{
+			timeout_event = 
+				SimpleTimer.addEvent(
+					"TorSOCKSClient:timeout",
+					SystemTime.getOffsetTime( timeout ),
+					new TimerEventPerformer()
+					{
+						@Override
+						public void
+						perform(
+							TimerEvent event )
+						{
+							failed( new SocketTimeoutException( "SOCKS: timeout in state '" + getStateName() + "'" ));
+						}
+					});
+			
+			if ( pooled_connection != null ){
+				
+				synchronized( this ){
+					
+					channel			= pooled_connection.getChannel();
+					registration	= pooled_connection.getRegistration();
+					
+					pooled	= true;
+					
+					state	= ST_REPLY;
+						
+						// drop the pool's OP_READ interest before taking over so we don't get its read
+						// events, a read already selected is handled in process()
+					
+					registration.setInterest( 0 );
+					
+					registration.setHandler( this );
+					
+					send( getConnectRequest( host, port ));
+				}
+			}else{
+				
+				open();
+			}
+		}catch( IOException e ){
+			
+			synchronized( this ){
+				
+				state = ST_FAILED;
+			}
+			
+			abandon();
+			
+			complete();
+			
+			throw( e );
+		}
+	}
+	
+	private void
+	open()
+		
+		throws IOException
+	{
+		synchronized( this ){
+			
+			if ( state >= ST_DONE ){
+				
+				throw( new IOException( "SOCKS: connect abandoned" ));
+			}
+			
+			channel = TorPluginUnixSockets.openChannel( proxy_address );
+			
+			registration = engine.register( channel, this );
+			
+			state = ST_CONNECTING;
+				
+				// queue the greeting now, it goes out as soon as the connect completes
+			
+			out_buffer	= ByteBuffer.wrap( getGreeting( username, password ));
+			in_buffer	= null;
+			
+			if ( channel.connect( proxy_address )){
+				
+				state = ST_METHOD;
+				
+				registration.setInterest( SelectionKey.OP_WRITE );
+			
+			}else{
+				
+				registration.setInterest( SelectionKey.OP_CONNECT );
+			}
+		}
+	}
+	
+	public String
+	getStateName()
+	{
+		synchronized( this ){
+			
+			return( STATE_NAMES[state] );
+		}
+	}
+		
+		/**
+		 * Abandons the connect (if still in progress), the listener is informed of failure
+		 */
+	
+	public void
+	cancel()
+	{
+		synchronized( this ){
+			
+			cancelled = true;
+		}
+		
+		failed( new IOException( "SOCKS: connect cancelled" ));
+	}
+	
+	@Override
+	public void
+	selected(
+		int		ready_ops )
+		
+		throws IOException
+	{
+		synchronized( this ){
+			
+			if ( state >= ST_DONE ){
+				
+				return;
+			}
+			
+			if ( !process( ready_ops )){
+				
+				return;
+			}
+			
+			state = ST_DONE;
+			
+			registration.setInterest( 0 );
+		}
+		
+		complete();
+		
+		listener.connected( channel, registration );
+	}
+		
+		/**
+		 * Called with the lock held
+		 * @return true when the handshake is complete
+		 */
+	
+	private boolean
+	process(
+		int		ready_ops )
+		
+		throws IOException
+	{
+		if (( ready_ops & SelectionKey.OP_CONNECT ) != 0 ){
+			
+			if ( !channel.finishConnect()){
+				
+				return( false );
+			}
+			
+			state = ST_METHOD;
+			
+			registration.setInterest( SelectionKey.OP_WRITE );
+			
+			return( false );
+		}
+		
+		if (( ready_ops & SelectionKey.OP_WRITE ) != 0 ){
+			
+			channel.write( out_buffer );
+			
+			if ( !out_buffer.hasRemaining()){
+				
+				out_buffer = null;
+				
+				if ( state == ST_REPLY && optimistic ){
+						
+						// optimistic data: hand over as soon as the CONNECT has gone, the new owner sends
+						// its data straight after it and reads the reply (see ReplyReader) ahead of the response
+					
+					return( true );
+				}
+					
+					// every request we send gets a reply before we send the next one
+				
+				in_buffer = ByteBuffer.allocate( state==ST_REPLY?5:2 );
+				
+				registration.setInterest( SelectionKey.OP_READ );
+			}
+			
+			return( false );
+		}
+		
+		if (( ready_ops & SelectionKey.OP_READ ) == 0 ){
+			
+			return( false );
+		}
+		
+		if ( in_buffer == null ){
+				
+				// read event selected for the pool before the handover, most likely Tor closed the idle
+				// connection. Any data before our request's reply also means it's unusable
+			
+			int	len = channel.read( ByteBuffer.allocate( 1 ));
+			
+			if ( len < 0 ){
+				
+				throw( new EOFException( "SOCKS: unexpected end of stream" ));
+			}
+			
+			if ( len > 0 ){
+				
+				throw( new IOException( "SOCKS: unexpected data on pooled connection" ));
+			}
+			
+			return( false );
+		}
+		
+		int	len = channel.read( in_buffer );
+		
+		if ( len < 0 ){
+			
+			throw( new EOFException( "SOCKS: unexpected end of stream" ));
+		}
+		
+		if ( in_buffer.hasRemaining()){
+			
+			return( false );
+		}
+		
+		byte[]	reply = in_buffer.array();
+		
+		in_buffer = null;
+		
+		if ( state == ST_METHOD ){
+			
+			if ( checkMethodReply( reply ) == METHOD_USER_PASS ){
+				
+				state = ST_AUTH;
+				
+				send( getAuthRequest( username, password ));
+			
+			}else if ( host == null ){
+				
+				state = ST_DONE;
+			
+			}else{
+				
+				state = ST_REPLY;
+				
+				send( getConnectRequest( host, port ));
+			}
+		}else if ( state == ST_AUTH ){
+			
+			checkAuthReply( reply );
+			
+			if ( host == null ){
+				
+				state = ST_DONE;
+			
+			}else{
+				
+				state = ST_REPLY;
+				
+				send( getConnectRequest( host, port ));
+			}
+		
+		}else if ( state == ST_REPLY ){
+			
+			state = ST_REPLY_ADDRESS;
+			
+			in_buffer = ByteBuffer.allocate( getConnectReplyRemaining( reply ));
+		
+		}else{
+			
+			state = ST_DONE;
+		}
+		
+		return( state == ST_DONE );
+	}
+	
+	private void
+	send(
+		byte[]		data )
+	{
+		out_buffer = ByteBuffer.wrap( data );
+		
+		registration.setInterest( SelectionKey.OP_WRITE );
+	}
+	
+	private void
+	complete()
+	{
+		if ( timeout_event != null ){
+			
+			timeout_event.cancel();
+		}
+		
+		pending_count.decrementAndGet();
+	}
+	
+	@Override
+	public void
+	failed(
+		Throwable	error )
+	{
+		boolean	retry;
+		
+		synchronized( this ){
+			
+			if ( state >= ST_DONE ){
+				
+				return;
+			}
+				
+				// a pooled connection may have been closed by Tor while idle, if it failed before we got
+				// any reply then the request never got anywhere so try once more on a fresh connection
+			
+			retry = 	pooled && !cancelled &&
+						state == ST_REPLY && ( in_buffer == null || in_buffer.position() == 0 ) &&
+						!( error instanceof SocketTimeoutException );
+			
+			pooled = false;
+			
+			if ( !retry ){
+				
+				state = ST_FAILED;
+			}
+		}
+		
+		if ( retry ){
+			
+			abandon();
+			
+			try{
+				open();
+				
+				return;
+			
+			}catch( IOException e ){
+				
+				error = e;
+				
+				synchronized( this ){
+					
+					if ( state >= ST_DONE ){
+						
+						return;
+					}
+					
+					state = ST_FAILED;
+				}
+			}
+		}
+		
+		abandon();
+		
+		complete();
+		
+		try{
+			listener.failed( error );
+		
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+		}
+	}
+	
+	private void
+	abandon()
+	{
+		if ( registration != null ){
+			
+			registration.cancel();
+		}
+		
+		try{
+			channel.close();
+		
+		}catch( Throwable e ){
+		}
+	}
+	
+	public interface
+	Listener
+	{
+			/**
+			 * Handshake complete. The registration has no interest set and must be taken over (setHandler)
+			 * or cancelled by the listener. For an optimistic connect the CONNECT reply is still to come
+			 */
+		
+		public void
+		connected(
+			SocketChannel						channel,
+			TorPluginRelayEngine.Registration	registration );
+		
+		public void
+		failed(
+			Throwable	error );
+	}
+		
+		/**
+		 * For optimistic connects: consumes the CONNECT reply that precedes the target's data. Reads
+		 * exactly the reply and nothing more
+		 */
+	
+	public static class
+	ReplyReader
+	{
+		private ByteBuffer		buffer	= ByteBuffer.allocate( 5 );
+		
+		private boolean			header_done;
+			
+			/**
+			 * @return true once the whole reply has been read, an exception if the connect failed
+			 */
+		
+		public boolean
+		read(
+			SocketChannel		channel )
+			
+			throws IOException
+		{
+			while( true ){
+				
+				if ( channel.read( buffer ) < 0 ){
+					
+					throw( new EOFException( "SOCKS: end of stream before connect reply" ));
+				}
+				
+				if ( buffer.hasRemaining()){
+					
+					return( false );
+				}
+				
+				if ( header_done ){
+					
+					return( true );
+				}
+				
+				header_done = true;
+				
+				buffer = ByteBuffer.allocate( getConnectReplyRemaining( buffer.array()));
+			}
+		}
+	}
+	
+	protected static byte[]
+	getGreeting(
+		String		username,
+		String		password )
+	{
+		if ( username != null && password != null ){
+				
+				// Tor picks username/password when offered, this is what drives stream isolation
+			
+			return( new byte[]{ SOCKS_VERSION, 2, METHOD_NONE, METHOD_USER_PASS });
+		
+		}else{
+			
+			return( new byte[]{ SOCKS_VERSION, 1, METHOD_NONE });
+		}
+	}
+	
+	protected static int
+	checkMethodReply(
+		byte[]		reply )
+		
+		throws IOException
+	{
+		if ( reply[0] != SOCKS_VERSION ){
+			
+			throw( new IOException( "SOCKS: invalid version in method reply: " + reply[0] ));
+		}
+		
+		int method = reply[1]&0xff;
+		
+		if ( method == METHOD_REJECTED ){
+			
+			throw( new IOException( "SOCKS: no acceptable authentication method" ));
+		}
+		
+		if ( method != METHOD_NONE && method != METHOD_USER_PASS ){
+			
+			throw( new IOException( "SOCKS: unsupported authentication method: " + method ));
+		}
+		
+		return( method );
+	}
+	
+	protected static byte[]
+	getAuthRequest(
+		String		username,
+		String		password )
+		
+		throws IOException
+	{
+		if ( username == null || password == null ){
+			
+			throw( new IOException( "SOCKS: server requested authentication but none available" ));
+		}
+		
+		byte[]	user_bytes 	= username.getBytes( Constants.BYTE_ENCODING_CHARSET );
+		byte[]	pw_bytes 	= password.getBytes( Constants.BYTE_ENCODING_CHARSET );
+		
+		if ( user_bytes.length > 255 || pw_bytes.length > 255 ){
+			
+			throw( new IOException( "SOCKS: username/password too long" ));
+		}
+		
+		byte[]	request = new byte[ 3 + user_bytes.length + pw_bytes.length ];
+		
+		int	pos = 0;
+		
+		request[pos++] = 1;
+		request[pos++] = (byte)user_bytes.length;
+		
+		System.arraycopy( user_bytes, 0, request, pos, user_bytes.length );
+		
+		pos += user_bytes.length;
+		
+		request[pos++] = (byte)pw_bytes.length;
+		
+		System.arraycopy( pw_bytes, 0, request, pos, pw_bytes.length );
+		
+		return( request );
+	}
+	
+	protected static void
+	checkAuthReply(
+		byte[]		reply )
+		
+		throws IOException
+	{
+		if ( reply[1] != 0 ){
+			
+			throw( new IOException( "SOCKS: authentication failed (" + (reply[1]&0xff) + ")" ));
+		}
+	}
+	
+	protected static byte[]
+	getConnectRequest(
+		String		host,
+		int			port )
+		
+		throws IOException
+	{
+		byte[]	host_bytes = host.getBytes( Constants.BYTE_ENCODING_CHARSET );
+		
+		if ( host_bytes.length > 255 ){
+			
+			throw( new IOException( "SOCKS: host name too long" ));
+		}
+		
+		byte[]	request = new byte[ 7 + host_bytes.length ];
+		
+		int	pos = 0;
+		
+		request[pos++] = SOCKS_VERSION;
+		request[pos++] = CMD_CONNECT;
+		request[pos++] = 0;
+		request[pos++] = ATYP_DOMAIN;
+		request[pos++] = (byte)host_bytes.length;
+		
+		System.arraycopy( host_bytes, 0, request, pos, host_bytes.length );
+		
+		pos += host_bytes.length;
+		
+		request[pos++] = (byte)( port >> 8 );
+		request[pos++] = (byte)port;
+		
+		return( request );
+	}
+		
+		/**
+		 * @param reply first 5 bytes of the connect reply
+		 * @return number of bytes of the reply still to be read
+		 */
+	
+	protected static int
+	getConnectReplyRemaining(
+		byte[]		reply )
+		
+		throws IOException
+	{
+		if ( reply[0] != SOCKS_VERSION ){
+			
+			throw( new IOException( "SOCKS: invalid version in connect reply: " + reply[0] ));
+		}
+		
+		int	status = reply[1]&0xff;
+		
+		if ( status != 0 ){
+			
+			throw( new IOException( "SOCKS: connect failed - " + getReplyText( status )));
+		}
+		
+		int	atyp = reply[3]&0xff;
+			
+			// address followed by a 2 byte port, we've already consumed the first byte of the address
+		
+		if ( atyp == ATYP_IPV4 ){
+			
+			return( 4 - 1 + 2 );
+		
+		}else if ( atyp == ATYP_DOMAIN ){
+			
+			return(( reply[4]&0xff ) + 2 );
+		
+		}else if ( atyp == ATYP_IPV6 ){
+			
+			return( 16 - 1 + 2 );
+		
+		}else{
+			
+			throw( new IOException( "SOCKS: invalid address type in connect reply: " + atyp ));
+		}
+	}
+	
+	private static final String[]	REPLY_TEXT = {
+		"succeeded",
+		"general failure",
+		"connection not allowed",
+		"network unreachable",
+		"host unreachable",
+		"connection refused",
+		"TTL expired",
+		"command not supported",
+		"address type not supported",
+	};
+		
+		// Tor extended errors for onion services
+	
+	private static final String[]	ONION_REPLY_TEXT = {
+		"onion service descriptor not found",
+		"onion service descriptor invalid",
+		"onion service introduction failed",
+		"onion service rendezvous failed",
+		"onion service missing client authorization",
+		"onion service wrong client authorization",
+		"onion service invalid address",
+		"onion service introduction timed out",
+	};
+	
+	protected static String
+	getReplyText(
+		int		status )
+	{
+		if ( status < REPLY_TEXT.length ){
+			
+			return( REPLY_TEXT[status] );
+		
+		}else if ( status >= 0xf0 && status - 0xf0 < ONION_REPLY_TEXT.length ){
+			
+			return( ONION_REPLY_TEXT[ status - 0xf0 ] );
+		
+		}else{
+			
+			return( "error " + status );
+		}
+	}
+}
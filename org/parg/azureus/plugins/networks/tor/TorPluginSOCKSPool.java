@@ -0,0 +1,647 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.core.util.SimpleTimer;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.TimerEvent;
+import com.biglybt.core.util.TimerEventPerformer;
+import com.biglybt.core.util.TimerEventPeriodic;
+
+/**
+ * Warm connections to the local Tor SOCKS port that have already been through the greeting and
+ * authentication exchange, so a connect only needs to send the CONNECT request. Connections are
+ * pooled per isolation credential (username/password) as Tor won't let a stream change its
+ * isolation once negotiated.
+ *
+ * The number kept warm for a credential follows its recent connect rate and drops to nothing
+ * when it is no longer used. Credentials that are only used once are never warmed.
+ */
+
+public class
+TorPluginSOCKSPool
+{
+	private static final int	MAX_KEYS			= 16;
+	private static final int	MAX_IDLE_PER_KEY	= 4;
+		
+		// a credential only gets a pool once it is used again within REPEAT_WINDOW, per-caller or
+		// per-host isolation produces lots that are used once and warming those would just double
+		// the SOCKS connections (and evict the pools that are worth keeping)
+	
+	private static final int	MAX_SEEN_KEYS		= 256;
+	private static final long	REPEAT_WINDOW		= 60*1000;
+		
+		// Tor closes SOCKS connections that don't get as far as a request within SocksTimeout
+		// (2 minutes by default) so stay well inside that
+	
+	private static final long	MAX_IDLE_AGE		= 60*1000;
+	
+	private static final int	TICK_PERIOD			= 5*1000;
+	
+	private static final int	NEGOTIATE_TIMEOUT	= 30*1000;
+	
+	private final TorPluginRelayEngine		engine;
+	
+	@SuppressWarnings( "serial" )
+	private final Map<String,KeyPool>	pools =
+		new LinkedHashMap<String,KeyPool>(MAX_KEYS,0.75f,true)
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<String,KeyPool> eldest)
+			{
+				if ( size() > MAX_KEYS ){
+					
+					eldest.getValue().destroy();
+					
+					return( true );
+				}
+				
+				return( false );
+			}
+		};
+	
+	@SuppressWarnings( "serial" )
+	private final Map<String,Long>	seen_keys =
+		new LinkedHashMap<String,Long>(MAX_SEEN_KEYS,0.75f,true)
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<String,Long> eldest)
+			{
+				return( size() > MAX_SEEN_KEYS );
+			}
+		};
+	
+	private TimerEventPeriodic	tick_timer;
+	
+	private boolean		destroyed;
+	
+	private long		hits;
+	private long		misses;
+	private long		stale;
+	private long		negotiate_fails;
+	
+	public
+	TorPluginSOCKSPool(
+		TorPluginRelayEngine		_engine )
+	{
+		engine	= _engine;
+	}
+		
+		/**
+		 * @return a connection that is ready for a CONNECT request, or null if none is available (in
+		 * which case the caller should connect afresh). Either way the demand is noted so the pool
+		 * warms up for next time
+		 */
+	
+	public Connection
+	acquire(
+		SocketAddress		proxy_address,
+		String				username,
+		String				password )
+	{
+		String	key = getKey( proxy_address, username, password );
+		
+		Connection	result;
+		
+		KeyPool		pool;
+		
+		synchronized( this ){
+			
+			if ( destroyed ){
+				
+				return( null );
+			}
+			
+			pool = pools.get( key );
+			
+			if ( pool == null ){
+				
+				long	now = SystemTime.getMonotonousTime();
+				
+				Long	last_seen = seen_keys.remove( key );
+				
+				if ( last_seen == null || now - last_seen > REPEAT_WINDOW ){
+					
+					seen_keys.put( key, now );
+					
+					misses++;
+					
+					return( null );
+				}
+				
+				pool = new KeyPool( proxy_address, username, password );
+				
+				pools.put( key, pool );
+				
+				if ( tick_timer == null ){
+					
+					tick_timer =
+						SimpleTimer.addPeriodicEvent(
+							"TorSOCKSPool",
+							TICK_PERIOD,
+							new TimerEventPerformer()
+							{
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									tick();
+								}
+							});
+				}
+			}
+			
+			pool.demand++;
+			
+			result = pool.take();
+			
+			if ( result == null ){
+				
+				misses++;
+			
+			}else{
+				
+				hits++;
+			}
+		}
+		
+		pool.refill();
+		
+		return( result );
+	}
+	
+	private static String
+	getKey(
+		SocketAddress		proxy_address,
+		String				username,
+		String				password )
+	{
+		return( proxy_address + "\n" + username + "\n" + password );
+	}
+	
+	private void
+	tick()
+	{
+		List<KeyPool>	to_refill = new ArrayList<KeyPool>();
+		
+		synchronized( this ){
+			
+			long	now = SystemTime.getMonotonousTime();
+			
+			Iterator<KeyPool> it = pools.values().iterator();
+			
+			while( it.hasNext()){
+				
+				KeyPool pool = it.next();
+				
+				pool.expire( now );
+					
+					// connects per tick, smoothed
+				
+				pool.rate = ( pool.rate*3 + pool.demand ) / 4;
+				
+				pool.demand = 0;
+				
+				if ( pool.rate < 0.1 && pool.negotiating == 0 ){
+					
+					pool.destroy();
+					
+					it.remove();
+				
+				}else{
+					
+					to_refill.add( pool );
+				}
+			}
+			
+			if ( pools.isEmpty() && tick_timer != null ){
+				
+				tick_timer.cancel();
+				
+				tick_timer = null;
+			}
+		}
+		
+		for ( KeyPool pool: to_refill ){
+			
+			pool.refill();
+		}
+	}
+	
+	public int
+	getIdleCount()
+	{
+		synchronized( this ){
+			
+			int	total = 0;
+			
+			for ( KeyPool pool: pools.values()){
+				
+				total += pool.idle.size();
+			}
+			
+			return( total );
+		}
+	}
+	
+	public boolean
+	hasActivity()
+	{
+		synchronized( this ){
+			
+			return( hits + misses > 0 );
+		}
+	}
+	
+	public String
+	getString()
+	{
+		synchronized( this ){
+			
+			long	total = hits + misses;
+			
+			return( "keys=" + pools.size() + ", idle=" + getIdleCount() +
+					", hits=" + hits + ", misses=" + misses + (total==0?"":( " (" + ( hits*100/total ) + "%)" )) +
+					", stale=" + stale + ", fails=" + negotiate_fails );
+		}
+	}
+	
+	public void
+	destroy()
+	{
+		synchronized( this ){
+			
+			destroyed = true;
+			
+			for ( KeyPool pool: pools.values()){
+				
+				pool.destroy();
+			}
+			
+			pools.clear();
+			
+			seen_keys.clear();
+			
+			if ( tick_timer != null ){
+				
+				tick_timer.cancel();
+				
+				tick_timer = null;
+			}
+		}
+	}
+	
+	private class
+	KeyPool
+	{
+		private final SocketAddress			proxy_address;
+		private final String				username;
+		private final String				password;
+		
+		private final LinkedList<Connection>	idle = new LinkedList<Connection>();
+		
+		private int			negotiating;
+		private int			demand;
+		private double		rate;
+		
+		private boolean		dead;
+		
+		private
+		KeyPool(
+			SocketAddress		_proxy_address,
+			String				_username,
+			String				_password )
+		{
+			proxy_address	= _proxy_address;
+			username		= _username;
+			password		= _password;
+		}
+			
+			/**
+			 * pool lock held
+			 */
+		
+		private Connection
+		take()
+		{
+			while( !idle.isEmpty()){
+					
+					// newest first, it has the most life left in it
+				
+				Connection con = idle.removeLast();
+				
+				if ( con.claim()){
+					
+					return( con );
+				}
+			}
+			
+			return( null );
+		}
+			
+			/**
+			 * pool lock held
+			 */
+		
+		private void
+		expire(
+			long		now )
+		{
+			Iterator<Connection> it = idle.iterator();
+			
+			while( it.hasNext()){
+				
+				Connection con = it.next();
+				
+				if ( now - con.idle_since > MAX_IDLE_AGE ){
+					
+					it.remove();
+					
+					if ( con.claim()){
+						
+						con.close();
+					}
+				}
+			}
+		}
+		
+		private void
+		refill()
+		{
+			int	required;
+			
+			synchronized( TorPluginSOCKSPool.this ){
+				
+				if ( dead || destroyed ){
+					
+					return;
+				}
+				
+				int	target = (int)Math.ceil( rate );
+				
+				if ( demand > 0 ){
+					
+					target = Math.max( target, 1 );
+				}
+				
+				target = Math.min( target, MAX_IDLE_PER_KEY );
+				
+				required = target - ( idle.size() + negotiating );
+				
+				if ( required <= 0 ){
+					
+					return;
+				}
+				
+				negotiating += required;
+			}
+			
+			for ( int i=0;i<required;i++){
+				
+				try{
+					TorPluginSOCKSClient.negotiate(
+						engine,
+						proxy_address,
+						username,
+						password,
+						NEGOTIATE_TIMEOUT,
+						new TorPluginSOCKSClient.Listener()
+						{
+							@Override
+							public void
+							connected(
+								SocketChannel						channel,
+								TorPluginRelayEngine.Registration	registration )
+							{
+								Connection con = new Connection( KeyPool.this, channel, registration );
+									
+									// watch for Tor closing it while it sits idle. This has to be set up before
+									// it goes into the pool as the interest is the new owner's once taken
+								
+								registration.setHandler( con );
+								
+								registration.setInterest( SelectionKey.OP_READ );
+								
+								boolean	added = false;
+								
+								synchronized( TorPluginSOCKSPool.this ){
+									
+									negotiating--;
+									
+									if ( !( dead || destroyed || con.isClaimed())){
+										
+										idle.add( con );
+										
+										added = true;
+									}
+								}
+								
+								if ( !added ){
+									
+									con.close();
+								}
+							}
+							
+							@Override
+							public void
+							failed(
+								Throwable	error )
+							{
+								synchronized( TorPluginSOCKSPool.this ){
+									
+									negotiating--;
+									
+									negotiate_fails++;
+								}
+							}
+						});
+				
+				}catch( IOException e ){
+					
+					synchronized( TorPluginSOCKSPool.this ){
+						
+						negotiating--;
+						
+						negotiate_fails++;
+					}
+				}
+			}
+		}
+			
+			/**
+			 * pool lock held
+			 */
+		
+		private void
+		remove(
+			Connection	con )
+		{
+			if ( idle.remove( con )){
+				
+				stale++;
+			}
+		}
+			
+			/**
+			 * pool lock held
+			 */
+		
+		private void
+		destroy()
+		{
+			dead = true;
+			
+			for ( Connection con: idle ){
+				
+				if ( con.claim()){
+					
+					con.close();
+				}
+			}
+			
+			idle.clear();
+		}
+	}
+	
+	public class
+	Connection
+		implements TorPluginRelayEngine.Handler
+	{
+		private final KeyPool								pool;
+		private final SocketChannel							channel;
+		private final TorPluginRelayEngine.Registration		registration;
+		
+		private final long		idle_since	= SystemTime.getMonotonousTime();
+		
+		private boolean			claimed;
+		
+		private
+		Connection(
+			KeyPool								_pool,
+			SocketChannel						_channel,
+			TorPluginRelayEngine.Registration	_registration )
+		{
+			pool			= _pool;
+			channel			= _channel;
+			registration	= _registration;
+		}
+		
+		public SocketChannel
+		getChannel()
+		{
+			return( channel );
+		}
+			
+			/**
+			 * The registration still has the pool's idle handler and OP_READ interest set, the new
+			 * owner must setHandler() before changing the interest
+			 */
+		
+		public TorPluginRelayEngine.Registration
+		getRegistration()
+		{
+			return( registration );
+		}
+		
+		private boolean
+		claim()
+		{
+			synchronized( this ){
+				
+				if ( claimed ){
+					
+					return( false );
+				}
+				
+				claimed = true;
+				
+				return( true );
+			}
+		}
+		
+		private boolean
+		isClaimed()
+		{
+			synchronized( this ){
+				
+				return( claimed );
+			}
+		}
+		
+		@Override
+		public void
+		selected(
+			int		ready_ops )
+		{
+				// nothing should arrive on an idle connection, data or EOF both mean it's unusable
+			
+			failed( null );
+		}
+		
+		@Override
+		public void
+		failed(
+			Throwable	error )
+		{
+			if ( !claim()){
+				
+				return;
+			}
+			
+			synchronized( TorPluginSOCKSPool.this ){
+				
+				pool.remove( this );
+			}
+			
+			close();
+		}
+		
+		private void
+		close()
+		{
+			registration.cancel();
+			
+			try{
+				channel.close();
+			
+			}catch( Throwable e ){
+			}
+		}
+	}
+}
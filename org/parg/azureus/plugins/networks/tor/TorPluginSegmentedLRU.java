@@ -0,0 +1,171 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded LRU map split into independently locked segments by key hash, so concurrent lookups
+ * of different keys rarely contend and the reordering an access-ordered map does on every get
+ * only locks one segment. Recency is per segment, which approximates a global LRU closely enough
+ * for caches and history
+ */
+
+public class
+TorPluginSegmentedLRU<K,V>
+{
+	public interface
+	Factory<K,V>
+	{
+		public V
+		create(
+			K		key );
+	}
+	
+	private final Segment<K,V>[]	segments;
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public
+	TorPluginSegmentedLRU(
+		int		capacity,
+		int		segment_count )
+	{
+		segments = new Segment[ segment_count ];
+		
+		int	segment_capacity = Math.max( 1, capacity / segment_count );
+		
+		for ( int i=0;i<segment_count;i++){
+			
+			segments[i] = new Segment<K,V>( segment_capacity );
+		}
+	}
+	
+	private Segment<K,V>
+	getSegment(
+		K		key )
+	{
+		int	h = key.hashCode();
+		
+		h ^= ( h >>> 16 );
+		
+		return( segments[ ( h & 0x7fffffff ) % segments.length ]);
+	}
+	
+	public V
+	get(
+		K		key )
+	{
+		Segment<K,V>	segment = getSegment( key );
+		
+		synchronized( segment ){
+			
+			return( segment.get( key ));
+		}
+	}
+	
+	public V
+	getOrCreate(
+		K				key,
+		Factory<K,V>	factory )
+	{
+		Segment<K,V>	segment = getSegment( key );
+		
+		synchronized( segment ){
+			
+			V	value = segment.get( key );
+			
+			if ( value == null ){
+				
+				value = factory.create( key );
+				
+				segment.put( key, value );
+			}
+			
+			return( value );
+		}
+	}
+	
+	public int
+	size()
+	{
+		int	total = 0;
+		
+		for ( Segment<K,V> segment: segments ){
+			
+			synchronized( segment ){
+				
+				total += segment.size();
+			}
+		}
+		
+		return( total );
+	}
+		
+		/**
+		 * @return a copy, each segment is locked in turn so it isn't a consistent snapshot of the whole
+		 */
+	
+	public List<V>
+	values()
+	{
+		List<V>	result = new ArrayList<V>();
+		
+		for ( Segment<K,V> segment: segments ){
+			
+			synchronized( segment ){
+				
+				result.addAll( segment.values());
+			}
+		}
+		
+		return( result );
+	}
+	
+	@SuppressWarnings( "serial" )
+	private static class
+	Segment<K,V>
+		extends LinkedHashMap<K,V>
+	{
+		private final int	capacity;
+		
+		private
+		Segment(
+			int		_capacity )
+		{
+			super( _capacity, 0.75f, true );
+			
+			capacity	= _capacity;
+		}
+		
+		@Override
+		protected boolean
+		removeEldestEntry(
+	   		Map.Entry<K,V> eldest)
+		{
+			return( size() > capacity );
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.biglybt.core.util.DisplayFormatters;
+import com.biglybt.core.util.SystemTime;
+
+/**
+ * Byte and timing accounting for a single relayed stream. Times are monotonous millis,
+ * 'in' is data from Tor to the client, 'out' is data from the client to Tor.
+ */
+
+public class
+TorPluginStreamStats
+{
+	private final String		host;
+	private final int			traffic_class;
+	
+	private final long			start_time	= SystemTime.getMonotonousTime();
+	
+	private volatile long		connect_time;
+	private volatile long		first_byte_time;
+	private volatile long		close_time;
+	private volatile long		last_activity_time	= start_time;
+	
+	private final AtomicLong	bytes_in	= new AtomicLong();
+	private final AtomicLong	bytes_out	= new AtomicLong();
+	
+	private final AtomicBoolean	recorded	= new AtomicBoolean();
+	
+	public
+	TorPluginStreamStats(
+		String		_host,
+		int			_traffic_class )
+	{
+		host			= _host;
+		traffic_class	= _traffic_class;
+	}
+	
+	public String
+	getHost()
+	{
+		return( host );
+	}
+		
+		/**
+		 * @return one of the TorPluginRateLimiter.TC_ constants
+		 */
+	
+	public int
+	getTrafficClass()
+	{
+		return( traffic_class );
+	}
+	
+	public void
+	connected()
+	{
+		connect_time = SystemTime.getMonotonousTime();
+		
+		last_activity_time = connect_time;
+	}
+	
+	public void
+	bytesIn(
+		int		num )
+	{
+		long	now = SystemTime.getMonotonousTime();
+		
+		if ( first_byte_time == 0 ){
+			
+			first_byte_time = now;
+		}
+		
+		last_activity_time = now;
+		
+		bytes_in.addAndGet( num );
+	}
+	
+	public void
+	bytesOut(
+		int		num )
+	{
+		last_activity_time = SystemTime.getMonotonousTime();
+		
+		bytes_out.addAndGet( num );
+	}
+		
+		/**
+		 * @return true the first time it is called so the caller can record the stream exactly once
+		 */
+	
+	public boolean
+	closed()
+	{
+		if ( recorded.compareAndSet( false, true )){
+			
+			close_time = SystemTime.getMonotonousTime();
+			
+			return( true );
+		}
+		
+		return( false );
+	}
+	
+	public boolean
+	isConnected()
+	{
+		return( connect_time != 0 );
+	}
+	
+	public long
+	getConnectLatency()
+	{
+		return( connect_time==0?-1:( connect_time - start_time ));
+	}
+	
+	public long
+	getTimeToFirstByte()
+	{
+		return( first_byte_time==0?-1:( first_byte_time - start_time ));
+	}
+	
+	public long
+	getLifetime()
+	{
+		long	end = close_time==0?SystemTime.getMonotonousTime():close_time;
+		
+		return( end - start_time );
+	}
+		
+		/**
+		 * @return millis since the stream connected or last moved data
+		 */
+	
+	public long
+	getIdleTime()
+	{
+		return( SystemTime.getMonotonousTime() - last_activity_time );
+	}
+	
+	public long
+	getBytesIn()
+	{
+		return( bytes_in.get());
+	}
+	
+	public long
+	getBytesOut()
+	{
+		return( bytes_out.get());
+	}
+		
+		/**
+		 * Totals across many streams, e.g. per destination host
+		 */
+	
+	public static class
+	Aggregate
+	{
+		private long	streams;
+		private long	connect_fails;
+		
+		private long	bytes_in;
+		private long	bytes_out;
+		
+		private long	connect_total;
+		private long	connect_count;
+		private long	connect_max;
+		
+		private long	ttfb_total;
+		private long	ttfb_count;
+		
+		private long	lifetime_total;
+		
+		public synchronized void
+		add(
+			TorPluginStreamStats	stats )
+		{
+			streams++;
+			
+			long	latency = stats.getConnectLatency();
+			
+			if ( latency < 0 ){
+				
+				connect_fails++;
+			
+			}else{
+				
+				connect_total += latency;
+				connect_count++;
+				
+				if ( latency > connect_max ){
+					
+					connect_max = latency;
+				}
+			}
+			
+			long ttfb = stats.getTimeToFirstByte();
+			
+			if ( ttfb >= 0 ){
+				
+				ttfb_total += ttfb;
+				ttfb_count++;
+			}
+			
+			bytes_in	+= stats.getBytesIn();
+			bytes_out	+= stats.getBytesOut();
+			
+			lifetime_total	+= stats.getLifetime();
+		}
+		
+		public synchronized long
+		getStreamCount()
+		{
+			return( streams );
+		}
+		
+		public synchronized long
+		getAverageConnectLatency()
+		{
+			return( connect_count==0?-1:( connect_total/connect_count ));
+		}
+		
+		public synchronized long
+		getAverageTimeToFirstByte()
+		{
+			return( ttfb_count==0?-1:( ttfb_total/ttfb_count ));
+		}
+			
+			/**
+			 * @return bytes/sec received while streams were open
+			 */
+		
+		public synchronized long
+		getThroughput()
+		{
+			return( lifetime_total==0?0:( bytes_in*1000/lifetime_total ));
+		}
+		
+		public synchronized Map<String,Object>
+		toMap()
+		{
+			Map<String,Object>	map = new HashMap<String,Object>();
+			
+			map.put( "streams", streams );
+			map.put( "connect_fails", connect_fails );
+			map.put( "bytes_in", bytes_in );
+			map.put( "bytes_out", bytes_out );
+			map.put( "connect_avg", getAverageConnectLatency());
+			map.put( "connect_max", connect_max );
+			map.put( "ttfb_avg", getAverageTimeToFirstByte());
+			map.put( "lifetime_total", lifetime_total );
+			map.put( "throughput", getThroughput());
+			
+			return( map );
+		}
+		
+		public synchronized String
+		getString()
+		{
+			return( "streams=" + streams + (connect_fails==0?"":(" (fails=" + connect_fails + ")")) +
+					", in=" + DisplayFormatters.formatByteCountToKiBEtc( bytes_in ) +
+					", out=" + DisplayFormatters.formatByteCountToKiBEtc( bytes_out ) +
+					", connect=" + getAverageConnectLatency() + "ms (max " + connect_max + "ms)" +
+					", ttfb=" + getAverageTimeToFirstByte() + "ms" +
+					", rate=" + DisplayFormatters.formatByteCountToKiBEtcPerSec( getThroughput()));
+		}
+	}
+}
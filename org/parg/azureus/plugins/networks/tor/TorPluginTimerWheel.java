@@ -0,0 +1,314 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SimpleTimer;
+import com.biglybt.core.util.TimerEvent;
+import com.biglybt.core.util.TimerEventPerformer;
+import com.biglybt.core.util.TimerEventPeriodic;
+
+/**
+ * Hashed timer wheel for expiring large numbers of items that are usually cancelled before they expire.
+ * Scheduling and cancelling are O(1), each tick only visits the items in one bucket. Expiry is accurate
+ * to a tick. The wheel has its own lock, listeners are called without it held.
+ */
+
+public class
+TorPluginTimerWheel<T>
+{
+	private final String			name;
+	private final long				tick_millis;
+	private final Timeout<T>[]		buckets;
+	private final Listener<T>		listener;
+	
+	private int		cursor;
+	private int		size;
+	
+	private TimerEventPeriodic	tick_timer;
+	
+	private boolean		destroyed;
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public
+	TorPluginTimerWheel(
+		String			_name,
+		long			_tick_millis,
+		int				_bucket_count,
+		Listener<T>		_listener )
+	{
+		name		= _name;
+		tick_millis	= _tick_millis;
+		listener	= _listener;
+		
+		buckets = new Timeout[_bucket_count];
+	}
+	
+	public Timeout<T>
+	schedule(
+		T		item,
+		long	delay )
+	{
+		long	ticks = Math.max( 1, ( delay + tick_millis - 1 ) / tick_millis );
+		
+		synchronized( this ){
+			
+			Timeout<T>	timeout = new Timeout<T>( this, item );
+			
+			if ( destroyed ){
+				
+				timeout.cancelled = true;
+				
+				return( timeout );
+			}
+			
+			timeout.rounds	= ( ticks - 1 ) / buckets.length;
+			timeout.bucket	= (int)(( cursor + ticks ) % buckets.length );
+			
+			link( timeout );
+			
+			size++;
+			
+			if ( tick_timer == null ){
+				
+				tick_timer =
+					SimpleTimer.addPeriodicEvent(
+						name,
+						tick_millis,
+						new TimerEventPerformer()
+						{
+							@Override
+							public void
+							perform(
+								TimerEvent event )
+							{
+								tick();
+							}
+						});
+			}
+			
+			return( timeout );
+		}
+	}
+	
+	public int
+	size()
+	{
+		synchronized( this ){
+			
+			return( size );
+		}
+	}
+	
+	public void
+	destroy()
+	{
+		synchronized( this ){
+			
+			destroyed = true;
+			
+			for ( int i=0;i<buckets.length;i++){
+				
+				buckets[i] = null;
+			}
+			
+			size = 0;
+			
+			if ( tick_timer != null ){
+				
+				tick_timer.cancel();
+				
+				tick_timer = null;
+			}
+		}
+	}
+	
+	private void
+	tick()
+	{
+		List<T>	expired = null;
+		
+		synchronized( this ){
+			
+			cursor = ( cursor + 1 ) % buckets.length;
+			
+			Timeout<T>	timeout = buckets[cursor];
+			
+			while( timeout != null ){
+				
+				Timeout<T>	next = timeout.next;
+				
+				if ( timeout.rounds > 0 ){
+					
+					timeout.rounds--;
+				
+				}else{
+					
+					unlink( timeout );
+					
+					timeout.cancelled = true;
+					
+					size--;
+					
+					if ( expired == null ){
+						
+						expired = new ArrayList<T>();
+					}
+					
+					expired.add( timeout.item );
+				}
+				
+				timeout = next;
+			}
+			
+			if ( size == 0 && tick_timer != null ){
+				
+				tick_timer.cancel();
+				
+				tick_timer = null;
+			}
+		}
+		
+		if ( expired != null ){
+			
+			for ( T item: expired ){
+				
+				try{
+					listener.expired( item );
+				
+				}catch( Throwable e ){
+					
+					Debug.out( e );
+				}
+			}
+		}
+	}
+		
+		/**
+		 * wheel lock held
+		 */
+	
+	private void
+	link(
+		Timeout<T>	timeout )
+	{
+		Timeout<T>	head = buckets[timeout.bucket];
+		
+		timeout.next = head;
+		
+		if ( head != null ){
+			
+			head.prev = timeout;
+		}
+		
+		buckets[timeout.bucket] = timeout;
+	}
+		
+		/**
+		 * wheel lock held
+		 */
+	
+	private void
+	unlink(
+		Timeout<T>	timeout )
+	{
+		if ( timeout.prev == null ){
+			
+			buckets[timeout.bucket] = timeout.next;
+		
+		}else{
+			
+			timeout.prev.next = timeout.next;
+		}
+		
+		if ( timeout.next != null ){
+			
+			timeout.next.prev = timeout.prev;
+		}
+		
+		timeout.prev = null;
+		timeout.next = null;
+	}
+	
+	public interface
+	Listener<T>
+	{
+		public void
+		expired(
+			T		item );
+	}
+	
+	public static class
+	Timeout<T>
+	{
+		private final TorPluginTimerWheel<T>	wheel;
+		private final T							item;
+		
+		private int			bucket;
+		private long		rounds;
+		
+		private Timeout<T>	prev;
+		private Timeout<T>	next;
+		
+		private boolean		cancelled;
+		
+		private
+		Timeout(
+			TorPluginTimerWheel<T>	_wheel,
+			T						_item )
+		{
+			wheel	= _wheel;
+			item	= _item;
+		}
+			
+			/**
+			 * @return false if it has already expired or been cancelled
+			 */
+		
+		public boolean
+		cancel()
+		{
+			synchronized( wheel ){
+				
+				if ( cancelled ){
+					
+					return( false );
+				}
+				
+				cancelled = true;
+				
+				if ( !wheel.destroyed ){
+					
+					wheel.unlink( this );
+					
+					wheel.size--;
+				}
+				
+				return( true );
+			}
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import com.biglybt.core.util.Constants;
+import com.biglybt.core.util.SimpleTimer;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.TimerEvent;
+import com.biglybt.core.util.TimerEventPerformer;
+
+/**
+ * AF_UNIX socket channels (Java 16+) accessed via reflection as we still have to run on older JREs.
+ * Channels opened here are only usable as channels, they don't have a java.net.Socket
+ */
+
+public class
+TorPluginUnixSockets
+{
+		// sun_path is 108 bytes on Linux, 104 on BSD/OSX
+	
+	private static final int	MAX_PATH_LENGTH	= 100;
+	
+	private static final Method				address_of;
+	private static final Method				channel_open;
+	private static final ProtocolFamily		unix_family;
+	
+	static{
+		Method			of		= null;
+		Method			open	= null;
+		ProtocolFamily	family	= null;
+			
+			// Tor doesn't support unix sockets on Windows
+		
+		if ( !Constants.isWindows ){
+			
+			try{
+				of		= Class.forName( "java.net.UnixDomainSocketAddress" ).getMethod( "of", String.class );
+				open	= SocketChannel.class.getMethod( "open", ProtocolFamily.class );
+				family	= StandardProtocolFamily.valueOf( "UNIX" );
+			
+			}catch( Throwable e ){
+				
+				of		= null;
+				open	= null;
+				family	= null;
+			}
+		}
+		
+		address_of		= of;
+		channel_open	= open;
+		unix_family		= family;
+	}
+	
+	public static boolean
+	isSupported()
+	{
+		return( address_of != null );
+	}
+		
+		/**
+		 * @return null if not supported or the path is too long to bind to
+		 */
+	
+	public static SocketAddress
+	getAddress(
+		File		file )
+	{
+		if ( !isSupported()){
+			
+			return( null );
+		}
+		
+		String	path = file.getAbsolutePath();
+		
+		if ( path.length() > MAX_PATH_LENGTH ){
+			
+			return( null );
+		}
+		
+		try{
+			return((SocketAddress)address_of.invoke( null, path ));
+		
+		}catch( Throwable e ){
+			
+			return( null );
+		}
+	}
+		
+		/**
+		 * Opens an unconnected channel of the right family for 'address'
+		 */
+	
+	public static SocketChannel
+	openChannel(
+		SocketAddress		address )
+		
+		throws IOException
+	{
+		if ( address instanceof InetSocketAddress ){
+			
+			return( SocketChannel.open());
+		}
+		
+		if ( !isSupported()){
+			
+			throw( new IOException( "Unix domain sockets not supported" ));
+		}
+		
+		try{
+			return((SocketChannel)channel_open.invoke( null, unix_family ));
+		
+		}catch( Throwable e ){
+			
+			Throwable cause = e.getCause()==null?e:e.getCause();
+			
+			if ( cause instanceof IOException ){
+				
+				throw((IOException)cause );
+			}
+			
+			throw( new IOException( "Failed to open unix domain socket", cause ));
+		}
+	}
+		
+		/**
+		 * Blocking stream on 'channel' with the equivalent of SO_TIMEOUT, which channels don't have. A read
+		 * that takes longer than 'timeout' closes the channel (the only way to unblock it) and fails
+		 * with a SocketTimeoutException
+		 */
+	
+	public static InputStream
+	newInputStream(
+		final SocketChannel		channel,
+		final int				timeout )
+	{
+		final InputStream	is = Channels.newInputStream( channel );
+		
+		return(
+			new InputStream()
+			{
+				private volatile boolean	timed_out;
+				
+				@Override
+				public int
+				read()
+					
+					throws IOException
+				{
+					byte[]	b = new byte[1];
+					
+					int	len = read( b, 0, 1 );
+					
+					return( len<=0?-1:( b[0]&0xff ));
+				}
+				
+				@Override
+				public int
+				read(
+					byte[]		b,
+					int			off,
+					int			len )
+					
+					throws IOException
+				{
+					TimerEvent	watchdog = 
+						SimpleTimer.addEvent(
+							"TorUnixReadTimeout",
+							SystemTime.getOffsetTime( timeout ),
+							new TimerEventPerformer()
+							{
+								@Override
+								public void
+								perform(
+									TimerEvent event )
+								{
+									timed_out = true;
+									
+									try{
+										channel.close();
+									
+									}catch( Throwable e ){
+									}
+								}
+							});
+					
+					try{
+						return( is.read( b, off, len ));
+					
+					}catch( IOException e ){
+						
+						if ( timed_out ){
+							
+							throw( new SocketTimeoutException( "Read timed out" ));
+						}
+						
+						throw( e );
+					
+					}finally{
+						
+						watchdog.cancel();
+					}
+				}
+				
+				@Override
+				public void
+				close()
+					
+					throws IOException
+				{
+					is.close();
+				}
+			});
+	}
+}
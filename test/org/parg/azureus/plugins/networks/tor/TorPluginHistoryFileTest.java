@@ -0,0 +1,263 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.biglybt.core.util.SystemTime;
+
+public class
+TorPluginHistoryFileTest
+{
+	private static final long	HOUR	= 60*60*1000L;
+	private static final long	DAY		= 24*HOUR;
+	
+	private File	dir;
+	private File	file;
+	
+	@Before
+	public void
+	setUp()
+		
+		throws IOException
+	{
+		dir		= Files.createTempDirectory( "torhistory" ).toFile();
+		file	= new File( dir, "history.dat" );
+	}
+	
+	@After
+	public void
+	tearDown()
+	{
+		File[] files = dir.listFiles();
+		
+		if ( files != null ){
+			
+			for ( File f: files ){
+				
+				f.delete();
+			}
+		}
+		
+		dir.delete();
+	}
+	
+	private List<TorPluginHistoryFile.Record>
+	writeAndRead(
+		TorPluginHistoryFile.Record...	records )
+		
+		throws IOException
+	{
+		List<TorPluginHistoryFile.Record>	list = new ArrayList<TorPluginHistoryFile.Record>();
+		
+		for ( TorPluginHistoryFile.Record record: records ){
+			
+			list.add( record );
+		}
+		
+		TorPluginHistoryFile.write( file, list );
+		
+		return( TorPluginHistoryFile.read( file ));
+	}
+	
+	@Test
+	public void
+	testRoundTrip()
+		
+		throws IOException
+	{
+		long	now = SystemTime.getCurrentTime();
+		
+		List<TorPluginHistoryFile.Record>	result =
+			writeAndRead(
+				new TorPluginHistoryFile.Record( "*.example.com", now, 10, 4, 3, 60*1000 ),
+				new TorPluginHistoryFile.Record( "*.example.org", now, 1, 0, 0, 0 ));
+		
+		assertEquals( 2, result.size());
+		
+		TorPluginHistoryFile.Record	record = result.get( 0 );
+		
+		assertEquals( "*.example.com", record.getHost());
+		assertEquals( now, record.getLastOutcomeTime());
+		assertEquals( 10, record.getTotalOK());
+		assertEquals( 4, record.getTotalFails());
+		assertEquals( 3, record.getConsecutiveFails());
+			
+			// reduced by the (tiny) time between save and load
+		
+		assertTrue( record.getRetryDelay() <= 60*1000 && record.getRetryDelay() > 50*1000 );
+		
+		assertEquals( "*.example.org", result.get( 1 ).getHost());
+		assertEquals( 0, result.get( 1 ).getRetryDelay());
+		
+		assertFalse( new File( dir, "history.dat.tmp" ).exists());
+	}
+	
+	@Test
+	public void
+	testReplace()
+		
+		throws IOException
+	{
+		long	now = SystemTime.getCurrentTime();
+		
+		writeAndRead( new TorPluginHistoryFile.Record( "*.old.com", now, 1, 0, 0, 0 ));
+		
+		List<TorPluginHistoryFile.Record>	result = writeAndRead( new TorPluginHistoryFile.Record( "*.new.com", now, 1, 0, 0, 0 ));
+		
+		assertEquals( 1, result.size());
+		assertEquals( "*.new.com", result.get( 0 ).getHost());
+	}
+	
+	@Test
+	public void
+	testFailureDecay()
+		
+		throws IOException
+	{
+		long	now = SystemTime.getCurrentTime();
+		
+		List<TorPluginHistoryFile.Record>	result =
+			writeAndRead(
+				new TorPluginHistoryFile.Record( "*.a.com", now - 30*60*1000, 0, 8, 8, 0 ),
+				new TorPluginHistoryFile.Record( "*.b.com", now - 2*HOUR - 60*1000, 0, 8, 8, 0 ),
+				new TorPluginHistoryFile.Record( "*.c.com", now - 6*DAY, 0, 1000, 1000, 0 ));
+		
+		assertEquals( 3, result.size());
+			
+			// half-life is an hour
+		
+		assertEquals( 8, result.get( 0 ).getConsecutiveFails());
+		assertEquals( 2, result.get( 1 ).getConsecutiveFails());
+		assertEquals( 0, result.get( 2 ).getConsecutiveFails());
+			
+			// totals aren't decayed
+		
+		assertEquals( 1000, result.get( 2 ).getTotalFails());
+	}
+	
+	@Test
+	public void
+	testOldRecordsDropped()
+		
+		throws IOException
+	{
+		long	now = SystemTime.getCurrentTime();
+		
+		List<TorPluginHistoryFile.Record>	result =
+			writeAndRead(
+				new TorPluginHistoryFile.Record( "*.old.com", now - 8*DAY, 5, 5, 5, 0 ),
+				new TorPluginHistoryFile.Record( "*.new.com", now - 1*DAY, 5, 5, 5, 0 ));
+		
+		assertEquals( 1, result.size());
+		assertEquals( "*.new.com", result.get( 0 ).getHost());
+	}
+	
+	@Test
+	public void
+	testMissingFile()
+		
+		throws IOException
+	{
+		assertEquals( 0, TorPluginHistoryFile.read( file ).size());
+	}
+	
+	@Test
+	public void
+	testForeignFile()
+		
+		throws IOException
+	{
+		FileOutputStream	fos = new FileOutputStream( file );
+		
+		try{
+			fos.write( "not a history file".getBytes( "UTF-8" ));
+		
+		}finally{
+			
+			fos.close();
+		}
+		
+		assertEquals( 0, TorPluginHistoryFile.read( file ).size());
+	}
+	
+	@Test( expected=IOException.class )
+	public void
+	testTruncatedFile()
+		
+		throws IOException
+	{
+		writeAndRead( new TorPluginHistoryFile.Record( "*.example.com", SystemTime.getCurrentTime(), 1, 0, 0, 0 ));
+		
+		byte[]	bytes = Files.readAllBytes( file.toPath());
+		
+		FileOutputStream	fos = new FileOutputStream( file );
+		
+		try{
+			fos.write( bytes, 0, bytes.length - 4 );
+		
+		}finally{
+			
+			fos.close();
+		}
+		
+		TorPluginHistoryFile.read( file );
+	}
+	
+	@Test( expected=IOException.class )
+	public void
+	testBadCount()
+		
+		throws IOException
+	{
+		writeAndRead();
+		
+		byte[]	bytes = Files.readAllBytes( file.toPath());
+		
+		DataOutputStream	dos = new DataOutputStream( new FileOutputStream( file ));
+		
+		try{
+			dos.write( bytes, 0, bytes.length - 4 );
+			
+			dos.writeInt( -1 );
+		
+		}finally{
+			
+			dos.close();
+		}
+		
+		TorPluginHistoryFile.read( file );
+	}
+}
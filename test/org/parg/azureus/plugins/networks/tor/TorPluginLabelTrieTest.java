@@ -0,0 +1,180 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class
+TorPluginLabelTrieTest
+{
+	@Test
+	public void
+	testMatchTypes()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.add( "domain.com", TorPluginLabelTrie.MATCH_DOMAIN, "domain" );
+		trie.add( "subs.com", TorPluginLabelTrie.MATCH_SUBDOMAINS, "subs" );
+		trie.add( "exact.com", TorPluginLabelTrie.MATCH_EXACT, "exact" );
+		
+		trie.compile();
+		
+		assertEquals( 3, trie.size());
+		
+		assertEquals( "domain", trie.match( "domain.com" ));
+		assertEquals( "domain", trie.match( "a.b.domain.com" ));
+		
+		assertNull( trie.match( "subs.com" ));
+		assertEquals( "subs", trie.match( "a.subs.com" ));
+		
+		assertEquals( "exact", trie.match( "exact.com" ));
+		assertNull( trie.match( "a.exact.com" ));
+	}
+	
+	@Test
+	public void
+	testNoMatch()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_DOMAIN, "x" );
+		
+		trie.compile();
+		
+		assertNull( trie.match( "com" ));
+		assertNull( trie.match( "example.org" ));
+		assertNull( trie.match( "badexample.com" ));
+		assertNull( trie.match( "" ));
+	}
+	
+	@Test
+	public void
+	testEmpty()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.compile();
+		
+		assertEquals( 0, trie.size());
+		
+		assertNull( trie.match( "example.com" ));
+	}
+	
+	@Test
+	public void
+	testLongestDomainWins()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.add( "com", TorPluginLabelTrie.MATCH_DOMAIN, "tld" );
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_DOMAIN, "domain" );
+		trie.add( "www.example.com", TorPluginLabelTrie.MATCH_DOMAIN, "www" );
+		
+		trie.compile();
+		
+		assertEquals( "tld", trie.match( "other.com" ));
+		assertEquals( "domain", trie.match( "mail.example.com" ));
+		assertEquals( "www", trie.match( "a.www.example.com" ));
+	}
+	
+	@Test
+	public void
+	testPrecedenceForSameDomain()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_DOMAIN, "domain" );
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_SUBDOMAINS, "subs" );
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_EXACT, "exact" );
+		
+		trie.compile();
+		
+		assertEquals( "exact", trie.match( "example.com" ));
+		assertEquals( "subs", trie.match( "www.example.com" ));
+	}
+	
+	@Test
+	public void
+	testReplace()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_DOMAIN, "old" );
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_DOMAIN, "new" );
+		
+		trie.compile();
+		
+		assertEquals( 1, trie.size());
+		
+		assertEquals( "new", trie.match( "example.com" ));
+	}
+	
+	@Test
+	public void
+	testCaseAndTrailingDot()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.add( "Example.COM", TorPluginLabelTrie.MATCH_EXACT, "x" );
+		
+		trie.compile();
+		
+		assertEquals( "x", trie.match( "example.com" ));
+		assertEquals( "x", trie.match( "EXAMPLE.com" ));
+		assertEquals( "x", trie.match( "example.com." ));
+	}
+	
+	@Test
+	public void
+	testManyEntries()
+	{
+		TorPluginLabelTrie<Integer>	trie = new TorPluginLabelTrie<Integer>();
+		
+		for ( int i=0;i<1000;i++){
+			
+			trie.add( "host" + i + ".example.com", TorPluginLabelTrie.MATCH_EXACT, i );
+		}
+		
+		trie.compile();
+		
+		for ( int i=0;i<1000;i++){
+			
+			assertEquals( Integer.valueOf( i ), trie.match( "host" + i + ".example.com" ));
+		}
+		
+		assertNull( trie.match( "host1000.example.com" ));
+	}
+	
+	@Test( expected=IllegalStateException.class )
+	public void
+	testAddAfterCompile()
+	{
+		TorPluginLabelTrie<String>	trie = new TorPluginLabelTrie<String>();
+		
+		trie.compile();
+		
+		trie.add( "example.com", TorPluginLabelTrie.MATCH_DOMAIN, "x" );
+	}
+}
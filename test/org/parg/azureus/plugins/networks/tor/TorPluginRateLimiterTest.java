@@ -0,0 +1,152 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+	
+/**
+ * Only a per-host limit is set and each test uses its own host so that the tests get fresh
+ * buckets from the shared singleton
+ */
+
+public class
+TorPluginRateLimiterTest
+{
+	private static final int	HOST_RATE	= 10000;
+	
+	private static final AtomicInteger	host_id = new AtomicInteger();
+	
+	private TorPluginRateLimiter	limiter;
+	
+	private String	host;
+	
+	@Before
+	public void
+	setUp()
+	{
+		limiter = TorPluginRateLimiter.getSingleton();
+		
+		limiter.setLimits( 0, HOST_RATE, new int[0] );
+		
+		host = "host" + host_id.incrementAndGet() + ".example.com";
+	}
+	
+	@After
+	public void
+	tearDown()
+	{
+		limiter.setLimits( 0, 0, new int[0] );
+	}
+	
+	private TorPluginStreamStats
+	getStream(
+		int		traffic_class )
+	{
+		TorPluginStreamStats	stream = new TorPluginStreamStats( host, traffic_class );
+			
+			// get past the small stream exemption
+		
+		stream.bytesIn( 100*1024 );
+		
+		return( stream );
+	}
+	
+	private static void
+	assertDelay(
+		long	expected,
+		long	actual )
+	{
+			// allow for a little refill between calls
+		
+		assertTrue( "delay " + actual + " not near " + expected, actual <= expected && actual >= expected - 200 );
+	}
+	
+	@Test
+	public void
+	testBulkKeepsFullDebt()
+	{
+		TorPluginStreamStats	bulk = getStream( TorPluginRateLimiter.TC_BULK );
+			
+			// five seconds worth must wait five seconds, not be capped at the one second burst
+		
+		assertDelay( 5000, limiter.getDelay( bulk, 5*HOST_RATE ));
+		
+		assertDelay( 5000, limiter.getDelay( bulk, 1 ));
+	}
+	
+	@Test
+	public void
+	testExemptDebtCapped()
+	{
+		TorPluginStreamStats	tracker	= getStream( TorPluginRateLimiter.TC_TRACKER );
+		TorPluginStreamStats	bulk	= getStream( TorPluginRateLimiter.TC_BULK );
+		
+		assertEquals( 0, limiter.getDelay( tracker, 5*HOST_RATE ));
+			
+			// exempt traffic only pushes bulk back by a second
+		
+		assertDelay( 1000, limiter.getDelay( bulk, 1 ));
+	}
+	
+	@Test
+	public void
+	testExemptDoesNotForgiveDebt()
+	{
+		TorPluginStreamStats	tracker	= getStream( TorPluginRateLimiter.TC_TRACKER );
+		TorPluginStreamStats	bulk	= getStream( TorPluginRateLimiter.TC_BULK );
+		
+		assertDelay( 5000, limiter.getDelay( bulk, 5*HOST_RATE ));
+		
+		assertEquals( 0, limiter.getDelay( tracker, HOST_RATE ));
+		
+		assertDelay( 5000, limiter.getDelay( bulk, 1 ));
+	}
+	
+	@Test
+	public void
+	testSmallStreamExempt()
+	{
+		TorPluginStreamStats	small = new TorPluginStreamStats( host, TorPluginRateLimiter.TC_BULK );
+		
+		small.bytesIn( 1024 );
+		
+		assertEquals( 0, limiter.getDelay( small, 5*HOST_RATE ));
+	}
+	
+	@Test
+	public void
+	testUnlimited()
+	{
+		limiter.setLimits( 0, 0, new int[0] );
+		
+		assertFalse( limiter.isEnabled());
+		
+		assertEquals( 0, limiter.getDelay( getStream( TorPluginRateLimiter.TC_BULK ), 5*HOST_RATE ));
+	}
+}
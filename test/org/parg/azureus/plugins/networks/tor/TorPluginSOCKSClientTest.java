@@ -0,0 +1,373 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class
+TorPluginSOCKSClientTest
+{
+	private ServerSocketChannel	server;
+	private SocketChannel		client;
+	private SocketChannel		peer;
+	
+	@Before
+	public void
+	setUp()
+		
+		throws IOException
+	{
+		server = ServerSocketChannel.open();
+		
+		server.socket().bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ));
+		
+		client = SocketChannel.open( server.socket().getLocalSocketAddress());
+		
+		peer = server.accept();
+	}
+	
+	@After
+	public void
+	tearDown()
+		
+		throws IOException
+	{
+		client.close();
+		peer.close();
+		server.close();
+	}
+	
+	private static byte[]
+	getReply(
+		int		status,
+		int		atyp,
+		int		address_length )
+	{
+		boolean	domain = atyp == 3;
+		
+		byte[]	reply = new byte[ 4 + (domain?1:0) + address_length + 2 ];
+		
+		reply[0] = 5;
+		reply[1] = (byte)status;
+		reply[3] = (byte)atyp;
+		
+		if ( domain ){
+			
+			reply[4] = (byte)address_length;
+		}
+		
+		return( reply );
+	}
+	
+	private static byte[]
+	getHeader(
+		byte[]	reply )
+	{
+		byte[]	header = new byte[5];
+		
+		System.arraycopy( reply, 0, header, 0, 5 );
+		
+		return( header );
+	}
+	
+	private void
+	send(
+		byte[]		data,
+		int			offset,
+		int			length )
+		
+		throws IOException
+	{
+		ByteBuffer	buffer = ByteBuffer.wrap( data, offset, length );
+		
+		while( buffer.hasRemaining()){
+			
+			peer.write( buffer );
+		}
+	}
+	
+	@Test
+	public void
+	testConnectReplyRemaining()
+		
+		throws IOException
+	{
+		assertEquals( 5, TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( getReply( 0, 1, 4 ))));
+		assertEquals( 17, TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( getReply( 0, 4, 16 ))));
+		assertEquals( 13, TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( getReply( 0, 3, 11 ))));
+		assertEquals( 257, TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( getReply( 0, 3, 255 ))));
+	}
+	
+	@Test
+	public void
+	testConnectReplyFailed()
+	{
+		try{
+			TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( getReply( 5, 1, 4 )));
+			
+			fail();
+		
+		}catch( IOException e ){
+			
+			assertTrue( e.getMessage(), e.getMessage().endsWith( "connect failed - connection refused" ));
+		}
+		
+		try{
+			TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( getReply( 0xf0, 1, 4 )));
+			
+			fail();
+		
+		}catch( IOException e ){
+			
+			assertTrue( e.getMessage(), e.getMessage().endsWith( "onion service descriptor not found" ));
+		}
+	}
+	
+	@Test( expected=IOException.class )
+	public void
+	testConnectReplyBadVersion()
+		
+		throws IOException
+	{
+		byte[]	reply = getReply( 0, 1, 4 );
+		
+		reply[0] = 4;
+		
+		TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( reply ));
+	}
+	
+	@Test( expected=IOException.class )
+	public void
+	testConnectReplyBadAddressType()
+		
+		throws IOException
+	{
+		TorPluginSOCKSClient.getConnectReplyRemaining( getHeader( getReply( 0, 2, 4 )));
+	}
+	
+	@Test
+	public void
+	testReplyText()
+	{
+		assertEquals( "succeeded", TorPluginSOCKSClient.getReplyText( 0 ));
+		assertEquals( "address type not supported", TorPluginSOCKSClient.getReplyText( 8 ));
+		assertEquals( "error 9", TorPluginSOCKSClient.getReplyText( 9 ));
+		assertEquals( "onion service invalid address", TorPluginSOCKSClient.getReplyText( 0xf6 ));
+		assertEquals( "onion service introduction timed out", TorPluginSOCKSClient.getReplyText( 0xf7 ));
+		assertEquals( "error 248", TorPluginSOCKSClient.getReplyText( 0xf8 ));
+	}
+	
+	@Test
+	public void
+	testMethodReply()
+		
+		throws IOException
+	{
+		assertEquals( 0, TorPluginSOCKSClient.checkMethodReply( new byte[]{ 5, 0 }));
+		assertEquals( 2, TorPluginSOCKSClient.checkMethodReply( new byte[]{ 5, 2 }));
+		
+		byte[][]	bad = {
+			{ 4, 0 },
+			{ 5, (byte)0xff },
+			{ 5, 1 },
+		};
+		
+		for ( byte[] reply: bad ){
+			
+			try{
+				TorPluginSOCKSClient.checkMethodReply( reply );
+				
+				fail( "accepted " + reply[0] + "/" + reply[1] );
+			
+			}catch( IOException e ){
+			}
+		}
+	}
+	
+	@Test
+	public void
+	testAuth()
+		
+		throws IOException
+	{
+		assertArrayEquals(
+			new byte[]{ 1, 1, 'u', 2, 'p', 'w' },
+			TorPluginSOCKSClient.getAuthRequest( "u", "pw" ));
+		
+		TorPluginSOCKSClient.checkAuthReply( new byte[]{ 1, 0 });
+		
+		try{
+			TorPluginSOCKSClient.checkAuthReply( new byte[]{ 1, 1 });
+			
+			fail();
+		
+		}catch( IOException e ){
+		}
+		
+		try{
+			TorPluginSOCKSClient.getAuthRequest( null, null );
+			
+			fail();
+		
+		}catch( IOException e ){
+		}
+	}
+	
+	@Test
+	public void
+	testRequests()
+		
+		throws IOException
+	{
+		assertArrayEquals( new byte[]{ 5, 1, 0 }, TorPluginSOCKSClient.getGreeting( null, null ));
+		assertArrayEquals( new byte[]{ 5, 2, 0, 2 }, TorPluginSOCKSClient.getGreeting( "u", "p" ));
+		
+		assertArrayEquals(
+			new byte[]{ 5, 1, 0, 3, 5, 'a', '.', 'o', 'r', 'g', (byte)0xc3, 0x50 },
+			TorPluginSOCKSClient.getConnectRequest( "a.org", 50000 ));
+	}
+	
+	@Test
+	public void
+	testReplyReaderStopsAtReply()
+		
+		throws IOException
+	{
+		byte[]	reply	= getReply( 0, 3, 11 );
+		byte[]	data	= { 'D', 'A', 'T', 'A' };
+		
+		byte[]	all = new byte[ reply.length + data.length ];
+		
+		System.arraycopy( reply, 0, all, 0, reply.length );
+		System.arraycopy( data, 0, all, reply.length, data.length );
+		
+		send( all, 0, all.length );
+		
+		TorPluginSOCKSClient.ReplyReader	reader = new TorPluginSOCKSClient.ReplyReader();
+			
+			// blocking, but a read can still return short
+		
+		while( !reader.read( client )){
+		}
+			
+			// the target's data must be left for the relay
+		
+		ByteBuffer	buffer = ByteBuffer.allocate( data.length );
+		
+		while( buffer.hasRemaining()){
+			
+			client.read( buffer );
+		}
+		
+		assertArrayEquals( data, buffer.array());
+	}
+	
+	@Test
+	public void
+	testReplyReaderPartial()
+		
+		throws IOException, InterruptedException
+	{
+		client.configureBlocking( false );
+		
+		byte[]	reply = getReply( 0, 4, 16 );
+		
+		TorPluginSOCKSClient.ReplyReader	reader = new TorPluginSOCKSClient.ReplyReader();
+		
+		assertFalse( reader.read( client ));
+			
+			// split inside the header and again inside the address
+		
+		int[]	splits = { 0, 3, 9, reply.length };
+		
+		for ( int i=1;i<splits.length;i++){
+			
+			send( reply, splits[i-1], splits[i] - splits[i-1] );
+			
+			if ( i < splits.length - 1 ){
+				
+				Thread.sleep( 50 );
+				
+				assertFalse( reader.read( client ));
+			}
+		}
+		
+		long	start = System.currentTimeMillis();
+		
+		while( !reader.read( client )){
+			
+			assertTrue( System.currentTimeMillis() - start < 5000 );
+			
+			Thread.sleep( 10 );
+		}
+	}
+	
+	@Test
+	public void
+	testReplyReaderFailed()
+		
+		throws IOException
+	{
+		byte[]	reply = getReply( 4, 1, 4 );
+		
+		send( reply, 0, reply.length );
+		
+		try{
+			new TorPluginSOCKSClient.ReplyReader().read( client );
+			
+			fail();
+		
+		}catch( IOException e ){
+			
+			assertTrue( e.getMessage(), e.getMessage().endsWith( "host unreachable" ));
+		}
+	}
+	
+	@Test( expected=EOFException.class )
+	public void
+	testReplyReaderEOF()
+		
+		throws IOException
+	{
+		send( new byte[]{ 5, 0 }, 0, 2 );
+		
+		peer.close();
+		
+		TorPluginSOCKSClient.ReplyReader	reader = new TorPluginSOCKSClient.ReplyReader();
+		
+		while( !reader.read( client )){
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class
+TorPluginSegmentedLRUTest
+{
+	private static class
+	CountingFactory
+		implements TorPluginSegmentedLRU.Factory<Integer,String>
+	{
+		private final AtomicInteger	created = new AtomicInteger();
+		
+		@Override
+		public String
+		create(
+			Integer		key )
+		{
+			created.incrementAndGet();
+			
+			return( "v" + key );
+		}
+	}
+	
+	@Test
+	public void
+	testGetOrCreateCreatesOnce()
+	{
+		TorPluginSegmentedLRU<Integer,String>	lru = new TorPluginSegmentedLRU<Integer,String>( 64, 4 );
+		
+		CountingFactory	factory = new CountingFactory();
+		
+		assertNull( lru.get( 1 ));
+		
+		String	first = lru.getOrCreate( 1, factory );
+		
+		assertEquals( "v1", first );
+		
+		assertSame( first, lru.getOrCreate( 1, factory ));
+		assertSame( first, lru.get( 1 ));
+		
+		assertEquals( 1, factory.created.get());
+		assertEquals( 1, lru.size());
+	}
+	
+	@Test
+	public void
+	testEvictsLeastRecentlyUsed()
+	{
+			// one segment so recency is global
+		
+		TorPluginSegmentedLRU<Integer,String>	lru = new TorPluginSegmentedLRU<Integer,String>( 4, 1 );
+		
+		CountingFactory	factory = new CountingFactory();
+		
+		for ( int i=1;i<=4;i++){
+			
+			lru.getOrCreate( i, factory );
+		}
+		
+		lru.get( 1 );
+		
+		lru.getOrCreate( 5, factory );
+		
+		assertEquals( 4, lru.size());
+		
+		assertNotNull( lru.get( 1 ));
+		assertNull( lru.get( 2 ));
+		assertNotNull( lru.get( 5 ));
+	}
+	
+	@Test
+	public void
+	testBoundedAcrossSegments()
+	{
+		TorPluginSegmentedLRU<Integer,String>	lru = new TorPluginSegmentedLRU<Integer,String>( 64, 16 );
+		
+		CountingFactory	factory = new CountingFactory();
+		
+		for ( int i=0;i<1000;i++){
+			
+			lru.getOrCreate( i, factory );
+		}
+		
+		assertTrue( lru.size() <= 64 );
+		
+		assertEquals( lru.size(), lru.values().size());
+	}
+	
+	@Test
+	public void
+	testValuesIsACopy()
+	{
+		TorPluginSegmentedLRU<Integer,String>	lru = new TorPluginSegmentedLRU<Integer,String>( 64, 4 );
+		
+		CountingFactory	factory = new CountingFactory();
+		
+		lru.getOrCreate( 1, factory );
+		lru.getOrCreate( 2, factory );
+		
+		lru.values().clear();
+		
+		assertEquals( 2, lru.size());
+	}
+	
+	@Test
+	public void
+	testConcurrentGetOrCreate()
+	
+		throws Exception
+	{
+		final TorPluginSegmentedLRU<Integer,String>	lru = new TorPluginSegmentedLRU<Integer,String>( 1024, 16 );
+		
+		final CountingFactory	factory = new CountingFactory();
+		
+		Thread[]	threads = new Thread[8];
+		
+		for ( int i=0;i<threads.length;i++){
+			
+			threads[i] = 
+				new Thread()
+				{
+					@Override
+					public void
+					run()
+					{
+						for ( int j=0;j<500;j++){
+							
+							lru.getOrCreate( j, factory );
+						}
+					}
+				};
+				
+			threads[i].start();
+		}
+		
+		for ( Thread t: threads ){
+			
+			t.join();
+		}
+			
+			// each key created exactly once however many threads asked for it
+		
+		assertEquals( 500, factory.created.get());
+		assertEquals( 500, lru.size());
+	}
+}
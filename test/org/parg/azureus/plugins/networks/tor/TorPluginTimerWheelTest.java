@@ -0,0 +1,186 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details ( see the LICENSE file ).
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package org.parg.azureus.plugins.networks.tor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class
+TorPluginTimerWheelTest
+{
+	private final List<String>		expired	= new ArrayList<String>();
+	
+	private TorPluginTimerWheel<String>	wheel;
+	
+	private TorPluginTimerWheel<String>
+	createWheel(
+		final CountDownLatch		latch )
+	{
+			// 8 buckets of 10ms, so anything beyond 80ms goes round more than once
+		
+		wheel = 
+			new TorPluginTimerWheel<String>(
+				"test",
+				10,
+				8,
+				new TorPluginTimerWheel.Listener<String>()
+				{
+					@Override
+					public void
+					expired(
+						String		item )
+					{
+						synchronized( expired ){
+							
+							expired.add( item );
+						}
+						
+						latch.countDown();
+					}
+				});
+		
+		return( wheel );
+	}
+	
+	@After
+	public void
+	tearDown()
+	{
+		if ( wheel != null ){
+			
+			wheel.destroy();
+		}
+	}
+	
+	@Test
+	public void
+	testExpiry()
+		
+		throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch( 2 );
+		
+		createWheel( latch );
+		
+		TorPluginTimerWheel.Timeout<String>	short_timeout = wheel.schedule( "short", 30 );
+		
+		wheel.schedule( "long", 250 );
+		
+		assertEquals( 2, wheel.size());
+		
+		assertTrue( latch.await( 5, TimeUnit.SECONDS ));
+		
+		synchronized( expired ){
+			
+			assertEquals( "short", expired.get( 0 ));
+			assertEquals( "long", expired.get( 1 ));
+		}
+		
+		assertEquals( 0, wheel.size());
+		
+		assertFalse( short_timeout.cancel());
+	}
+	
+	@Test
+	public void
+	testCancel()
+		
+		throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch( 1 );
+		
+		createWheel( latch );
+		
+		TorPluginTimerWheel.Timeout<String>	cancelled = wheel.schedule( "cancelled", 20 );
+		
+		wheel.schedule( "kept", 60 );
+		
+		assertTrue( cancelled.cancel());
+		assertFalse( cancelled.cancel());
+		
+		assertEquals( 1, wheel.size());
+		
+		assertTrue( latch.await( 5, TimeUnit.SECONDS ));
+		
+			// give the cancelled one every chance to turn up
+		
+		Thread.sleep( 100 );
+		
+		synchronized( expired ){
+			
+			assertEquals( 1, expired.size());
+			assertEquals( "kept", expired.get( 0 ));
+		}
+	}
+	
+	@Test
+	public void
+	testSameBucketDifferentRounds()
+		
+		throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch( 1 );
+		
+		createWheel( latch );
+		
+			// 2 ticks and 10 ticks land in the same bucket of 8
+		
+		wheel.schedule( "later", 100 );
+		
+		wheel.schedule( "sooner", 20 );
+		
+		assertTrue( latch.await( 5, TimeUnit.SECONDS ));
+		
+		synchronized( expired ){
+			
+			assertEquals( 1, expired.size());
+			assertEquals( "sooner", expired.get( 0 ));
+		}
+		
+		assertEquals( 1, wheel.size());
+	}
+	
+	@Test
+	public void
+	testDestroy()
+	{
+		createWheel( new CountDownLatch( 1 ));
+		
+		wheel.schedule( "item", 1000 );
+		
+		wheel.destroy();
+		
+		assertEquals( 0, wheel.size());
+		
+			// scheduling after destroy hands back an already cancelled timeout
+		
+		assertFalse( wheel.schedule( "late", 10 ).cancel());
+	}
+}